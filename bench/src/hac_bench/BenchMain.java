@@ -0,0 +1,21 @@
+/**
+ * @version October 17, 2026
+ * Entry point of benchmarks.jar. Takes the usual JMH command line, but
+ * always adds the GC profiler so every result comes with its allocation
+ * rate (gc.alloc.rate.norm is bytes per op)
+ */
+package hac_bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class BenchMain {
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    CommandLineOptions cli = new CommandLineOptions(args);
+    new Runner(new OptionsBuilder().parent(cli).addProfiler(GCProfiler.class).build()).run();
+  }
+}
@@ -0,0 +1,78 @@
+/**
+ * @version October 17, 2026
+ * Encoding and decoding a PING, in the old text format (HACPack) and the
+ * binary one (HACPacket, plus the HACPacketView the receive paths use)
+ */
+package hac_bench;
+
+import java.net.DatagramPacket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import packet_format.HACPack;
+import packet_format.HACPacket;
+import packet_format.HACPacketView;
+import packet_format.HACPacket.MalformedPacketException;
+import packet_format.HACPacket.PacketTypeDataMismatchException;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings("deprecation")
+public class CodecBench {
+  private InetAddress address;
+  private HACPack legacy;
+  private DatagramPacket legacyDatagram;
+  private HACPacket packet;
+  private ByteBuffer writeBuffer;
+  private ByteBuffer readBuffer;
+  private final HACPacketView view = new HACPacketView();
+
+  @Setup
+  public void setup() throws PacketTypeDataMismatchException {
+    this.address = InetAddress.getLoopbackAddress();
+    this.legacy = new HACPack("PING", "", this.address, 9876);
+    this.legacyDatagram = this.legacy.build(this.address, 9876);
+    this.packet = new HACPacket(7, (Inet4Address) this.address, HACPacket.PacketType.PING);
+    this.writeBuffer = ByteBuffer.allocate(HACPacket.MAX_PACKET_SIZE);
+    this.readBuffer = ByteBuffer.allocate(HACPacket.MAX_PACKET_SIZE);
+    this.packet.encode(this.readBuffer);
+    this.readBuffer.flip();
+  }
+
+  @Benchmark
+  public DatagramPacket legacyEncode() {
+    return this.legacy.build(this.address, 9876);
+  }
+
+  @Benchmark
+  public HACPack legacyDecode() {
+    return new HACPack(this.legacyDatagram);
+  }
+
+  @Benchmark
+  public int packetEncode() {
+    this.writeBuffer.clear();
+    this.packet.encode(this.writeBuffer);
+    return this.writeBuffer.position();
+  }
+
+  @Benchmark
+  public HACPacket packetDecode() throws MalformedPacketException {
+    this.readBuffer.rewind();
+    return HACPacket.decode(this.readBuffer);
+  }
+
+  @Benchmark
+  public int viewDecode() {
+    this.view.wrap(this.readBuffer, 0);
+    return this.view.getSequence() + this.view.getSenderId();
+  }
+}
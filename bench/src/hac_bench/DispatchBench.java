@@ -0,0 +1,81 @@
+/**
+ * @version October 17, 2026
+ * The server's handling of one received PING or INIT: membership lookup,
+ * failure detector, timeout re-arm and the reply. The reply really is sent
+ * (to closed ports on loopback), so the syscall is part of the number
+ */
+package hac_bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import hac_server.Server;
+import packet_format.HACPacket;
+import packet_format.HACPacketView;
+import packet_format.HACPacket.PacketTypeDataMismatchException;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBench {
+  // how many different nodes the packets rotate through
+  @Param({ "1", "1024" })
+  public int senders;
+
+  private Server server;
+  private InetSocketAddress[] from;
+  private ByteBuffer ping;
+  private ByteBuffer init;
+  private final HACPacketView view = new HACPacketView();
+  private int next = 0;
+
+  @Setup
+  public void setup() throws IOException, PacketTypeDataMismatchException {
+    this.server = new Server();
+    this.server.open(0);
+    this.from = new InetSocketAddress[this.senders];
+    for (int i = 0; i < this.senders; i++)
+      this.from[i] = new InetSocketAddress(InetAddress.getLoopbackAddress(), 20000 + i);
+    this.ping = frame(HACPacket.PacketType.PING);
+    this.init = frame(HACPacket.PacketType.INIT);
+  }
+
+  @TearDown
+  public void tearDown() {
+    this.server.closeSocket();
+  }
+
+  @Benchmark
+  public void ping() throws IOException {
+    this.view.wrap(this.ping, 0);
+    this.server.handle(this.view, nextSender());
+  }
+
+  @Benchmark
+  public void init() throws IOException {
+    this.view.wrap(this.init, 0);
+    this.server.handle(this.view, nextSender());
+  }
+
+  private InetSocketAddress nextSender() {
+    InetSocketAddress a = this.from[this.next];
+    this.next = this.next + 1 == this.senders ? 0 : this.next + 1;
+    return a;
+  }
+
+  private static ByteBuffer frame(HACPacket.PacketType type) throws PacketTypeDataMismatchException {
+    HACPacket p = new HACPacket(0, null, type);
+    ByteBuffer b = ByteBuffer.allocateDirect(p.encodedLength());
+    p.encode(b);
+    b.flip();
+    return b;
+  }
+}
@@ -0,0 +1,437 @@
+/**
+ * @version October 17, 2026
+ * Runs a real Server or P2P runtime in this process and points thousands of
+ * simulated clients at it over loopback. Each simulated client is just a
+ * socket and a timeout in a timing wheel; one thread sends everyone's
+ * heartbeats and one thread reads everyone's replies, so a few thousand of
+ * them cost about as much as a couple of real Clients.
+ *
+ * Simulated clients answer PROBEs and relay PING_REQs like real ones, so
+ * indirect probing works. Clients are killed at random (failures=), or
+ * killed and brought back after rejoinAfter= seconds (churn=). The target's
+ * MembershipListener tells us when it notices, which gives:
+ *   - detection latency, from the moment a client went quiet to the moment
+ *     the target declared it down
+ *   - false positives, clients declared down while they were still up
+ *
+ * Usage: LoadGenerator [key=value ...]
+ *   target=server|p2p   what to run (server). p2p runs in all-to-all mode
+ *   clients=1000        simulated clients
+ *   rate=1              heartbeats per second per client
+ *   duration=60         seconds to run for
+ *   failures=0          permanent failures per second
+ *   churn=0             leave-and-rejoin events per second
+ *   rejoinAfter=5       seconds a churned client stays away
+ *   port=9876           port for the target
+ * Detector settings come from the usual -Dhac.* properties, e.g.
+ * -Dhac.timeout=3000 so a run doesn't take minutes per detection.
+ */
+package hac_bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import hac_core.MembershipListener;
+import hac_core.MembershipTable;
+import hac_core.Metrics;
+import hac_core.ProbeRelay;
+import hac_core.TimingWheel;
+import hac_p2p.P2P;
+import hac_server.Server;
+import packet_format.HACPacket;
+import packet_format.HACPacket.PacketType;
+import packet_format.HACPacketView;
+
+public class LoadGenerator implements MembershipListener {
+  private static final long REPORT_INTERVAL = 5000;
+
+  /**
+   * One simulated client
+   */
+  private static final class SimClient {
+    final DatagramChannel channel;
+    final long key;
+    final TimingWheel.Timeout<SimClient> timer = new TimingWheel.Timeout<SimClient>(this);
+    volatile boolean alive = true;
+    volatile boolean detected = false;
+    volatile long diedAt = 0;
+    // when a churned client comes back, 0 if it's gone for good
+    long rejoinAt = 0;
+
+    SimClient(DatagramChannel channel) throws IOException {
+      this.channel = channel;
+      this.key = MembershipTable.pack((InetSocketAddress) channel.getLocalAddress());
+    }
+  }
+
+  private final String target;
+  private final int clientCount;
+  private final long period;
+  private final long duration;
+  private final double failureRate;
+  private final double churnRate;
+  private final long rejoinAfter;
+  private final int port;
+
+  private final SimClient[] clients;
+  private final MembershipTable<SimClient> byKey = new MembershipTable<SimClient>();
+  private final InetSocketAddress targetAddress;
+  private final SplittableRandom random = new SplittableRandom();
+  private volatile boolean running = true;
+  private Metrics targetMetrics = null;
+
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder received = new LongAdder();
+  private final LongAdder falsePositives = new LongAdder();
+  private int failures = 0;
+  private int churns = 0;
+  private int backBeforeDetection = 0;
+  private long[] latencies = new long[256];
+  private int latencyCount = 0;
+
+  public LoadGenerator(HashMap<String, String> args) throws IOException {
+    this.target = args.getOrDefault("target", "server");
+    this.clientCount = Integer.parseInt(args.getOrDefault("clients", "1000"));
+    this.period = Math.max(1, Math.round(1000 / Double.parseDouble(args.getOrDefault("rate", "1"))));
+    this.duration = Long.parseLong(args.getOrDefault("duration", "60")) * 1000;
+    this.failureRate = Double.parseDouble(args.getOrDefault("failures", "0"));
+    this.churnRate = Double.parseDouble(args.getOrDefault("churn", "0"));
+    this.rejoinAfter = Long.parseLong(args.getOrDefault("rejoinAfter", "5")) * 1000;
+    this.port = Integer.parseInt(args.getOrDefault("port", "9876"));
+    this.targetAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), this.port);
+
+    this.clients = new SimClient[this.clientCount];
+    for (int i = 0; i < this.clientCount; i++) {
+      DatagramChannel ch = DatagramChannel.open(StandardProtocolFamily.INET);
+      ch.configureBlocking(false);
+      ch.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+      this.clients[i] = new SimClient(ch);
+      this.byKey.put(this.clients[i].key, this.clients[i]);
+    }
+  }
+
+  public static void main(String[] argv) throws Exception {
+    HashMap<String, String> args = new HashMap<String, String>();
+    for (String a : argv) {
+      int eq = a.indexOf('=');
+      if (eq < 0) {
+        System.err.println("Expected key=value, got " + a);
+        System.exit(1);
+      }
+      args.put(a.substring(0, eq), a.substring(eq + 1));
+    }
+    new LoadGenerator(args).run();
+    System.exit(0);
+  }
+
+  /**
+   * Starts the target, runs the simulation and prints the results
+   */
+  public void run() throws Exception {
+    Runnable stop = "p2p".equalsIgnoreCase(this.target) ? startP2P() : startServer();
+    Thread receiver = new Thread(this::receive, "load-receiver");
+    receiver.setDaemon(true);
+    receiver.start();
+    try {
+      drive();
+    } finally {
+      this.running = false;
+      stop.run();
+    }
+    report();
+  }
+
+  private Runnable startServer() throws InterruptedException {
+    Server server = new Server();
+    server.setListener(this);
+    this.targetMetrics = server.getMetrics();
+    Thread t = new Thread(() -> {
+      try {
+        server.createAndListenSocket(this.port);
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }, "server");
+    t.setDaemon(true);
+    t.start();
+    Thread.sleep(200); // let it bind
+    return server::closeSocket;
+  }
+
+  private Runnable startP2P() throws IOException {
+    // P2P only listens to nodes in its config, so write one with everybody
+    File config = File.createTempFile("hac-load", ".cfg");
+    config.deleteOnExit();
+    try (PrintWriter out = new PrintWriter(config)) {
+      out.println("127.0.0.1," + this.port);
+      for (SimClient c : this.clients)
+        out.println("127.0.0.1," + MembershipTable.portOf(c.key));
+    }
+    System.setProperty("hac.port", Integer.toString(this.port));
+    if (System.getProperty("hac.p2p.displayInterval") == null)
+      System.setProperty("hac.p2p.displayInterval", "0");
+    P2P p2p = new P2P(config.getPath());
+    p2p.setListener(this);
+    this.targetMetrics = p2p.getMetrics();
+    p2p.start();
+    return p2p::stop;
+  }
+
+  /**
+   * Sends heartbeats and injects failures until the run is over. Every
+   * client's next heartbeat (or rejoin) is a timeout in a wheel
+   */
+  private void drive() throws IOException {
+    ByteBuffer init = frame(PacketType.INIT);
+    ByteBuffer ping = frame(PacketType.PING);
+    long start = System.currentTimeMillis();
+    long end = start + this.duration;
+    TimingWheel<SimClient> wheel = new TimingWheel<SimClient>(1, start);
+    for (SimClient c : this.clients) {
+      send(c, init);
+      wheel.schedule(c.timer, start + this.random.nextLong(this.period));
+    }
+
+    int[] seq = new int[1];
+    long nextFailure = start + nextEvent(this.failureRate);
+    long nextChurn = start + nextEvent(this.churnRate);
+    long nextReport = start + REPORT_INTERVAL;
+    long lastSent = 0;
+    long lastReceived = 0;
+    long now = start;
+    while (now < end) {
+      final long tickNow = now;
+      wheel.advance(now, c -> {
+        try {
+          if (c.alive) {
+            HACPacket.stamp(ping, 0, seq[0]++, tickNow);
+            send(c, ping);
+            // +-10% jitter, so clients don't all line up
+            wheel.schedule(c.timer, tickNow + this.period - this.period / 10
+                + this.random.nextLong(this.period / 5 + 1));
+          } else if (c.rejoinAt != 0) {
+            if (!c.detected)
+              this.backBeforeDetection++;
+            c.rejoinAt = 0;
+            c.alive = true;
+            send(c, init);
+            wheel.schedule(c.timer, tickNow + this.period);
+          }
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      });
+
+      while (now >= nextFailure) {
+        kill(wheel, now, 0);
+        this.failures++;
+        nextFailure += nextEvent(this.failureRate);
+      }
+      while (now >= nextChurn) {
+        kill(wheel, now, now + this.rejoinAfter);
+        this.churns++;
+        nextChurn += nextEvent(this.churnRate);
+      }
+
+      if (now >= nextReport) {
+        long s = this.sent.sum();
+        long r = this.received.sum();
+        System.out.printf("[%3ds] sent %d pkt/s, received %d pkt/s, detected %d, false positives %d%n",
+            (now - start) / 1000, (s - lastSent) * 1000 / REPORT_INTERVAL,
+            (r - lastReceived) * 1000 / REPORT_INTERVAL, detections(), this.falsePositives.sum());
+        lastSent = s;
+        lastReceived = r;
+        nextReport += REPORT_INTERVAL;
+      }
+
+      LockSupport.parkNanos(500_000);
+      now = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Silences a random live client
+   * @param rejoinAt when it comes back, or 0 for never
+   */
+  private void kill(TimingWheel<SimClient> wheel, long now, long rejoinAt) {
+    for (int tries = 0; tries < 100; tries++) {
+      SimClient c = this.clients[this.random.nextInt(this.clients.length)];
+      if (!c.alive)
+        continue;
+      c.detected = false;
+      c.diedAt = now;
+      c.alive = false;
+      c.rejoinAt = rejoinAt;
+      if (rejoinAt != 0)
+        wheel.schedule(c.timer, rejoinAt);
+      else
+        wheel.cancel(c.timer);
+      return;
+    }
+  }
+
+  /**
+   * Reads everybody's replies, and answers probes for the clients that are
+   * still alive
+   */
+  private void receive() {
+    try (Selector selector = Selector.open()) {
+      for (SimClient c : this.clients)
+        c.channel.register(selector, SelectionKey.OP_READ, c);
+      ByteBuffer buf = ByteBuffer.allocateDirect(HACPacket.MAX_PACKET_SIZE);
+      ByteBuffer reply = ByteBuffer.allocateDirect(HACPacket.HEADER_SIZE + ProbeRelay.BODY_SIZE);
+      HACPacketView view = new HACPacketView();
+      ProbeRelay relay = new ProbeRelay(4096, ProbeRelay.TIMEOUT);
+
+      while (this.running) {
+        if (selector.select(50) == 0)
+          continue;
+        for (SelectionKey key : selector.selectedKeys()) {
+          SimClient c = (SimClient) key.attachment();
+          InetSocketAddress from;
+          while (true) {
+            buf.clear();
+            from = (InetSocketAddress) c.channel.receive(buf);
+            if (from == null)
+              break;
+            this.received.increment();
+            buf.flip();
+            if (!c.alive || !view.wrap(buf, 0))
+              continue;
+            long sender = MembershipTable.pack(from);
+            long now = System.currentTimeMillis();
+            switch (view.getPacketType()) {
+            case PROBE:
+              reply(c, reply, PacketType.ACK, view.getSequence(), 0, sender);
+              break;
+            case PING_REQ:
+              long t = ProbeRelay.readTarget(buf, view.bodyOffset(), view.getBodyLength());
+              if (t != 0)
+                reply(c, reply, PacketType.PROBE, relay.begin(sender, view.getSequence(), t, now), 0, t);
+              break;
+            case ACK:
+              int slot = relay.complete(view.getSequence(), sender, now);
+              if (slot >= 0)
+                reply(c, reply, PacketType.PROBE_ACK, relay.requestSequence(slot), relay.target(slot),
+                    relay.requester(slot));
+              break;
+            default:
+              break;
+            }
+          }
+        }
+        selector.selectedKeys().clear();
+      }
+    } catch (IOException e) {
+      if (this.running)
+        e.printStackTrace();
+    }
+  }
+
+  private void reply(SimClient c, ByteBuffer frame, PacketType type, int sequence, long target, long to)
+      throws IOException {
+    boolean named = type == PacketType.PROBE_ACK;
+    frame.clear();
+    HACPacket.encodeHeader(frame, 0, type, 0, 0, sequence, System.currentTimeMillis(),
+        named ? ProbeRelay.BODY_SIZE : 0);
+    if (named)
+      ProbeRelay.writeTarget(frame, HACPacket.HEADER_SIZE, target);
+    frame.limit(HACPacket.HEADER_SIZE + (named ? ProbeRelay.BODY_SIZE : 0));
+    c.channel.send(frame, new InetSocketAddress(MembershipTable.inetAddressOf(to), MembershipTable.portOf(to)));
+    this.sent.increment();
+  }
+
+  private void send(SimClient c, ByteBuffer frame) throws IOException {
+    frame.rewind();
+    c.channel.send(frame, this.targetAddress);
+    this.sent.increment();
+  }
+
+  @Override
+  public void nodeDown(long key, long now) {
+    SimClient c = this.byKey.get(key);
+    if (c == null)
+      return; // the target itself, or someone we don't know
+    if (c.alive) {
+      this.falsePositives.increment();
+    } else if (!c.detected) {
+      c.detected = true;
+      recordLatency(now - c.diedAt);
+    }
+  }
+
+  private synchronized void recordLatency(long millis) {
+    if (this.latencyCount == this.latencies.length)
+      this.latencies = Arrays.copyOf(this.latencies, this.latencyCount * 2);
+    this.latencies[this.latencyCount++] = millis;
+  }
+
+  private synchronized int detections() {
+    return this.latencyCount;
+  }
+
+  private synchronized void report() {
+    long undetected = 0;
+    for (SimClient c : this.clients)
+      if (!c.alive && !c.detected)
+        undetected++;
+    double seconds = this.duration / 1000.0;
+    System.out.println();
+    System.out.printf("== %d clients against %s for %.0f s ==%n", this.clientCount, this.target, seconds);
+    System.out.printf("packets sent       %d (%.0f/s)%n", this.sent.sum(), this.sent.sum() / seconds);
+    System.out.printf("packets received   %d (%.0f/s)%n", this.received.sum(), this.received.sum() / seconds);
+    System.out.printf("failures injected  %d permanent, %d churn%n", this.failures, this.churns);
+    System.out.printf("detected           %d, back before detection %d, still undetected %d%n",
+        this.latencyCount, this.backBeforeDetection, undetected);
+    System.out.printf("false positives    %d%n", this.falsePositives.sum());
+    if (this.latencyCount > 0) {
+      long[] sorted = Arrays.copyOf(this.latencies, this.latencyCount);
+      Arrays.sort(sorted);
+      System.out.printf("detection latency  p50 %d ms, p90 %d ms, p99 %d ms, max %d ms%n",
+          percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), sorted[sorted.length - 1]);
+    }
+    if (this.targetMetrics != null) {
+      System.out.println();
+      System.out.println("as the " + this.target + " saw it:");
+      System.out.println("packets in         " + this.targetMetrics.getPacketsIn());
+      System.out.println("packets out        " + this.targetMetrics.getPacketsOut());
+      System.out.println("receive nanos      " + this.targetMetrics.getReceiveNanos());
+      System.out.println("heartbeat millis   " + this.targetMetrics.getHeartbeatIntervalMillis());
+      System.out.println("detection millis   " + this.targetMetrics.getDetectionMillis());
+      System.out.println("members            " + this.targetMetrics.getMembers());
+    }
+  }
+
+  static long percentile(long[] sorted, int p) {
+    return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p / 100.0 * sorted.length) - 1)];
+  }
+
+  /**
+   * @return millis until the next event of a Poisson process with the given
+   *         rate per second, or forever if the rate is 0
+   */
+  private long nextEvent(double perSecond) {
+    if (perSecond <= 0)
+      return Long.MAX_VALUE / 4;
+    return Math.max(1, Math.round(-Math.log(1 - this.random.nextDouble()) / perSecond * 1000));
+  }
+
+  private static ByteBuffer frame(PacketType type) {
+    ByteBuffer b = ByteBuffer.allocateDirect(HACPacket.HEADER_SIZE);
+    HACPacket.encodeHeader(b, 0, type, 0, 0, 0, 0, 0);
+    return b;
+  }
+}
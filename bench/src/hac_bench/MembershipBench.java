@@ -0,0 +1,63 @@
+/**
+ * @version October 17, 2026
+ * Looking up the sender of a packet among 100 to 1M known nodes, in the
+ * MembershipTable and in a plain HashMap keyed by boxed longs for
+ * comparison
+ */
+package hac_bench;
+
+import java.util.HashMap;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import hac_core.MembershipTable;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MembershipBench {
+  @Param({ "100", "10000", "1000000" })
+  public int size;
+
+  private MembershipTable<Object> table;
+  private HashMap<Long, Object> map;
+  // keys to look up, in random order, a power of two of them
+  private long[] lookups;
+  private int mask;
+  private int next = 0;
+
+  @Setup
+  public void setup() {
+    SplittableRandom random = new SplittableRandom(42);
+    long[] keys = new long[this.size];
+    this.table = new MembershipTable<Object>();
+    this.map = new HashMap<Long, Object>();
+    for (int i = 0; i < this.size; i++) {
+      // 10.x.x.x addresses, all on the same port
+      keys[i] = MembershipTable.pack(0x0A000000 | random.nextInt(1 << 24), 9876);
+      Object node = new Object();
+      this.table.put(keys[i], node);
+      this.map.put(keys[i], node);
+    }
+    int n = Integer.highestOneBit(Math.max(1, this.size - 1)) << 1;
+    this.lookups = new long[n];
+    for (int i = 0; i < n; i++)
+      this.lookups[i] = keys[random.nextInt(this.size)];
+    this.mask = n - 1;
+  }
+
+  @Benchmark
+  public Object membershipTable() {
+    return this.table.get(this.lookups[this.next++ & this.mask]);
+  }
+
+  @Benchmark
+  public Object hashMap() {
+    return this.map.get(this.lookups[this.next++ & this.mask]);
+  }
+}
@@ -0,0 +1,205 @@
+/**
+ * @version October 17, 2026
+ * A virtual clock and an in-memory network for the simulator. Nothing here
+ * sleeps or touches a socket: time only moves when run() pulls the next
+ * event off the queue, so a quiet minute costs nothing, and every random
+ * choice (loss, latency) comes from one seeded generator, so the same seed
+ * always gives the same run.
+ *
+ * Every host is an address plus an Endpoint that gets its packets. Sending
+ * copies the datagram and schedules its delivery after the link latency,
+ * unless it's lost or the two hosts are on different sides of a partition.
+ * Hosts start in group 0; packets only get through between hosts in the
+ * same group.
+ *
+ * Single threaded, like everything it drives.
+ */
+package hac_bench;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+
+import hac_core.Clock;
+import hac_core.MembershipTable;
+import hac_core.Transport;
+
+final class SimNetwork implements Clock {
+  /**
+   * Something on the network that packets can be delivered to
+   */
+  interface Endpoint {
+    /**
+     * @param packet the datagram, only valid until this returns
+     * @param from who sent it
+     */
+    void deliver(ByteBuffer packet, InetSocketAddress from);
+  }
+
+  private static final class Host {
+    final InetSocketAddress address;
+    final Endpoint endpoint;
+    int group = 0;
+
+    Host(InetSocketAddress address, Endpoint endpoint) {
+      this.address = address;
+      this.endpoint = endpoint;
+    }
+  }
+
+  /**
+   * A timer or a packet in flight. Ties on time go in the order they were
+   * scheduled, which keeps runs repeatable
+   */
+  private static final class Event implements Comparable<Event> {
+    final long time;
+    final long order;
+    final Runnable task;
+    final Host to;
+    final InetSocketAddress from;
+    final byte[] data;
+
+    Event(long time, long order, Runnable task, Host to, InetSocketAddress from, byte[] data) {
+      this.time = time;
+      this.order = order;
+      this.task = task;
+      this.to = to;
+      this.from = from;
+      this.data = data;
+    }
+
+    @Override
+    public int compareTo(Event o) {
+      int c = Long.compare(this.time, o.time);
+      return c != 0 ? c : Long.compare(this.order, o.order);
+    }
+  }
+
+  private final PriorityQueue<Event> queue = new PriorityQueue<Event>();
+  private final MembershipTable<Host> hosts = new MembershipTable<Host>();
+  private final SplittableRandom random;
+  private final double loss;
+  private final long latency;
+  private final long jitter;
+  private long now;
+  private long order = 0;
+
+  private long sent = 0;
+  private long lost = 0;
+  private long cut = 0;
+  private long events = 0;
+
+  /**
+   * @param start the virtual time to start at, in millis
+   * @param seed seed for loss and latency
+   * @param loss chance of any one packet being lost, 0 to 1
+   * @param latency one way delay of every packet, in millis
+   * @param jitter up to this many millis more, picked per packet
+   */
+  SimNetwork(long start, long seed, double loss, long latency, long jitter) {
+    this.now = start;
+    this.random = new SplittableRandom(seed);
+    this.loss = loss;
+    this.latency = latency;
+    this.jitter = jitter;
+  }
+
+  @Override
+  public long millis() {
+    return this.now;
+  }
+
+  /**
+   * Puts a host on the network
+   * @param address its address
+   * @param endpoint what gets its packets
+   * @return what it sends through
+   */
+  Transport attach(InetSocketAddress address, Endpoint endpoint) {
+    Host host = new Host(address, endpoint);
+    this.hosts.put(MembershipTable.pack(address), host);
+    return (frame, to) -> send(host, frame, to);
+  }
+
+  /**
+   * Moves a host to the other side of a partition, or back
+   * @param address the host's address
+   * @param group hosts only hear from hosts in the same group
+   */
+  void setGroup(InetSocketAddress address, int group) {
+    Host host = this.hosts.get(MembershipTable.pack(address));
+    if (host != null)
+      host.group = group;
+  }
+
+  /**
+   * Runs a task at a virtual time
+   * @param at when, in millis. Anything earlier than now runs next
+   * @param task what to run
+   */
+  void schedule(long at, Runnable task) {
+    this.queue.add(new Event(Math.max(at, this.now), this.order++, task, null, null, null));
+  }
+
+  /**
+   * Runs everything that's due up to a virtual time, then sets the clock
+   * to that time
+   * @param until the virtual time to stop at, in millis
+   */
+  void run(long until) {
+    while (!this.queue.isEmpty() && this.queue.peek().time <= until) {
+      Event e = this.queue.poll();
+      this.now = e.time;
+      this.events++;
+      if (e.task != null)
+        e.task.run();
+      else
+        e.to.endpoint.deliver(ByteBuffer.wrap(e.data), e.from);
+    }
+    this.now = until;
+  }
+
+  private int send(Host from, ByteBuffer frame, SocketAddress to) {
+    int length = frame.remaining();
+    this.sent++;
+    Host dest = this.hosts.get(MembershipTable.pack((InetSocketAddress) to));
+    if (dest == null || this.loss > 0 && this.random.nextDouble() < this.loss) {
+      this.lost++;
+    } else if (dest.group != from.group) {
+      this.cut++;
+    } else {
+      byte[] data = new byte[length];
+      frame.get(data);
+      long delay = this.latency + (this.jitter > 0 ? this.random.nextLong(this.jitter + 1) : 0);
+      this.queue.add(new Event(this.now + delay, this.order++, null, dest, from.address, data));
+      return length;
+    }
+    // lost packets still count as sent, same as a real socket
+    frame.position(frame.limit());
+    return length;
+  }
+
+  long getSent() {
+    return this.sent;
+  }
+
+  long getLost() {
+    return this.lost;
+  }
+
+  /**
+   * @return packets dropped because of a partition
+   */
+  long getCut() {
+    return this.cut;
+  }
+
+  /**
+   * @return timers run and packets delivered so far
+   */
+  long getEvents() {
+    return this.events;
+  }
+}
@@ -0,0 +1,393 @@
+/**
+ * @version October 17, 2026
+ * Deterministic simulation of one Server and a large number of clients, on
+ * a virtual clock and an in-memory network (SimNetwork). The Server is the
+ * real one, opened with open(Transport, Clock, long), so it runs the same
+ * failure detector, timing wheel and indirect probing as in production.
+ * The clients are the same lightweight model as in LoadGenerator: they
+ * heartbeat and do their part in indirect probing. By default they, and the
+ * server's ping rounds, go as far apart as the HeartbeatScheduler puts
+ * them on a link it knows nothing about yet, give or take 10%.
+ *
+ * Nothing waits on the wall clock, so a 100k-node cluster with a 30 s
+ * timeout runs several times faster than real time, and the same seed and
+ * settings always give the same result. That makes it good for tuning the
+ * detector (-Dhac.detector, -Dhac.timeout, -Dhac.phi.* and so on) and for
+ * spotting regressions: if a change moves the numbers for a fixed seed, the
+ * change did it.
+ *
+ * Usage: Simulator [key=value ...]
+ *   clients=100000       simulated clients
+ *   rate=0               heartbeats per second per client, 0 for the real
+ *                        Client's schedule
+ *   duration=300         simulated seconds
+ *   seed=1               seed for everything random
+ *   loss=0               chance of losing any one packet, 0 to 1
+ *   latency=1            one way delay in millis
+ *   jitter=0             up to this much extra delay per packet, in millis
+ *   failures=0           permanent client failures per simulated second
+ *   partitionAt=0        when to cut clients off from the server, in seconds
+ *   partitionFor=0       how long the partition lasts, 0 for no partition
+ *   partitionSize=0.1    fraction of clients on the far side of it
+ */
+package hac_bench;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.SplittableRandom;
+
+import hac_core.HeartbeatScheduler;
+import hac_core.MembershipListener;
+import hac_core.MembershipTable;
+import hac_core.ProbeRelay;
+import hac_core.Transport;
+import hac_server.Server;
+import packet_format.HACPacket;
+import packet_format.HACPacket.PacketType;
+import packet_format.HACPacketView;
+
+public class Simulator implements MembershipListener {
+  // same as the server's own CheckPings tick, and the interval SendPings
+  // and the client's SendPingyBois start out with. The jitter is done here,
+  // off the seed, so runs can be repeated
+  private static final long SERVER_TICK = 100;
+  private static final HeartbeatScheduler HEARTBEATS = HeartbeatScheduler.fromSystemProperties(30000);
+  private static final long PING_INTERVAL = HEARTBEATS.interval(HEARTBEATS.newLink(), 0);
+  private static final long REPORT_INTERVAL = 60000;
+  private static final long START = 1_000_000_000_000L;
+
+  /**
+   * One simulated client. Its heartbeat timer is itself
+   */
+  private final class SimClient implements SimNetwork.Endpoint, Runnable {
+    final InetSocketAddress address;
+    final long key;
+    Transport transport;
+    boolean joined = false;
+    boolean alive = true;
+    boolean partitioned = false;
+    boolean detected = false;
+    long diedAt = 0;
+
+    SimClient(InetSocketAddress address) {
+      this.address = address;
+      this.key = MembershipTable.pack(address);
+    }
+
+    @Override
+    public void run() {
+      if (!this.alive)
+        return;
+      long now = network.millis();
+      HACPacket.stamp(pingFrame, 0, sequence++, now);
+      pingFrame.rewind();
+      send(this, pingFrame, serverAddress);
+      network.schedule(now + jittered(period), this); // so clients don't all line up
+    }
+
+    @Override
+    public void deliver(ByteBuffer packet, InetSocketAddress from) {
+      if (!this.alive || !clientView.wrap(packet, 0))
+        return;
+      long sender = MembershipTable.pack(from);
+      long now = network.millis();
+      switch (clientView.getPacketType()) {
+      case PROBE:
+        reply(this, PacketType.ACK, clientView.getSequence(), 0, from);
+        break;
+      case PING_REQ:
+        long t = ProbeRelay.readTarget(packet, clientView.bodyOffset(), clientView.getBodyLength());
+        if (t != 0)
+          reply(this, PacketType.PROBE, relay.begin(sender, clientView.getSequence(), t, now), 0, addressOf(t));
+        break;
+      case ACK:
+        int slot = relay.complete(clientView.getSequence(), sender, now);
+        if (slot >= 0)
+          reply(this, PacketType.PROBE_ACK, relay.requestSequence(slot), relay.target(slot),
+              addressOf(relay.requester(slot)));
+        break;
+      default:
+        break; // the server's pings and replies, nothing to do
+      }
+    }
+  }
+
+  private final int clientCount;
+  private final long period;
+  private final long duration;
+  private final double failureRate;
+  private final long partitionAt;
+  private final long partitionFor;
+  private final double partitionSize;
+  private final long seed;
+
+  private final SimNetwork network;
+  private final SplittableRandom random;
+  private final Server server = new Server();
+  private final InetSocketAddress serverAddress;
+  private final SimClient[] clients;
+  private final MembershipTable<SimClient> byKey = new MembershipTable<SimClient>();
+
+  // shared by all clients, since only one of them runs at a time
+  private final ByteBuffer pingFrame = frame(PacketType.PING);
+  private final ByteBuffer replyFrame = ByteBuffer.allocate(HACPacket.HEADER_SIZE + ProbeRelay.BODY_SIZE);
+  private final HACPacketView clientView = new HACPacketView();
+  private final HACPacketView serverView = new HACPacketView();
+  private final ProbeRelay relay = new ProbeRelay(4096, ProbeRelay.TIMEOUT);
+  private int sequence = 0;
+
+  private int failures = 0;
+  private int joins = 0;
+  private long falsePositives = 0;
+  private long partitionDrops = 0;
+  private long[] latencies = new long[256];
+  private int latencyCount = 0;
+
+  public Simulator(HashMap<String, String> args) throws Exception {
+    this.clientCount = Integer.parseInt(args.getOrDefault("clients", "100000"));
+    double rate = Double.parseDouble(args.getOrDefault("rate", "0"));
+    this.period = rate > 0 ? Math.max(1, Math.round(1000 / rate)) : PING_INTERVAL;
+    this.duration = Long.parseLong(args.getOrDefault("duration", "300")) * 1000;
+    this.seed = Long.parseLong(args.getOrDefault("seed", "1"));
+    this.failureRate = Double.parseDouble(args.getOrDefault("failures", "0"));
+    this.partitionAt = Long.parseLong(args.getOrDefault("partitionAt", "0")) * 1000;
+    this.partitionFor = Long.parseLong(args.getOrDefault("partitionFor", "0")) * 1000;
+    this.partitionSize = Double.parseDouble(args.getOrDefault("partitionSize", "0.1"));
+    this.random = new SplittableRandom(this.seed);
+    this.network = new SimNetwork(START, this.seed + 1,
+        Double.parseDouble(args.getOrDefault("loss", "0")),
+        Long.parseLong(args.getOrDefault("latency", "1")),
+        Long.parseLong(args.getOrDefault("jitter", "0")));
+
+    this.serverAddress = new InetSocketAddress(InetAddress.getByAddress(new byte[] { (byte) 192, (byte) 168, 0, 1 }),
+        9876);
+    this.server.open(this.network.attach(this.serverAddress, this::toServer), this.network, this.seed + 2);
+    this.server.setListener(this);
+
+    this.clients = new SimClient[this.clientCount];
+    for (int i = 0; i < this.clientCount; i++) {
+      byte[] ip = { 10, (byte) (i >> 16), (byte) (i >> 8), (byte) i };
+      SimClient c = new SimClient(new InetSocketAddress(InetAddress.getByAddress(ip), 9877));
+      c.transport = this.network.attach(c.address, c);
+      this.clients[i] = c;
+      this.byKey.put(c.key, c);
+    }
+  }
+
+  public static void main(String[] argv) throws Exception {
+    HashMap<String, String> args = new HashMap<String, String>();
+    for (String a : argv) {
+      int eq = a.indexOf('=');
+      if (eq < 0) {
+        System.err.println("Expected key=value, got " + a);
+        System.exit(1);
+      }
+      args.put(a.substring(0, eq), a.substring(eq + 1));
+    }
+    new Simulator(args).run();
+  }
+
+  /**
+   * Runs the whole simulation and prints the results
+   */
+  public void run() {
+    long wallStart = System.nanoTime();
+    long end = START + this.duration;
+
+    // everyone joins at a random point in their first heartbeat period
+    ByteBuffer init = frame(PacketType.INIT);
+    for (SimClient c : this.clients) {
+      this.network.schedule(START + this.random.nextLong(this.period), () -> {
+        init.rewind();
+        send(c, init, this.serverAddress);
+        c.joined = true;
+        c.run();
+      });
+    }
+
+    scheduleServerTick(START + SERVER_TICK);
+    scheduleServerPings(START + this.random.nextLong(PING_INTERVAL));
+    if (this.failureRate > 0)
+      scheduleFailure(START + nextEvent(this.failureRate));
+    if (this.partitionFor > 0) {
+      this.network.schedule(START + this.partitionAt, this::partition);
+      this.network.schedule(START + this.partitionAt + this.partitionFor, this::heal);
+    }
+
+    for (long t = START; t < end;) {
+      t = Math.min(end, t + REPORT_INTERVAL);
+      this.network.run(t);
+      System.out.printf("[%4ds] known %d, detected %d, false positives %d, events %d%n", (t - START) / 1000,
+          this.server.size(), this.latencyCount, this.falsePositives, this.network.getEvents());
+    }
+    report((System.nanoTime() - wallStart) / 1_000_000);
+  }
+
+  private void scheduleServerTick(long at) {
+    this.network.schedule(at, () -> {
+      this.server.tick();
+      scheduleServerTick(at + SERVER_TICK);
+    });
+  }
+
+  private void scheduleServerPings(long at) {
+    this.network.schedule(at, () -> {
+      this.server.pingRound();
+      scheduleServerPings(at + jittered(PING_INTERVAL));
+    });
+  }
+
+  /**
+   * @return the interval give or take 10%
+   */
+  private long jittered(long interval) {
+    return interval - interval / 10 + this.random.nextLong(interval / 5 + 1);
+  }
+
+  private void scheduleFailure(long at) {
+    this.network.schedule(at, () -> {
+      kill();
+      scheduleFailure(this.network.millis() + nextEvent(this.failureRate));
+    });
+  }
+
+  /**
+   * Silences a random live client for good. Only ones that have joined, or
+   * the detection time would include the time before they did
+   */
+  private void kill() {
+    for (int tries = 0; tries < 100; tries++) {
+      SimClient c = this.clients[this.random.nextInt(this.clients.length)];
+      if (!c.alive || !c.joined)
+        continue;
+      c.alive = false;
+      c.diedAt = this.network.millis();
+      this.failures++;
+      return;
+    }
+  }
+
+  private void partition() {
+    int count = (int) (this.clients.length * this.partitionSize);
+    for (int i = 0; i < count; i++) {
+      SimClient c = this.clients[this.random.nextInt(this.clients.length)];
+      c.partitioned = true;
+      this.network.setGroup(c.address, 1);
+    }
+  }
+
+  private void heal() {
+    for (SimClient c : this.clients) {
+      if (c.partitioned) {
+        c.partitioned = false;
+        this.network.setGroup(c.address, 0);
+      }
+    }
+  }
+
+  private void toServer(ByteBuffer packet, InetSocketAddress from) {
+    if (!this.serverView.wrap(packet, 0))
+      return;
+    try {
+      this.server.handle(this.serverView, from);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void send(SimClient c, ByteBuffer frame, InetSocketAddress to) {
+    try {
+      c.transport.send(frame, to);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void reply(SimClient c, PacketType type, int sequence, long target, InetSocketAddress to) {
+    boolean named = type == PacketType.PROBE_ACK;
+    this.replyFrame.clear();
+    HACPacket.encodeHeader(this.replyFrame, 0, type, 0, 0, sequence, this.network.millis(),
+        named ? ProbeRelay.BODY_SIZE : 0);
+    if (named)
+      ProbeRelay.writeTarget(this.replyFrame, HACPacket.HEADER_SIZE, target);
+    this.replyFrame.limit(HACPacket.HEADER_SIZE + (named ? ProbeRelay.BODY_SIZE : 0));
+    send(c, this.replyFrame, to);
+  }
+
+  private InetSocketAddress addressOf(long key) {
+    SimClient c = this.byKey.get(key);
+    if (c != null)
+      return c.address;
+    try {
+      return new InetSocketAddress(MembershipTable.inetAddressOf(key), MembershipTable.portOf(key));
+    } catch (Exception e) {
+      return this.serverAddress;
+    }
+  }
+
+  @Override
+  public void nodeUp(long key, long now) {
+    this.joins++;
+  }
+
+  @Override
+  public void nodeDown(long key, long now) {
+    SimClient c = this.byKey.get(key);
+    if (c == null)
+      return;
+    if (!c.alive) {
+      if (!c.detected) {
+        c.detected = true;
+        if (this.latencyCount == this.latencies.length)
+          this.latencies = Arrays.copyOf(this.latencies, this.latencyCount * 2);
+        this.latencies[this.latencyCount++] = now - c.diedAt;
+      }
+    } else if (c.partitioned) {
+      this.partitionDrops++;
+    } else {
+      this.falsePositives++;
+    }
+  }
+
+  private void report(long wallMillis) {
+    long undetected = 0;
+    for (SimClient c : this.clients)
+      if (!c.alive && !c.detected)
+        undetected++;
+    System.out.println();
+    System.out.printf("== %d clients, seed %d, %d s simulated in %.1f s (%.0fx real time) ==%n", this.clientCount,
+        this.seed, this.duration / 1000, wallMillis / 1000.0, this.duration / (double) Math.max(1, wallMillis));
+    System.out.printf("packets            %d sent, %d lost, %d cut off by the partition%n", this.network.getSent(),
+        this.network.getLost(), this.network.getCut());
+    System.out.printf("joins              %d (%d clients, the rest came back after being dropped)%n", this.joins,
+        this.clientCount);
+    System.out.printf("failures injected  %d, detected %d, still undetected %d%n", this.failures,
+        this.latencyCount, undetected);
+    System.out.printf("false positives    %d, partitioned clients dropped %d%n", this.falsePositives,
+        this.partitionDrops);
+    if (this.latencyCount > 0) {
+      long[] sorted = Arrays.copyOf(this.latencies, this.latencyCount);
+      Arrays.sort(sorted);
+      System.out.printf("detection latency  p50 %d ms, p90 %d ms, p99 %d ms, max %d ms%n",
+          LoadGenerator.percentile(sorted, 50), LoadGenerator.percentile(sorted, 90),
+          LoadGenerator.percentile(sorted, 99), sorted[sorted.length - 1]);
+    }
+  }
+
+  /**
+   * @return millis until the next event of a Poisson process with the given
+   *         rate per second
+   */
+  private long nextEvent(double perSecond) {
+    return Math.max(1, Math.round(-Math.log(1 - this.random.nextDouble()) / perSecond * 1000));
+  }
+
+  private static ByteBuffer frame(PacketType type) {
+    ByteBuffer b = ByteBuffer.allocate(HACPacket.HEADER_SIZE);
+    HACPacket.encodeHeader(b, 0, type, 0, 0, 0, 0, 0);
+    return b;
+  }
+}
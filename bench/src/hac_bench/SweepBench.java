@@ -0,0 +1,79 @@
+/**
+ * @version October 17, 2026
+ * One 100ms tick of the "who has timed out" check with 100 to 1M nodes,
+ * each due every 30 seconds and evenly spread out, so about 1 in 300 are due
+ * per tick. Whoever is due pings back straight away and gets re-armed,
+ * which keeps things steady from one op to the next.
+ *
+ * wheel is the TimingWheel the server and P2P use now, scan is the old
+ * approach of looking at every node every tick
+ */
+package hac_bench;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.*;
+
+import hac_core.TimingWheel;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SweepBench {
+  private static final long TICK = 100;
+  private static final long TIMEOUT = 30000;
+
+  @Param({ "100", "10000", "1000000" })
+  public int size;
+
+  private TimingWheel<long[]> wheel;
+  private TimingWheel.Timeout<long[]>[] timeouts;
+  private long[] deadlines;
+  private long now;
+  private final Consumer<long[]> rearm = this::rearm;
+
+  @Setup
+  public void setup() {
+    SplittableRandom random = new SplittableRandom(42);
+    this.now = 0;
+    this.wheel = new TimingWheel<long[]>(TICK, this.now);
+    @SuppressWarnings("unchecked")
+    TimingWheel.Timeout<long[]>[] timeouts = (TimingWheel.Timeout<long[]>[]) new TimingWheel.Timeout<?>[this.size];
+    this.timeouts = timeouts;
+    this.deadlines = new long[this.size];
+    for (int i = 0; i < this.size; i++) {
+      long deadline = 1 + random.nextLong(TIMEOUT);
+      this.deadlines[i] = deadline;
+      this.timeouts[i] = new TimingWheel.Timeout<long[]>(new long[] { i });
+      this.wheel.schedule(this.timeouts[i], deadline);
+    }
+  }
+
+  @Benchmark
+  public int wheel() {
+    this.now += TICK;
+    return this.wheel.advance(this.now, this.rearm);
+  }
+
+  @Benchmark
+  public int scan() {
+    this.now += TICK;
+    int fired = 0;
+    for (int i = 0; i < this.deadlines.length; i++) {
+      if (this.deadlines[i] <= this.now) {
+        this.deadlines[i] = this.now + TIMEOUT;
+        fired++;
+      }
+    }
+    return fired;
+  }
+
+  private void rearm(long[] owner) {
+    this.wheel.schedule(this.timeouts[(int) owner[0]], this.now + TIMEOUT);
+  }
+}
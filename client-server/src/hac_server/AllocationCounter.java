@@ -0,0 +1,70 @@
+/**
+ * @version October 17, 2026
+ * Counts the bytes the current thread allocates across a stretch of code.
+ * This is how we check that the receive loop really allocates nothing per
+ * packet. Sampling is cheap but not free, so it is off unless -Dhac.countAllocations
+ * is set. AllocationTest uses it to hold the PING path to zero bytes.
+ */
+
+package hac_server;
+
+import java.lang.management.ManagementFactory;
+
+class AllocationCounter {
+  static final boolean ENABLED = Boolean.getBoolean("hac.countAllocations");
+  
+  private final com.sun.management.ThreadMXBean threads;
+  private long mark;
+  private long bytes;
+  private long events;
+  
+  public AllocationCounter() {
+    this.threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    this.threads.setThreadAllocatedMemoryEnabled(true);
+  }
+  
+  /**
+   * Starts a measurement on the calling thread
+   */
+  public void begin() {
+    this.mark = this.threads.getCurrentThreadAllocatedBytes();
+  }
+  
+  /**
+   * Ends a measurement started by begin() on the same thread and adds what
+   * was allocated in between to the totals
+   */
+  public void end() {
+    this.bytes += this.threads.getCurrentThreadAllocatedBytes() - this.mark;
+    this.events++;
+  }
+  
+  /**
+   * Forgets everything measured so far, e.g. once the loop is warmed up
+   */
+  public void reset() {
+    this.bytes = 0;
+    this.events = 0;
+  }
+  
+  public long getBytes() {
+    return this.bytes;
+  }
+  
+  public long getEvents() {
+    return this.events;
+  }
+  
+  /**
+   * @return average bytes allocated per measured event
+   */
+  public double bytesPerEvent() {
+    return this.events == 0 ? 0 : (double) this.bytes / this.events;
+  }
+  
+  @Override
+  public String toString() {
+    return String.format("%d bytes over %d packets (%.2f bytes/packet)",
+        this.bytes, this.events, bytesPerEvent());
+  }
+}
@@ -0,0 +1,57 @@
+/**
+ * @version October 17, 2026
+ * A fixed pool of direct buffers, each big enough for one packet. Buffers
+ * are handed out and given back instead of being allocated per datagram.
+ */
+
+package hac_server;
+
+import java.nio.ByteBuffer;
+
+import packet_format.HACPacket;
+
+class BufferPool {
+  private final ByteBuffer[] free;
+  private int count;
+  
+  /**
+   * Constructor, allocates every buffer up front
+   * @param size how many buffers the pool holds
+   */
+  public BufferPool(int size) {
+    this.free = new ByteBuffer[size];
+    for(int i = 0; i < size; i++)
+      this.free[i] = ByteBuffer.allocateDirect(HACPacket.MAX_PACKET_SIZE);
+    this.count = size;
+  }
+  
+  /**
+   * Takes a cleared buffer out of the pool
+   * @return a buffer, or null if they are all in use
+   */
+  public synchronized ByteBuffer acquire() {
+    if(this.count == 0)
+      return null;
+    ByteBuffer buf = this.free[--this.count];
+    this.free[this.count] = null;
+    buf.clear();
+    return buf;
+  }
+  
+  /**
+   * Puts a buffer back so someone else can use it
+   * @param buf a buffer that came from acquire()
+   */
+  public synchronized void release(ByteBuffer buf) {
+    if(this.count == this.free.length)
+      throw new IllegalStateException("buffer released twice");
+    this.free[this.count++] = buf;
+  }
+  
+  /**
+   * @return how many buffers are sitting in the pool right now
+   */
+  public synchronized int available() {
+    return this.count;
+  }
+}
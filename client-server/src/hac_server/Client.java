@@ -10,45 +10,198 @@ package hac_server;
 
 import java.io.IOException;
 import java.net.*;
-import java.security.SecureRandom;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-import packet_format.HACPack;
+import hac_core.ArrivalWindow;
+import hac_core.Clock;
+import hac_core.EventLog;
+import hac_core.FailureDetector;
+import hac_core.HeartbeatScheduler;
+import hac_core.MembershipTable;
+import hac_core.MembershipView;
+import hac_core.ProbeRelay;
+import hac_core.ReplayBuffer;
 import packet_format.HACPacket;
+import packet_format.HACPacketView;
 import packet_format.HACPacket.PacketTypeDataMismatchException;
 
 public class Client {
   DatagramSocket socket = null;
   Node parent = null;
-  boolean gotPackyBoi = false;
-  final int PACKET_SIZE = 1028;
+  final int PACKET_SIZE = HACPacket.MAX_PACKET_SIZE;
+  
+  // where heartbeat times and timestamps come from
+  Clock clock = Clock.SYSTEM;
+  
+  // every reply from the server, see EventLog
+  static final EventLog.Event RESPONSE = EventLog.event("client.response", EventLog.Level.INFO, "from", "type",
+      null);
+  static final EventLog.Event DATA = EventLog.event("client.data", EventLog.Level.INFO, "from", null, "sequence");
+  
+  // last DATA message we got from the server, and the last one we sent a
+  // BACK about, so we only ask once per gap
+  int lastData = 0;
+  int askedAfter = -1;
+  
+  // with -Dhac.client.membership=true we keep our own copy of who's in
+  // the cluster. The server's PINGs say what version it's at, and when
+  // ours is different we SYNC, at most once a second for the same
+  // version in case a GOTO got lost, see MembershipLog
+  static final EventLog.Event MEMBERSHIP = EventLog.event("client.membership", EventLog.Level.INFO, "from", null,
+      "version");
+  MembershipView members = Boolean.getBoolean("hac.client.membership") ? new MembershipView() : null;
+  int syncedTo = -1;
+  long syncedAt = 0;
+  static final long SYNC_RETRY = 1000;
+  
+  // for checking on other clients when the server asks us to
+  final ProbeRelay relay = new ProbeRelay(64, ProbeRelay.TIMEOUT);
+  final byte[] relayData = new byte[HACPacket.HEADER_SIZE + ProbeRelay.BODY_SIZE];
+  final ByteBuffer relayBuffer = ByteBuffer.wrap(relayData);
+  final DatagramPacket relayPacket = new DatagramPacket(relayData, relayData.length);
+  int origin = 0;
+  
+  // the heartbeat, encoded once and stamped with a fresh sequence number
+  // and timestamp before every send
+  DatagramPacket ping = null;
+  ByteBuffer pingBuffer = null;
+  int pingSequence = 0;
+  DatagramPacket join = null;
+  
+  // how long SendPingyBois waits between pings, going by the RTT and loss
+  // the pings to the current server have seen. The link is guarded by this
+  final HeartbeatScheduler heartbeats = HeartbeatScheduler.fromSystemProperties(30000);
+  HeartbeatScheduler.Link serverLink = heartbeats.newLink();
+  // when we last sent the current server anything but a ping. SendPingyBois
+  // skips the ping when that's recent, the server takes any packet as one
+  volatile long lastSent = -1;
+  
+  // the servers we can use, from -Dhac.servers=host:port,host:port, and
+  // the one we're using. When the watchdog gives up on it we move on to
+  // the next one, wrapping around
+  static final EventLog.Event FAILOVER = EventLog.event("client.failover", EventLog.Level.WARN, "to", null,
+      "quietMillis");
+  final InetSocketAddress[] servers;
+  volatile int current = 0;
+  // the server the receive loop's DATA and membership state is about
+  InetSocketAddress talkingTo = null;
+  final AreYouThere watchdog = new AreYouThere();
   
   /**
-   * constructor connects to the host
+   * constructor sends a JOIN to the first server, the GOTO comes in on
+   * the receive loop
    * @throws IOException 
    * @throws PacketTypeDataMismatchException 
    */
   public Client() throws IOException, PacketTypeDataMismatchException 
   {
     socket = new DatagramSocket();
-    InetAddress IPAddress = InetAddress.getByName("localhost");
-    
-    HACPacket join = new HACPacket(0,  
-        (Inet4Address) Inet4Address.getLocalHost(), HACPacket.PacketType.INIT);
-    socket.send(join.buildDatagramPacket(IPAddress, 9876));
-    
-    //waiting for that GOTO msg
-    byte[] dat = new byte[1028];
-    DatagramPacket incomingPacket = new DatagramPacket(dat, dat.length);
-    socket.receive(incomingPacket);
-    HACPacket packet = new HACPacket(incomingPacket.getData());
+    servers = serversFromSystemProperties();
+    origin = HACPacket.ipv4ToInt((Inet4Address) Inet4Address.getLocalHost());
     
-    String response = new String(packet.toString());
+    join = new HACPacket(0,  
+        (Inet4Address) Inet4Address.getLocalHost(), HACPacket.PacketType.INIT).buildDatagramPacket(
+        servers[0].getAddress(), servers[0].getPort());
     
-    System.out.println("Response from server:" + response);
-    
-    HACPacket reply = new HACPacket(0,  
-        (Inet4Address) Inet4Address.getLocalHost(), HACPacket.PacketType.PING);
-    socket.send(reply.buildDatagramPacket(IPAddress, 9876));
+    // every ping goes to the same address, so the server always sees us
+    // coming from the same place
+    ping = new HACPacket(0,  
+        (Inet4Address) Inet4Address.getLocalHost(), HACPacket.PacketType.PING).buildDatagramPacket(
+        servers[0].getAddress(), servers[0].getPort());
+    pingBuffer = ByteBuffer.wrap(ping.getData());
+    join(servers[0]);
+  }
+  
+  /**
+   * @return the servers listed in hac.servers, localhost:9876 if none are
+   */
+  static InetSocketAddress[] serversFromSystemProperties() {
+    List<InetSocketAddress> found = new ArrayList<InetSocketAddress>();
+    for(String s : System.getProperty("hac.servers", "localhost:9876").split(",")) {
+      s = s.trim();
+      int colon = s.lastIndexOf(':');
+      try {
+        InetSocketAddress a = colon < 0 ? new InetSocketAddress(s, 9876)
+            : new InetSocketAddress(s.substring(0, colon), Integer.parseInt(s.substring(colon + 1)));
+        if(a.isUnresolved() || !(a.getAddress() instanceof Inet4Address))
+          System.err.println("Skipping server " + s + ", no IPv4 address");
+        else
+          found.add(a);
+      }
+      catch (IllegalArgumentException e) {
+        System.err.println("Skipping server " + s + ": " + e.getMessage());
+      }
+    }
+    if(found.isEmpty())
+      found.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), 9876));
+    return found.toArray(new InetSocketAddress[0]);
+  }
+  
+  /**
+   * Sends the heartbeat. Both the watchdog and SendPingyBois use this,
+   * hence the lock
+   * @throws IOException if the send fails
+   */
+  synchronized void sendPing() throws IOException {
+    long now = clock.millis();
+    HACPacket.stamp(pingBuffer, 0, pingSequence++, now);
+    heartbeats.sent(serverLink, now);
+    socket.send(ping);
+  }
+  
+  /**
+   * Counts a PING from the server as the answer to our last one, if it is
+   * one. A PING from one of the server's ping rounds answers nothing we
+   * sent, and timing it would make the RTT look shorter and the loss lower
+   * than they are
+   * @param packet the PING
+   * @param now when it came in
+   */
+  synchronized void answered(HACPacketView packet, long now) {
+    if((packet.getSenderId() & HACPacket.ANSWER) != 0 && packet.getSequence() == pingSequence - 1)
+      heartbeats.answered(serverLink, now);
+  }
+  
+  /**
+   * @return millis until the next ping
+   */
+  synchronized long nextPingDelay() {
+    return heartbeats.nextDelay(serverLink, 0);
+  }
+  
+  /**
+   * Points the heartbeat at a server and sends it a JOIN and a first PING
+   * @param server the server
+   * @throws IOException if a send fails
+   */
+  synchronized void join(InetSocketAddress server) throws IOException {
+    ping.setSocketAddress(server);
+    serverLink = heartbeats.newLink();
+    join.setSocketAddress(server);
+    socket.send(join);
+    sendPing();
+  }
+  
+  /**
+   * Gives up on the current server and joins the next one. Called by the
+   * watchdog
+   * @param quiet how long the server had been quiet, in millis
+   */
+  void failover(long quiet) {
+    int next = (current + 1) % servers.length;
+    EventLog.log(FAILOVER, MembershipTable.pack(servers[next].getAddress(), servers[next].getPort()), null, quiet);
+    current = next;
+    try {
+      join(servers[next]);
+    }
+    catch (IOException e) {
+      e.printStackTrace(); // the watchdog moves on again if it stays quiet
+    }
   }
   
   /**
@@ -59,36 +212,205 @@ public class Client {
   {
     try 
     {
+      // one buffer and one reply for the whole loop, nothing in here changes
+      byte[] dat = new byte[PACKET_SIZE];
+      ByteBuffer wrapped = ByteBuffer.wrap(dat);
+      DatagramPacket incomingPacket = new DatagramPacket(dat, dat.length);
+      HACPacketView packet = new HACPacketView();
+      
+      SendPingyBois pinger = new SendPingyBois();
+      pinger.setDaemon(true);
+      pinger.start();
+      watchdog.start();
+      
       while(true) {
-        new AreYouThere().run();
-        
-        byte[] dat = new byte[1028];
-        DatagramPacket incomingPacket = new DatagramPacket(dat, dat.length);
+        incomingPacket.setLength(dat.length);
         socket.receive(incomingPacket);
-        HACPacket packet = new HACPacket(incomingPacket.getData());
-        
-        String response = packet.toString();
-        
-        System.out.println("Response from server:" + response);
-        
-        socket.send(new HACPacket(0,  
-            (Inet4Address) Inet4Address.getLocalHost(), 
-            HACPacket.PacketType.PING).
-            buildDatagramPacket((Inet4Address) Inet4Address.getLocalHost(), 9876));
+        wrapped.clear().limit(incomingPacket.getLength());
+        if(!packet.wrap(wrapped, 0))
+          continue; // not a HAC packet
+        if(isProbeTraffic(packet.getPacketType())) {
+          relay(packet, incomingPacket);
+          continue; // other clients talking, not the server
+        }
+        InetSocketAddress server = servers[current];
+        if(incomingPacket.getPort() != server.getPort() || !incomingPacket.getAddress().equals(server.getAddress()))
+          continue; // one we've given up on
+        watchdog.heard(clock.millis());
+        if(packet.getPacketType() == HACPacket.PacketType.PING)
+          answered(packet, clock.millis());
+        if(!server.equals(talkingTo)) {
+          // a new server, whose DATA and membership start over
+          talkingTo = server;
+          lastData = 0;
+          askedAfter = -1;
+          syncedTo = -1;
+          if(members != null)
+            members = new MembershipView();
         }
+        if(packet.getPacketType() == HACPacket.PacketType.DATA)
+          receiveData(packet, incomingPacket);
+        if(members != null && receiveMembership(packet, incomingPacket))
+          continue; // a GOTO can come in many parts, no need to answer each
+        
+        EventLog.log(RESPONSE, MembershipTable.pack(incomingPacket.getAddress(), incomingPacket.getPort()),
+            packet.getPacketType(), 0);
       }
-    
+    }
     catch (IOException e) 
     {
       e.printStackTrace();
     }
   }
   
-  private void yikes() {
-    // give up on life
-    System.exit(0);
+  private static boolean isProbeTraffic(HACPacket.PacketType type) {
+    return type == HACPacket.PacketType.PROBE || type == HACPacket.PacketType.PING_REQ
+        || type == HACPacket.PacketType.ACK;
+  }
+  
+  /**
+   * Does our part in indirect probing, see ProbeRelay. A PROBE gets an ACK,
+   * a PING_REQ gets the client it names a PROBE, and an ACK to one of those
+   * PROBEs goes back to whoever asked as a PROBE_ACK. Keys carry the
+   * header's logical id, so a probe about one of a ClientHost's clients
+   * keeps naming that client all the way round
+   * @param packet the probe packet
+   * @param from the datagram it came in
+   * @throws IOException if a send fails
+   */
+  private void relay(HACPacketView packet, DatagramPacket from) throws IOException {
+    if(!(from.getAddress() instanceof Inet4Address))
+      return;
+    long sender = MembershipTable.withId(MembershipTable.pack(from.getAddress(), from.getPort()),
+        packet.getSenderId());
+    long now = clock.millis();
+    switch(packet.getPacketType()) {
+      case PROBE:
+        sendRelay(HACPacket.PacketType.ACK, packet.getSequence(), 0, sender);
+        break;
+      case PING_REQ:
+        long target = ProbeRelay.readTarget(packet.buffer(), packet.bodyOffset(), packet.getBodyLength());
+        if(target != 0)
+          sendRelay(HACPacket.PacketType.PROBE, relay.begin(sender, packet.getSequence(), target, now), 0, target);
+        break;
+      default: // ACK
+        int slot = relay.complete(packet.getSequence(), sender, now);
+        if(slot >= 0)
+          sendRelay(HACPacket.PacketType.PROBE_ACK, relay.requestSequence(slot), relay.target(slot),
+              relay.requester(slot));
+        break;
+    }
+  }
+  
+  /**
+   * Sends a probe packet out of the reused relay buffer
+   * @param type ACK, PROBE or PROBE_ACK
+   * @param sequence sequence number to put on it
+   * @param target packed address of the node a PROBE_ACK is about
+   * @param to packed address to send it to, its logical id goes in the
+   *        header
+   * @throws IOException if the send fails
+   */
+  private void sendRelay(HACPacket.PacketType type, int sequence, long target, long to) throws IOException {
+    int length = type == HACPacket.PacketType.PROBE_ACK ? ProbeRelay.BODY_SIZE : 0;
+    HACPacket.encodeHeader(relayBuffer, 0, type, MembershipTable.idOf(to), origin, sequence, clock.millis(), length);
+    if(length > 0)
+      ProbeRelay.writeTarget(relayBuffer, HACPacket.HEADER_SIZE, target);
+    relayPacket.setData(relayData, 0, HACPacket.HEADER_SIZE + length);
+    relayPacket.setAddress(MembershipTable.inetAddressOf(to));
+    relayPacket.setPort(MembershipTable.portOf(to));
+    sendRelayPacket();
+  }
+  
+  /**
+   * Takes in a batch of DATA messages from the server, in order. If some
+   * went missing the batch is dropped and the server gets a BACK asking for
+   * everything after the last one we got, see Server.replay(). Whatever it
+   * no longer has is gone for good, so a gap right after asking is taken
+   * as is
+   * @param packet the DATA packet
+   * @param from the datagram it came in
+   * @throws IOException if the BACK can't be sent
+   */
+  private void receiveData(HACPacketView packet, DatagramPacket from) throws IOException {
+    ByteBuffer body = packet.buffer();
+    int pos = packet.bodyOffset();
+    int end = pos + packet.getBodyLength();
+    int count = packet.getBodyLength() > 0 ? body.get(pos++) & 0xFF : 0;
+    long server = MembershipTable.pack(from.getAddress(), from.getPort());
+    for(int i = 0; i < count && pos + ReplayBuffer.RECORD_HEADER <= end; i++) {
+      int seq = body.getInt(pos);
+      int length = body.getShort(pos + 4) & 0xFFFF;
+      if(pos + ReplayBuffer.RECORD_HEADER + length > end)
+        return; // cut short, ignore the rest
+      if(seq > lastData + 1 && askedAfter != lastData) {
+        askedAfter = lastData;
+        sendBack(from);
+        return;
+      }
+      if(seq > lastData) {
+        lastData = seq;
+        EventLog.log(DATA, server, null, seq);
+      }
+      pos += ReplayBuffer.RECORD_HEADER + length;
+    }
+  }
+  
+  /**
+   * Asks the server for every DATA message after lastData
+   * @param from a datagram from the server
+   * @throws IOException if the send fails
+   */
+  private void sendBack(DatagramPacket from) throws IOException {
+    HACPacket.encodeHeader(relayBuffer, 0, HACPacket.PacketType.BACK, 0, origin, 0, clock.millis(), 4);
+    relayBuffer.putInt(HACPacket.HEADER_SIZE, lastData);
+    relayPacket.setData(relayData, 0, HACPacket.HEADER_SIZE + 4);
+    relayPacket.setAddress(from.getAddress());
+    relayPacket.setPort(from.getPort());
+    sendRelayPacket();
+  }
+  
+  /**
+   * Keeps the membership view up to date: a GOTO gets applied, and a PING
+   * from a server whose version isn't ours gets a SYNC
+   * @param packet a packet from the server
+   * @param from the datagram it came in
+   * @return whether it was a GOTO
+   * @throws IOException if the SYNC can't be sent
+   */
+  private boolean receiveMembership(HACPacketView packet, DatagramPacket from) throws IOException {
+    if(packet.getPacketType() == HACPacket.PacketType.STATUS) {
+      if(members.apply(packet.buffer(), packet.bodyOffset(), packet.getBodyLength()))
+        EventLog.log(MEMBERSHIP, MembershipTable.pack(from.getAddress(), from.getPort()), null, members.version());
+      return true;
+    }
+    if(packet.getPacketType() == HACPacket.PacketType.PING && packet.getBodyLength() >= 4) {
+      int latest = packet.buffer().getInt(packet.bodyOffset());
+      long now = clock.millis();
+      if(latest != members.version() && (latest != syncedTo || now - syncedAt >= SYNC_RETRY)) {
+        syncedTo = latest;
+        syncedAt = now;
+        HACPacket.encodeHeader(relayBuffer, 0, HACPacket.PacketType.SYNC, 0, origin, 0, now, 4);
+        relayBuffer.putInt(HACPacket.HEADER_SIZE, members.version());
+        relayPacket.setData(relayData, 0, HACPacket.HEADER_SIZE + 4);
+        relayPacket.setAddress(from.getAddress());
+        relayPacket.setPort(from.getPort());
+        sendRelayPacket();
+      }
+    }
+    return false;
   }
   
+  /**
+   * Sends whatever's in relayPacket, noting the time if it's going to the
+   * current server
+   * @throws IOException if the send fails
+   */
+  private void sendRelayPacket() throws IOException {
+    socket.send(relayPacket);
+    if(relayPacket.getSocketAddress().equals(servers[current]))
+      lastSent = clock.millis();
+  }
   
   public void closeSocket() {
     this.socket.close();
@@ -96,24 +418,20 @@ public class Client {
   
   /**
    * @author josh
-   * basically a straight copy/paste of the send pings thread in the server class
+   * basically a straight copy/paste of the send pings thread in the server class,
+   * waits as long as the HeartbeatScheduler says between pings, and skips
+   * the ping if we've sent the server something else lately
    */
   class SendPingyBois extends Thread {
-    SecureRandom rand = new SecureRandom();
-    private static final long LONGEST_TIME = 30000;
-    
     @Override
     public void run() {
       super.run();
       
       while(true) { // while go brrr
-        long temp = rand.nextLong(); //temp location to make sure that value is valid
         try {
-          Thread.sleep(temp >= 0 ? temp % LONGEST_TIME : -temp % LONGEST_TIME); // sleep for abs(temp % MAX_TIME) millis
-          socket.send(new HACPacket(0,  
-              (Inet4Address) Inet4Address.getLocalHost(), 
-              HACPacket.PacketType.PING).
-              buildDatagramPacket((Inet4Address) Inet4Address.getLocalHost(), 9876)); // ping pong time
+          Thread.sleep(nextPingDelay());
+          if(heartbeats.isIdle(lastSent, clock.millis()))
+            sendPing(); // ping pong time
         } catch (InterruptedException e) { // uh-oh
           System.out.println("lol computer borked");
           e.printStackTrace(/* say wtf happened and where*/);
@@ -122,10 +440,6 @@ public class Client {
           System.out.println("Yikes, extra hecka borked");
           e.printStackTrace(/* say wtf happened and where*/);
         }
-        catch (PacketTypeDataMismatchException e) {
-          // TODO Auto-generated catch block
-          e.printStackTrace();
-        }
       }
     }
   }
@@ -133,91 +447,74 @@ public class Client {
   
   /**
    * @author josh
-   * makes sure the server is alive
+   * makes sure the server is alive. Nothing runs while it waits: the check
+   * is a timer task set for the moment the detector would give up on the
+   * server if nothing more came in, and moved along as heartbeats do come
+   * in. If it fires and the server really has gone quiet, the client fails
+   * over to the next server, which gets a full interval to answer
    */
-  class AreYouThere extends Thread {
+  class AreYouThere implements Runnable {
     /*
      * This is the longest time that the client will wait for a response
-     * before giving up on life. This is in milliseconds and so
-     * when we go through the conversion process, we will find that
-     * this is equal to exactly equal to 30 seconds, which just so
-     * happens to be the amount of time that we want to wait before
-     * the client simply gives up on life
+     * before giving up on the server, 30 seconds
      */
     private static final long LONGEST_TIME = 30000;
     
+    /*
+     * Decides whether the server is still alive, see
+     * FailureDetector.fromSystemProperties for how to pick one
+     */
+    private final FailureDetector detector = FailureDetector.fromSystemProperties(LONGEST_TIME);
+    
+    /*
+     * The current server's heartbeat history. The detector looks at this
+     * to figure out whether the server has been quiet for too long. With
+     * the fixed detector that's LONGEST_TIME, with phi accrual it depends
+     * on how regular the server has been so far
+     */
+    private ArrivalWindow serverArrivals = detector.newHistory();
+    
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "hac-watchdog");
+      t.setDaemon(true);
+      return t;
+    });
+    
     /**
-     * This is the function that runs on a separate thread while the rest
-     * of the program goes about its own business. All this does is wait and
-     * see if the server responds within the allotted amount of time. If the
-     * server does not respond fast enough, the client will give up and die
-     * or something.
+     * Starts watching, counting from now
+     */
+    synchronized void start() {
+      long now = clock.millis();
+      detector.heartbeat(serverArrivals, now);
+      schedule(now);
+    }
+    
+    /**
+     * Tells the detector we heard from the current server. Only pushes the
+     * deadline out, the timer already set notices on its own
+     * @param now when, in millis
+     */
+    synchronized void heard(long now) {
+      detector.heartbeat(serverArrivals, now);
+    }
+    
+    /**
+     * Runs when the deadline comes up
      */
     @Override
-    public void run() {
-      /*
-       * I don't really know why I need this. I probably don't. Eclipse just
-       * kind slapped this bad boy in here for whatever reason. I generally 
-       * don't really use threads so I don't know whether or not this is
-       * really needed for the thread to work
-       */
-      super.run();
-      /*
-       * This is the amount of time that the client should wait. This is a 
-       * separate variable that we can use in case we need to extend the 
-       * amount of time we should for wait
-       */
-      long timeForWait = LONGEST_TIME;
-      /*
-       * Fun fact: tiempo probably means time in Spanish. This is an apt
-       * name because this variable holds the start time. This is used
-       * to help the while loop figure out when it should fall into a 
-       * deep depression and temporary sleep. It wouldn't be forever
-       * because at some point this while loop would probably do stuff
-       * again
-       */
-      long tiempo = System.currentTimeMillis();
-      /*
-       * This while loop is used to figure out whether or not the server
-       * responded in an appropriate amount of time. If the server didn't
-       * respond in the proper amount of time, we can go ahead and assume
-       * that it has failed and that we need to wait for it to come back
-       * online. The comparison function that the loop uses calculates if
-       * the current time is larger that the start time plus the time that
-       * it should wait.
-       */
-      while(!(System.currentTimeMillis() > tiempo + timeForWait)) {
-        /*
-         * This checks to see if a packet (also known as a packy boi) was
-         * recieved. If one wasn't recieved, then the loop will keep on
-         * skadoodling, otherwise, it will reset the "gotPackyBoi" 
-         * variable and add some more time to the clock
-         */
-        if(gotPackyBoi) {
-          /*
-           * This resets the variable to the original value so that it will
-           * be prepared to look for another packet. If this isn't reset
-           * then the client won't work like it is supposed to. It's 
-           * prolly best if you just leave this in here
-           */
-          gotPackyBoi = false;
-          /*
-           * This will add more time to the time to wait for the next
-           * packet (also known as a packy boi) this is so that the
-           * loop keeps on a going. If it doesn't, the client sure
-           * will be confused
-           */
-          timeForWait += LONGEST_TIME;
-        }
+    public synchronized void run() {
+      long now = clock.millis();
+      if(!detector.isAvailable(serverArrivals, now)) {
+        long quiet = now - serverArrivals.lastArrival();
+        serverArrivals = detector.newHistory();
+        detector.heartbeat(serverArrivals, now);
+        failover(quiet);
       }
-      /*
-       * Uh-oh spaghettios. If the code got to this point then the
-       * client probably didn't receive a packet in the right amount
-       * of time. If it ever gets to this point, then we can conclude
-       * that the server went and died. That's a big yikes. Hence the
-       * name of the function
-       */
-      yikes();
+      schedule(now);
+    }
+    
+    private void schedule(long now) {
+      timer.schedule(this, Math.max(1, detector.suspectAt(serverArrivals) - now), TimeUnit.MILLISECONDS);
     }
   }
   
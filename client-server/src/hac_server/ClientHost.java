@@ -0,0 +1,458 @@
+/**
+ * @version October 17, 2026
+ * Runs any number of logical clients in one process, e.g. one for each
+ * service a sidecar looks after. They share one socket, one receive thread
+ * and one timer thread, and they heartbeat together: each round is one PING
+ * listing every registered id, so a host with hundreds of clients sends
+ * about what a single Client does.
+ *
+ * The server tells the clients apart by the header's sender id, which
+ * becomes part of the node's key, see MembershipTable.withId(). On the wire:
+ *   a PING from the host goes out with id 0 (the host itself) and lists
+ *     the ids it speaks for in its body, a u16 each, up to MAX_IDS a packet.
+ *     Its sender id has HACPacket.LISTS_IDS set, so the server doesn't read
+ *     any other PING's body as ids
+ *   DATA for a client, and PROBEs and PING_REQs sent to it, carry its id,
+ *     and whatever it sends back (BACK, ACK, PROBE_ACK) carries it too
+ * A client stops being heartbeated the moment it's unregistered, and the
+ * server times it out like any other node. A PROBE for an id that isn't
+ * registered goes unanswered.
+ *
+ * The server's own liveness is watched once for all of them, the same way
+ * Client does it, and the host fails over to the next of hac.servers when
+ * it goes quiet.
+ *
+ * Rounds are as far apart as the HeartbeatScheduler says, going by the RTT
+ * and loss of the server's answers to them.
+ *
+ * Settings:
+ *   hac.servers        servers to use, see Client
+ *   hac.heartbeat.*    see HeartbeatScheduler
+ */
+
+package hac_server;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import hac_core.ArrivalWindow;
+import hac_core.Clock;
+import hac_core.EventLog;
+import hac_core.FailureDetector;
+import hac_core.HeartbeatScheduler;
+import hac_core.MembershipTable;
+import hac_core.ProbeRelay;
+import hac_core.ReplayBuffer;
+import packet_format.HACPacket;
+import packet_format.HACPacketView;
+
+public class ClientHost {
+  // ids one heartbeat packet has room for
+  public static final int MAX_IDS = HACPacket.MAX_BODY_SIZE / 2;
+
+  /**
+   * Gets the DATA the server publishes to the logical clients
+   */
+  public interface MessageListener {
+    /**
+     * Called on the receive thread, in order for each client
+     * @param id the client it's for
+     * @param sequence its sequence number, see Server.publish()
+     * @param message the message, only valid until this returns
+     */
+    void message(int id, int sequence, ByteBuffer message);
+  }
+
+  /**
+   * What the receive thread keeps about each logical client
+   */
+  private static final class Logical {
+    // last DATA message we got for it, and the last one we sent a BACK
+    // about, as in Client
+    int lastData = 0;
+    int askedAfter = -1;
+  }
+
+  final DatagramSocket socket;
+  final InetSocketAddress[] servers;
+  volatile int current = 0;
+  Clock clock = Clock.SYSTEM;
+  int origin = 0;
+  private volatile MessageListener listener = (id, sequence, message) -> { };
+
+  // registered ids, in clients by id for the receive thread and in ids
+  // for the heartbeat rounds
+  private final AtomicReferenceArray<Logical> clients = new AtomicReferenceArray<Logical>(65536);
+  private int[] ids = new int[16];
+  private int idCount = 0;
+
+  // the heartbeat, built from scratch every round. Guarded by this
+  private final byte[] pingData = new byte[HACPacket.MAX_PACKET_SIZE];
+  private final ByteBuffer pingBuffer = ByteBuffer.wrap(pingData);
+  private final DatagramPacket pingPacket = new DatagramPacket(pingData, pingData.length);
+  private int pingSequence = 0;
+  // sequence numbers of the last round's PINGs, roundStart up to but not
+  // including roundEnd
+  private int roundStart = 0;
+  private int roundEnd = 0;
+  private final HeartbeatScheduler heartbeats = HeartbeatScheduler.fromSystemProperties(30000);
+  private HeartbeatScheduler.Link serverLink = heartbeats.newLink();
+
+  // everything else the receive thread sends
+  private final ProbeRelay relay = new ProbeRelay(64, ProbeRelay.TIMEOUT);
+  private final byte[] relayData = new byte[HACPacket.HEADER_SIZE + ProbeRelay.BODY_SIZE];
+  private final ByteBuffer relayBuffer = ByteBuffer.wrap(relayData);
+  private final DatagramPacket relayPacket = new DatagramPacket(relayData, relayData.length);
+  private InetSocketAddress talkingTo = null;
+
+  // the server's heartbeat history, guarded by the detector
+  private final FailureDetector detector = FailureDetector.fromSystemProperties(30000);
+  private ArrivalWindow serverArrivals = detector.newHistory();
+
+  private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "hac-host-timer");
+    t.setDaemon(true);
+    return t;
+  });
+  private Thread receiver = null;
+
+  /**
+   * Opens the socket, without registering anyone or starting anything
+   * @throws IOException if the socket can't be opened
+   */
+  public ClientHost() throws IOException {
+    socket = new DatagramSocket();
+    servers = Client.serversFromSystemProperties();
+    origin = HACPacket.ipv4ToInt((Inet4Address) Inet4Address.getLocalHost());
+  }
+
+  /**
+   * @param listener what to hand the clients' DATA to
+   */
+  public void setListener(MessageListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Adds a logical client and sends a heartbeat for it straight away, so
+   * it joins without waiting for the next round
+   * @param id its id, 1 to 65535, unique on this host
+   * @throws IOException if the heartbeat can't be sent
+   */
+  public synchronized void register(int id) throws IOException {
+    if(id < 1 || id > 65535)
+      throw new IllegalArgumentException("id " + id + " isn't between 1 and 65535");
+    if(clients.get(id) != null)
+      return;
+    clients.set(id, new Logical());
+    if(idCount == ids.length)
+      ids = Arrays.copyOf(ids, ids.length * 2);
+    ids[idCount++] = id;
+    sendPing(id, 0, 0);
+  }
+
+  /**
+   * Stops heartbeating a logical client. The server drops it once it times
+   * out
+   * @param id its id
+   */
+  public synchronized void unregister(int id) {
+    if(id < 1 || id > 65535 || clients.getAndSet(id, null) == null)
+      return;
+    for(int i = 0; i < idCount; i++)
+      if(ids[i] == id) {
+        ids[i] = ids[--idCount];
+        break;
+      }
+  }
+
+  /**
+   * @return how many logical clients are registered
+   */
+  public synchronized int size() {
+    return idCount;
+  }
+
+  /**
+   * Joins the first server and starts the receive thread, the heartbeat
+   * rounds and the watchdog
+   * @throws IOException if the JOIN can't be sent
+   */
+  public void start() throws IOException {
+    join();
+    synchronized(detector) {
+      detector.heartbeat(serverArrivals, clock.millis());
+    }
+    receiver = new Thread(this::receive, "hac-host");
+    receiver.setDaemon(true);
+    receiver.start();
+    timer.schedule(this::beat, nextDelay(), TimeUnit.MILLISECONDS);
+    timer.schedule(this::watch, 1, TimeUnit.MILLISECONDS);
+  }
+
+  public void close() {
+    timer.shutdownNow();
+    socket.close();
+  }
+
+  /**
+   * The heartbeat task: a round, then the next one scheduled
+   */
+  private void beat() {
+    heartbeat();
+    if(!timer.isShutdown())
+      timer.schedule(this::beat, nextDelay(), TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized long nextDelay() {
+    return heartbeats.nextDelay(serverLink, 0);
+  }
+
+  /**
+   * Counts a PING from the server as the answer to the last round, if it
+   * answers one of the round's PINGs. See Client.answered()
+   * @param packet the PING
+   * @param now when it came in
+   */
+  private synchronized void answered(HACPacketView packet, long now) {
+    int sequence = packet.getSequence();
+    if((packet.getSenderId() & HACPacket.ANSWER) != 0 && sequence - roundStart >= 0 && sequence - roundEnd < 0)
+      heartbeats.answered(serverLink, now);
+  }
+
+  /**
+   * One heartbeat round: the registered ids, as few PINGs as they fit in
+   */
+  private synchronized void heartbeat() {
+    heartbeats.sent(serverLink, clock.millis());
+    roundStart = pingSequence;
+    try {
+      int i = 0;
+      do {
+        int count = Math.min(MAX_IDS, idCount - i);
+        sendPing(0, i, count);
+        i += count;
+      } while(i < idCount);
+    }
+    catch (IOException e) {
+      e.printStackTrace(); // the watchdog notices if it keeps up
+    }
+    roundEnd = pingSequence;
+  }
+
+  /**
+   * Sends a PING to the current server
+   * @param id logical id to send it as
+   * @param from index in ids of the first id to list in the body
+   * @param count how many ids to list
+   * @throws IOException if the send fails
+   */
+  private synchronized void sendPing(int id, int from, int count) throws IOException {
+    HACPacket.encodeHeader(pingBuffer, 0, HACPacket.PacketType.PING, count > 0 ? id | HACPacket.LISTS_IDS : id,
+        origin, pingSequence++, clock.millis(), count * 2);
+    for(int i = 0; i < count; i++)
+      pingBuffer.putShort(HACPacket.HEADER_SIZE + i * 2, (short) ids[from + i]);
+    pingPacket.setData(pingData, 0, HACPacket.HEADER_SIZE + count * 2);
+    pingPacket.setSocketAddress(servers[current]);
+    socket.send(pingPacket);
+  }
+
+  /**
+   * Sends the current server a JOIN and a first heartbeat round
+   * @throws IOException if a send fails
+   */
+  private synchronized void join() throws IOException {
+    serverLink = heartbeats.newLink();
+    HACPacket.encodeHeader(pingBuffer, 0, HACPacket.PacketType.INIT, 0, origin, 0, clock.millis(), 0);
+    pingPacket.setData(pingData, 0, HACPacket.HEADER_SIZE);
+    pingPacket.setSocketAddress(servers[current]);
+    socket.send(pingPacket);
+    heartbeat();
+  }
+
+  /**
+   * The watchdog, run on the timer at the moment the detector would give up
+   * on the server. Fails over to the next server if it has gone quiet,
+   * otherwise goes back to sleep until the new moment, see Client.AreYouThere
+   */
+  private void watch() {
+    long next;
+    long quiet = -1;
+    synchronized(detector) {
+      long now = clock.millis();
+      if(!detector.isAvailable(serverArrivals, now)) {
+        quiet = now - serverArrivals.lastArrival();
+        serverArrivals = detector.newHistory();
+        detector.heartbeat(serverArrivals, now);
+      }
+      next = Math.max(1, detector.suspectAt(serverArrivals) - now);
+    }
+    if(quiet >= 0) {
+      int to = (current + 1) % servers.length;
+      EventLog.log(Client.FAILOVER, MembershipTable.pack(servers[to]), null, quiet);
+      current = to;
+      try {
+        join();
+      }
+      catch (IOException e) {
+        e.printStackTrace(); // and on to the one after that if it stays quiet
+      }
+    }
+    if(!timer.isShutdown())
+      timer.schedule(this::watch, next, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * The receive loop, until the socket is closed
+   */
+  private void receive() {
+    byte[] dat = new byte[HACPacket.MAX_PACKET_SIZE];
+    ByteBuffer wrapped = ByteBuffer.wrap(dat);
+    DatagramPacket incomingPacket = new DatagramPacket(dat, dat.length);
+    HACPacketView packet = new HACPacketView();
+    try {
+      while(true) {
+        incomingPacket.setLength(dat.length);
+        socket.receive(incomingPacket);
+        wrapped.clear().limit(incomingPacket.getLength());
+        if(!packet.wrap(wrapped, 0) || !(incomingPacket.getAddress() instanceof Inet4Address))
+          continue;
+        HACPacket.PacketType type = packet.getPacketType();
+        if(type == HACPacket.PacketType.PROBE || type == HACPacket.PacketType.PING_REQ
+            || type == HACPacket.PacketType.ACK) {
+          relay(packet, incomingPacket);
+          continue;
+        }
+        InetSocketAddress server = servers[current];
+        if(incomingPacket.getPort() != server.getPort() || !incomingPacket.getAddress().equals(server.getAddress()))
+          continue; // one we've given up on
+        synchronized(detector) {
+          detector.heartbeat(serverArrivals, clock.millis());
+        }
+        if(!server.equals(talkingTo)) {
+          // a new server, whose DATA starts over
+          talkingTo = server;
+          for(int id = 1; id < clients.length(); id++)
+            if(clients.get(id) != null)
+              clients.set(id, new Logical());
+        }
+        if(type == HACPacket.PacketType.PING)
+          answered(packet, clock.millis());
+        else if(type == HACPacket.PacketType.DATA)
+          receiveData(packet, incomingPacket);
+      }
+    }
+    catch (SocketException e) {
+      // closed
+    }
+    catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Takes in a batch of DATA messages for one logical client, asking for
+   * the rest with a BACK when some went missing, see Client.receiveData()
+   * @param packet the DATA packet
+   * @param from the datagram it came in
+   * @throws IOException if the BACK can't be sent
+   */
+  private void receiveData(HACPacketView packet, DatagramPacket from) throws IOException {
+    int id = packet.getSenderId();
+    Logical c = id > 0 && id <= 65535 ? clients.get(id) : null;
+    if(c == null)
+      return; // not ours, or not any more
+    ByteBuffer body = packet.buffer();
+    int pos = packet.bodyOffset();
+    int end = pos + packet.getBodyLength();
+    int count = packet.getBodyLength() > 0 ? body.get(pos++) & 0xFF : 0;
+    for(int i = 0; i < count && pos + ReplayBuffer.RECORD_HEADER <= end; i++) {
+      int seq = body.getInt(pos);
+      int length = body.getShort(pos + 4) & 0xFFFF;
+      if(pos + ReplayBuffer.RECORD_HEADER + length > end)
+        return; // cut short, ignore the rest
+      if(seq > c.lastData + 1 && c.askedAfter != c.lastData) {
+        c.askedAfter = c.lastData;
+        HACPacket.encodeHeader(relayBuffer, 0, HACPacket.PacketType.BACK, id, origin, 0, clock.millis(), 4);
+        relayBuffer.putInt(HACPacket.HEADER_SIZE, c.lastData);
+        relayPacket.setData(relayData, 0, HACPacket.HEADER_SIZE + 4);
+        relayPacket.setSocketAddress(from.getSocketAddress());
+        socket.send(relayPacket);
+        return;
+      }
+      if(seq > c.lastData) {
+        c.lastData = seq;
+        ByteBuffer message = body.duplicate();
+        message.limit(pos + ReplayBuffer.RECORD_HEADER + length).position(pos + ReplayBuffer.RECORD_HEADER);
+        listener.message(id, seq, message);
+      }
+      pos += ReplayBuffer.RECORD_HEADER + length;
+    }
+  }
+
+  /**
+   * Does the logical clients' part in indirect probing, as Client.relay()
+   * does, except that a PROBE for an id that isn't registered here goes
+   * unanswered
+   * @param packet the probe packet
+   * @param from the datagram it came in
+   * @throws IOException if a send fails
+   */
+  private void relay(HACPacketView packet, DatagramPacket from) throws IOException {
+    int id = packet.getSenderId();
+    long sender = MembershipTable.withId(MembershipTable.pack(from.getAddress(), from.getPort()), id);
+    long now = clock.millis();
+    switch(packet.getPacketType()) {
+      case PROBE:
+        if(id == 0 || (id > 0 && id <= 65535 && clients.get(id) != null))
+          sendRelay(HACPacket.PacketType.ACK, packet.getSequence(), 0, sender);
+        break;
+      case PING_REQ:
+        long target = ProbeRelay.readTarget(packet.buffer(), packet.bodyOffset(), packet.getBodyLength());
+        if(target != 0)
+          sendRelay(HACPacket.PacketType.PROBE, relay.begin(sender, packet.getSequence(), target, now), 0, target);
+        break;
+      default: // ACK
+        int slot = relay.complete(packet.getSequence(), sender, now);
+        if(slot >= 0)
+          sendRelay(HACPacket.PacketType.PROBE_ACK, relay.requestSequence(slot), relay.target(slot),
+              relay.requester(slot));
+        break;
+    }
+  }
+
+  private void sendRelay(HACPacket.PacketType type, int sequence, long target, long to) throws IOException {
+    int length = type == HACPacket.PacketType.PROBE_ACK ? ProbeRelay.BODY_SIZE : 0;
+    HACPacket.encodeHeader(relayBuffer, 0, type, MembershipTable.idOf(to), origin, sequence, clock.millis(), length);
+    if(length > 0)
+      ProbeRelay.writeTarget(relayBuffer, HACPacket.HEADER_SIZE, target);
+    relayPacket.setData(relayData, 0, HACPacket.HEADER_SIZE + length);
+    relayPacket.setAddress(MembershipTable.inetAddressOf(to));
+    relayPacket.setPort(MembershipTable.portOf(to));
+    socket.send(relayPacket);
+  }
+
+  /**
+   * Runs logical clients 1 to N, N from the first argument (100 if none)
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    int n = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    ClientHost host = new ClientHost();
+    Runtime.getRuntime().addShutdownHook(new Thread(host::close));
+    for(int id = 1; id <= n; id++)
+      host.register(id);
+    host.start();
+    System.out.println("Running " + n + " clients on port " + host.socket.getLocalPort());
+    Thread.currentThread().join();
+  }
+}
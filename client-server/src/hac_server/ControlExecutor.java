@@ -0,0 +1,129 @@
+/**
+ * @version October 17, 2026
+ * Runs the server's control requests (JOINs and anything else that isn't a
+ * heartbeat) off the event loop, so a slow one can't hold up everybody's
+ * PINGs. Each request gets a virtual thread when the JVM has them (21+),
+ * otherwise it goes to a small pool of platform threads.
+ *
+ * At most maxInFlight requests run or wait at once. Past that, new ones are
+ * shed straight away instead of queueing. The loop never blocks on a full
+ * executor, and since it's all UDP the client just asks again.
+ *
+ * Turned on with -Dhac.server.mode=virtual. Other knobs:
+ *   hac.server.maxInFlight  requests in flight before shedding (1024)
+ *   hac.server.workers      pool size when there are no virtual threads
+ *                           (2 per core)
+ */
+
+package hac_server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+class ControlExecutor {
+  private final ExecutorService executor;
+  private final Semaphore permits;
+  private final boolean virtual;
+  private final LongAdder submitted = new LongAdder();
+  private final LongAdder shed = new LongAdder();
+  
+  /**
+   * @param maxInFlight most requests running or waiting at once
+   * @param workers pool size to fall back on without virtual threads
+   */
+  public ControlExecutor(int maxInFlight, int workers) {
+    ExecutorService v = newVirtualThreadExecutor();
+    this.virtual = v != null;
+    this.executor = v != null ? v : Executors.newFixedThreadPool(Math.max(1, workers), r -> {
+      Thread t = new Thread(r, "hac-control");
+      t.setDaemon(true);
+      return t;
+    });
+    this.permits = new Semaphore(Math.max(1, maxInFlight));
+  }
+  
+  /**
+   * @return an executor if hac.server.mode=virtual, otherwise null, meaning
+   *         control requests run inline on the loop like they always did
+   */
+  public static ControlExecutor fromSystemProperties() {
+    if(!"virtual".equalsIgnoreCase(System.getProperty("hac.server.mode", "inline")))
+      return null;
+    return new ControlExecutor(Integer.getInteger("hac.server.maxInFlight", 1024),
+        Integer.getInteger("hac.server.workers", 2 * Runtime.getRuntime().availableProcessors()));
+  }
+  
+  /**
+   * Hands a request over, unless too many are in flight already. Never
+   * blocks
+   * @param task the request
+   * @return false if the request was shed
+   */
+  public boolean submit(Runnable task) {
+    if(!this.permits.tryAcquire()) {
+      this.shed.increment();
+      return false;
+    }
+    try {
+      this.executor.execute(() -> {
+        try {
+          task.run();
+        }
+        catch(RuntimeException e) {
+          e.printStackTrace();
+        }
+        finally {
+          this.permits.release();
+        }
+      });
+    }
+    catch(RejectedExecutionException e) { // shutting down
+      this.permits.release();
+      this.shed.increment();
+      return false;
+    }
+    this.submitted.increment();
+    return true;
+  }
+  
+  /**
+   * @return whether requests get virtual threads rather than the pool
+   */
+  public boolean isVirtual() {
+    return this.virtual;
+  }
+  
+  public long getSubmitted() {
+    return this.submitted.sum();
+  }
+  
+  /**
+   * @return how many requests were dropped because too many were in flight
+   */
+  public long getShed() {
+    return this.shed.sum();
+  }
+  
+  public void shutdown() {
+    this.executor.shutdown();
+  }
+  
+  /**
+   * Looks up Executors.newVirtualThreadPerTaskExecutor() by reflection, so
+   * this still builds and runs on JVMs that predate it
+   * @return the executor, or null if this JVM doesn't have virtual threads
+   */
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    }
+    catch(ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,253 @@
+/**
+ * @version October 17, 2026
+ * Single-threaded event loop built on a Selector. Channel readiness,
+ * scheduled tasks and tasks handed over from other threads all run on the
+ * loop thread, one at a time, so none of them need locks and none of them
+ * block the others (as long as they don't block themselves).
+ */
+
+package hac_server;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+class EventLoop implements Runnable {
+  /**
+   * Called on the loop thread when a registered channel is ready
+   */
+  interface Handler {
+    void ready(SelectionKey key) throws IOException;
+  }
+
+  /**
+   * A task waiting for its turn. Periodic tasks reuse the same Timer every
+   * round, so scheduling them again allocates nothing.
+   */
+  static final class Timer implements Comparable<Timer> {
+    private final Runnable task;
+    private final long period;
+    private final long order;
+    private long deadline;
+    private boolean cancelled;
+
+    private Timer(Runnable task, long deadline, long period, long order) {
+      this.task = task;
+      this.deadline = deadline;
+      this.period = period;
+      this.order = order;
+    }
+
+    /**
+     * Stops the task from running again. Only call this on the loop thread
+     */
+    public void cancel() {
+      this.cancelled = true;
+    }
+
+    @Override
+    public int compareTo(Timer other) {
+      if(this.deadline != other.deadline)
+        return this.deadline < other.deadline ? -1 : 1;
+      return Long.compare(this.order, other.order);
+    }
+  }
+
+  private final Selector selector;
+  private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+  private final ConcurrentLinkedQueue<Runnable> submitted = new ConcurrentLinkedQueue<Runnable>();
+  // how many of submitted have been counted in, see runSubmitted()
+  private final AtomicInteger pending = new AtomicInteger();
+  private long timerCount = 0;
+  private volatile boolean running = true;
+  private volatile Thread thread = null;
+
+  // what to do with a channel's SelectionKey once select() says it's ready
+  private final Consumer<SelectionKey> dispatch = this::dispatch;
+
+  public EventLoop() throws IOException {
+    this.selector = Selector.open();
+  }
+
+  /**
+   * Registers a channel with the loop. The channel must already be in
+   * non-blocking mode. Only call this on the loop thread or before run()
+   * @param channel the channel to watch
+   * @param ops interest set, e.g. SelectionKey.OP_READ
+   * @param handler what to call when the channel is ready
+   * @return the channel's key
+   * @throws IOException if the channel can't be registered
+   */
+  public SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws IOException {
+    return channel.register(this.selector, ops, handler);
+  }
+
+  /**
+   * Runs a task once after a delay. Only call this on the loop thread or
+   * before run()
+   * @param delay millis to wait
+   * @param task what to run
+   * @return handle that can cancel the task
+   */
+  public Timer schedule(long delay, Runnable task) {
+    Timer t = new Timer(task, now() + delay, 0, this.timerCount++);
+    this.timers.add(t);
+    return t;
+  }
+
+  /**
+   * Runs a task over and over, period millis after each run started. If the
+   * loop falls behind, missed rounds are skipped rather than run back to back
+   * @param delay millis before the first run
+   * @param period millis between runs
+   * @param task what to run
+   * @return handle that can cancel the task
+   */
+  public Timer scheduleAtFixedRate(long delay, long period, Runnable task) {
+    if(period <= 0)
+      throw new IllegalArgumentException("period must be positive");
+    Timer t = new Timer(task, now() + delay, period, this.timerCount++);
+    this.timers.add(t);
+    return t;
+  }
+
+  /**
+   * Hands a task to the loop thread. Safe to call from any thread. A task
+   * handed over by another one runs on the next round, after the loop has
+   * had another look at its channels
+   * @param task what to run
+   */
+  public void execute(Runnable task) {
+    this.submitted.add(task);
+    this.pending.incrementAndGet();
+    if(!inLoop())
+      this.selector.wakeup();
+  }
+
+  /**
+   * @return whether the calling thread is the loop thread
+   */
+  public boolean inLoop() {
+    return Thread.currentThread() == this.thread;
+  }
+
+  /**
+   * @return whether run() has been called, so tasks handed over with
+   *         execute() will actually run
+   */
+  public boolean isStarted() {
+    return this.thread != null;
+  }
+
+  /**
+   * @return the loop's notion of the current time in millis
+   */
+  public long now() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Runs the loop on the calling thread until shutdown() is called
+   */
+  @Override
+  public void run() {
+    this.thread = Thread.currentThread();
+    try {
+      while(this.running) {
+        long timeout = this.submitted.isEmpty() ? untilNextTimer() : 0;
+        if(timeout == 0)
+          this.selector.selectNow(this.dispatch);
+        else
+          this.selector.select(this.dispatch, timeout < 0 ? 0 : timeout);
+
+        runTimers();
+        runSubmitted();
+      }
+    }
+    catch(IOException e) {
+      e.printStackTrace();
+    }
+    finally {
+      try {
+        this.selector.close();
+      }
+      catch(IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Stops the loop after the current round. Safe to call from any thread
+   */
+  public void shutdown() {
+    this.running = false;
+    this.selector.wakeup();
+  }
+
+  /**
+   * @return millis until the next timer is due, 0 if one is already due and
+   *         -1 if there are no timers at all
+   */
+  private long untilNextTimer() {
+    Timer next = this.timers.peek();
+    if(next == null)
+      return -1;
+    return Math.max(0, next.deadline - now());
+  }
+
+  private void dispatch(SelectionKey key) {
+    if(!key.isValid())
+      return;
+    try {
+      ((Handler) key.attachment()).ready(key);
+    }
+    catch(IOException e) { // one bad channel shouldn't take the loop down with it
+      e.printStackTrace();
+    }
+  }
+
+  private void runTimers() {
+    long now = now();
+    Timer t;
+    while((t = this.timers.peek()) != null && t.deadline <= now) {
+      this.timers.poll();
+      if(t.cancelled)
+        continue;
+      runSafely(t.task);
+      if(t.period > 0 && !t.cancelled) {
+        // skip any rounds we were too slow for
+        t.deadline += t.period * ((now - t.deadline) / t.period + 1);
+        this.timers.add(t);
+      }
+    }
+  }
+
+  /**
+   * Runs the tasks that were waiting when it was called, and no more. A
+   * task that hands itself over again (e.g. the next batch of a ping
+   * round) waits for the next round, so reads get in between. Every task
+   * is added before it's counted, so there are always at least as many
+   * waiting as were counted
+   */
+  private void runSubmitted() {
+    int count = this.pending.get();
+    for(int i = 0; i < count; i++)
+      runSafely(this.submitted.poll());
+    this.pending.addAndGet(-count);
+  }
+
+  private static void runSafely(Runnable task) {
+    try {
+      task.run();
+    }
+    catch(RuntimeException e) {
+      e.printStackTrace();
+    }
+  }
+}
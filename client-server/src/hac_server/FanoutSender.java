@@ -0,0 +1,203 @@
+/**
+ * @version October 17, 2026
+ * Sends one pre-encoded frame to every node in the membership table. The
+ * frame is encoded once; before each send only its sequence number and
+ * timestamp are stamped in, so a round allocates nothing per node.
+ *
+ * A round is sent in batches of batchSize. Between batches the loop gets to
+ * read and handle whatever came in, so a round to 10k nodes doesn't hold
+ * up the receive path. If the socket's send buffer fills up, the sender
+ * registers for OP_WRITE and picks up where it left off once the channel is
+ * writable again, rather than spinning or dropping the rest of the round.
+ *
+ * Nodes we sent something else to lately, an answer to their PING, DATA, a
+ * PROBE, are left out of the round: that was as good as a ping, and the
+ * HeartbeatScheduler says how lately is lately enough. So are a
+ * ClientHost's logical ids other than 0 while its id 0 is a member: they
+ * all share its socket, and the one ping to id 0 is heard by all of them.
+ *
+ * Loop thread only. Without a loop (under the simulator) a round goes out
+ * in one go, and anything the transport can't take is dropped.
+ */
+
+package hac_server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import hac_core.Clock;
+import hac_core.EventLog;
+import hac_core.HeartbeatScheduler;
+import hac_core.MembershipTable;
+import hac_core.Metrics;
+import hac_core.Transport;
+import packet_format.HACPacket;
+
+class FanoutSender implements Runnable {
+  private final Transport transport;
+  private final Clock clock;
+  private final SelectionKey key;
+  private final EventLoop loop;
+  private final ByteBuffer frame;
+  private final Metrics metrics;
+  private final int batchSize;
+  private final HeartbeatScheduler heartbeats;
+  
+  // the round being sent: targets[next..count) are still to go
+  private Node[] targets = new Node[64];
+  private int count = 0;
+  private int next = 0;
+  private boolean blocked = false;
+  private int sequence = 0;
+  private long roundStart = 0;
+  private MembershipTable<Node> table = null;
+  
+  private final Consumer<Node> collect = this::add;
+  
+  // counters, for anyone curious how rounds are going
+  private long rounds = 0;
+  private long sent = 0;
+  private long stalls = 0;
+  private long skipped = 0;
+  
+  /**
+   * @param transport where to send, normally the non-blocking channel
+   * @param clock what to stamp the pings with
+   * @param key the channel's key with the loop, for OP_WRITE interest, or
+   *        null if there's no loop
+   * @param loop the loop the channel is registered with, or null
+   * @param metrics where to count the pings
+   * @param frame the encoded frame, flipped so its limit is the end of the
+   *        packet. Owned by the sender from here on
+   * @param batchSize most sends before giving the loop a turn
+   * @param heartbeats says which nodes have had enough from us lately
+   */
+  FanoutSender(Transport transport, Clock clock, SelectionKey key, EventLoop loop, Metrics metrics,
+      ByteBuffer frame, int batchSize, HeartbeatScheduler heartbeats) {
+    this.transport = transport;
+    this.clock = clock;
+    this.key = key;
+    this.loop = loop;
+    this.frame = frame;
+    this.metrics = metrics;
+    this.batchSize = Math.max(1, batchSize);
+    this.heartbeats = heartbeats;
+  }
+  
+  /**
+   * Starts a round to everyone in the table. If the last round hasn't
+   * finished yet, whoever it hadn't got to yet is covered by this one.
+   * Nodes that aren't idle are skipped
+   * @param nodes who to send to
+   */
+  public void startRound(MembershipTable<Node> nodes) {
+    Arrays.fill(this.targets, this.next, this.count, null);
+    this.count = 0;
+    this.next = 0;
+    this.roundStart = this.clock.millis();
+    this.table = nodes;
+    nodes.forEach(this.collect);
+    this.table = null;
+    if(!this.blocked)
+      run();
+  }
+  
+  /**
+   * Sends the next batch. Schedules the batch after it, if there is one
+   */
+  @Override
+  public void run() {
+    if(this.blocked)
+      return;
+    long now = this.clock.millis();
+    int end = this.loop == null ? this.count : Math.min(this.count, this.next + this.batchSize);
+    while(this.next < end) {
+      Node n = this.targets[this.next];
+      HACPacket.stamp(this.frame, 0, this.sequence, now);
+      this.frame.rewind();
+      try {
+        if(this.transport.send(this.frame, n.getSocketAddress()) == 0) {
+          this.stalls++;
+          if(this.key != null) {
+            // send buffer's full, wait until there's room
+            this.blocked = true;
+            this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+            return;
+          }
+        }
+        else {
+          this.sent++;
+          this.metrics.sent(HACPacket.PacketType.PING);
+        }
+      }
+      catch(IOException e) { // one bad address shouldn't sink the round
+        EventLog.log(Server.SEND_FAILED, n.getKey(), e, 0);
+      }
+      this.sequence++;
+      this.targets[this.next++] = null;
+    }
+    if(this.next < this.count)
+      this.loop.execute(this);
+    else if(this.count > 0) {
+      this.rounds++;
+      this.count = 0;
+      this.next = 0;
+    }
+  }
+  
+  /**
+   * Call when the channel's key says it's writable
+   */
+  public void writable() {
+    this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE);
+    if(!this.blocked)
+      return; // it was someone else waiting, see Server.sendOrWait()
+    this.blocked = false;
+    run();
+  }
+  
+  /**
+   * @return whether a round is still being sent
+   */
+  public boolean isBusy() {
+    return this.next < this.count;
+  }
+  
+  public long getRounds() {
+    return this.rounds;
+  }
+  
+  public long getSent() {
+    return this.sent;
+  }
+  
+  /**
+   * @return how many times a round had to wait for the send buffer
+   */
+  public long getStalls() {
+    return this.stalls;
+  }
+  
+  /**
+   * @return how many pings were left out because the node wasn't idle, or
+   *         shares a socket with one that gets its own
+   */
+  public long getSkipped() {
+    return this.skipped;
+  }
+  
+  private void add(Node n) {
+    long key = n.getKey();
+    if(!this.heartbeats.isIdle(n.getLastSent(), this.roundStart)
+        || (MembershipTable.idOf(key) != 0 && this.table.get(MembershipTable.withId(key, 0)) != null)) {
+      this.skipped++;
+      return;
+    }
+    if(this.count == this.targets.length)
+      this.targets = Arrays.copyOf(this.targets, this.count * 2);
+    this.targets[this.count++] = n;
+  }
+}
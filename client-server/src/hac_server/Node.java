@@ -8,21 +8,42 @@
 package hac_server;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import hac_core.ArrivalWindow;
+import hac_core.MembershipTable;
+import hac_core.ReplayBuffer;
+import hac_core.TimingWheel;
 
 class Node {
   private final InetAddress ip;
   private final int port;
-  private long lastPingTime;
+  private final InetSocketAddress socketAddress;
+  private final long key;
+  private volatile long lastPingTime;
+  private volatile long lastSent = -1;
+  private final TimingWheel.Timeout<Node> expiry = new TimingWheel.Timeout<Node>(this);
+  private final ArrivalWindow arrivals;
+  private boolean suspect = false;
+  private volatile ReplayBuffer replay = null;
+  private int record = -1;
   
   /**
    * Constructor
    * @param ip the IP address for the client
    * @param port the port number for the client
+   * @param id the client's logical id, 0 unless it shares its socket, see
+   *        ClientHost
+   * @param arrivals where to keep the node's heartbeat history
+   * @param now when we first heard from it
    */
-  public Node(InetAddress ip, int port) {
+  public Node(InetAddress ip, int port, int id, ArrivalWindow arrivals, long now) {
     this.ip = ip;
     this.port = port;
-    this.lastPingTime = System.currentTimeMillis();
+    this.socketAddress = new InetSocketAddress(ip, port);
+    this.key = MembershipTable.withId(MembershipTable.pack(ip, port), id);
+    this.lastPingTime = now;
+    this.arrivals = arrivals;
   }
   
   /**
@@ -41,6 +62,22 @@ class Node {
     return this.port;
   }
   
+  /**
+   * Gets this IP and PORT together, built once so sends don't have to
+   * @return this address
+   */
+  public InetSocketAddress getSocketAddress() {
+    return this.socketAddress;
+  }
+  
+  /**
+   * Gets this IP and PORT packed into a MembershipTable key
+   * @return this key
+   */
+  public long getKey() {
+    return this.key;
+  }
+  
   /**
    * Gets the last time that the node pinged the server
    * @return the last time that the node pinged the server
@@ -57,12 +94,103 @@ class Node {
     this.lastPingTime = time;
   }
   
+  /**
+   * @return the last time we sent the node anything but a round of pings,
+   *         -1 if never
+   */
+  public long getLastSent() {
+    return this.lastSent;
+  }
+  
+  /**
+   * @param time the last time we sent the node anything but a round of
+   *        pings
+   */
+  public void setLastSent(long time) {
+    this.lastSent = time;
+  }
+  
+  /**
+   * Gets the timeout that goes off if this node stops pinging
+   * @return this node's timeout
+   */
+  public TimingWheel.Timeout<Node> getExpiry() {
+    return this.expiry;
+  }
+  
+  /**
+   * Gets the history the failure detector judges this node by
+   * @return this node's heartbeat history
+   */
+  public ArrivalWindow getArrivals() {
+    return this.arrivals;
+  }
+  
+  /**
+   * Whether this node's timeout went off and it's being probed indirectly.
+   * Only touched on the server's loop thread
+   * @return true if it's on its last chance
+   */
+  public boolean isSuspect() {
+    return this.suspect;
+  }
+  
+  /**
+   * Sets whether this node is being probed indirectly
+   * @param suspect true if it's on its last chance
+   */
+  public void setSuspect(boolean suspect) {
+    this.suspect = suspect;
+  }
+  
+  /**
+   * Gets the messages sent to this node that it could still ask for again.
+   * Only touched on the server's loop thread
+   * @return the node's replay buffer, null if it's never been sent any
+   */
+  public ReplayBuffer getReplay() {
+    return this.replay;
+  }
+  
+  /**
+   * Sets the buffer of messages sent to this node
+   * @param replay the buffer, or null
+   */
+  public void setReplay(ReplayBuffer replay) {
+    this.replay = replay;
+  }
+  
   /**
    * Checks if this is equal to that
    * @param other The other client
    * @return whether or not they are equal
    */
-  public boolean equals(Node other) {
-    return this.ip == other.ip && this.port == other.port;
+  @Override
+  public boolean equals(Object other) {
+    if(!(other instanceof Node))
+      return false;
+    Node that = (Node) other;
+    return this.key == that.key;
+  }
+  
+  @Override
+  public int hashCode() {
+    return Long.hashCode(this.key);
+  }
+  
+  /**
+   * Gets where this node is saved in the server's Checkpoint
+   * @return the node's record, -1 if it isn't saved
+   */
+  public int getRecord() {
+    return this.record;
+  }
+  
+  /**
+   * Sets where this node is saved in the server's Checkpoint
+   * @param record the node's record, -1 if it isn't saved
+   */
+  public void setRecord(int record) {
+    this.record = record;
   }
 }
@@ -4,77 +4,214 @@
  * @version March 6, 2021
  * 
  * This programs acts as the server mode for the HAC protocol
+ * 
+ * Everything runs on one event loop thread. With -Dhac.server.mode=virtual
+ * only heartbeats stay on it, and everything else (JOINs, SYNCs, BACKs and
+ * their replays) is worked out on a ControlExecutor so slow requests can't
+ * hold the heartbeats up. Only the finished replies come back to the loop,
+ * which does all the writing to the channel
+ * 
+ * The simulator runs it without a socket or a loop, see open(Transport,
+ * Clock, long)
+ * 
+ * With -Dhac.server.shards=N it runs as N shards on the same port, each
+ * with its own socket and loop thread, see ShardedServer
  */
 
 package hac_server;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.Inet4Address;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
-import java.security.SecureRandom;
-import java.util.ArrayList;
+import java.net.UnknownHostException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.SplittableRandom;
+import java.util.function.Consumer;
+
+import hac_core.Checkpoint;
+import hac_core.Clock;
+import hac_core.EventLog;
+import hac_core.FailureDetector;
+import hac_core.HeartbeatScheduler;
+import hac_core.MembershipListener;
+import hac_core.MembershipLog;
+import hac_core.MembershipTable;
+import hac_core.Metrics;
+import hac_core.ProbeRelay;
+import hac_core.ReplayBuffer;
+import hac_core.TimingWheel;
+import hac_core.Transport;
 
 import packet_format.HACPacket;
+import packet_format.HACPacketView;
 import packet_format.HACPacket.PacketTypeDataMismatchException;
 
 public class Server {
-	DatagramSocket socket = null;
-	ArrayList<Node> nodes = new ArrayList<Node>(); //yikes
-	ArrayList<String> cache = new ArrayList<String>();
-	final int PORT = 9876;
-	final int PACKET_SIZE = 1028;
-	
-	
-	public Server() {}
-	
-	/**
-	 * Listens for client messages and responds accordingly
-	 * @throws PacketTypeDataMismatchException 
-	 */
-	public void createAndListenSocket() throws PacketTypeDataMismatchException 
-	{
+  DatagramChannel channel = null;
+  EventLoop loop = null;
+  Transport transport = null;
+  Clock clock = Clock.SYSTEM;
+  TimingWheel<Node> timeouts = null;
+  final FailureDetector detector = FailureDetector.fromSystemProperties(CheckPings.MAX_TIME);
+  // paces the ping rounds, and says which nodes they can skip
+  final HeartbeatScheduler heartbeats = HeartbeatScheduler.fromSystemProperties(CheckPings.MAX_TIME);
+  MembershipTable<Node> nodes = new MembershipTable<Node>();
+  final int PORT = 9876;
+  final int PACKET_SIZE = HACPacket.MAX_PACKET_SIZE;
+  final int POOL_SIZE = 64;
+  
+  // how many datagrams to read per wakeup before letting timers have a go
+  final int MAX_READS_PER_WAKEUP = 256;
+  
+  // nanos the loop has spent handling packets, for SendPings to tell how
+  // busy it is
+  long busyNanos = 0;
+  
+  // how many pings to send in a row before letting reads have a go
+  final int FANOUT_BATCH = 512;
+  
+  // what goes in the event log. Packets are DEBUG, so they only show up
+  // with -Dhac.log.level=DEBUG (or the old -Dhac.verbose=true)
+  static final EventLog.Event RECEIVED = EventLog.event("server.received", EventLog.Level.DEBUG, "from", "type", null);
+  static final EventLog.Event SHED = EventLog.event("server.shed", EventLog.Level.WARN, "from", "type", null);
+  static final EventLog.Event JOINED = EventLog.event("server.joined", EventLog.Level.INFO, "node", null, null);
+  static final EventLog.Event DROPPED = EventLog.event("server.dropped", EventLog.Level.INFO, "node", null,
+      "quietMillis");
+  static final EventLog.Event REPLAYED = EventLog.event("server.replayed", EventLog.Level.INFO, "node", null,
+      "packets");
+  static final EventLog.Event RESTORED = EventLog.event("server.restored", EventLog.Level.INFO, null, null,
+      "nodes");
+  static final EventLog.Event SEND_FAILED = EventLog.event("server.sendFailed", EventLog.Level.WARN, "to", "error",
+      null);
+  static final EventLog.Event SEND_BLOCKED = EventLog.event("server.sendBlocked", EventLog.Level.WARN, "to", null,
+      "waiting");
+  static final EventLog.Event CONTROL_MODE = EventLog.event("server.controlMode", EventLog.Level.INFO, null,
+      "threads", null);
+  static final EventLog.Event CONTROL_DONE = EventLog.event("server.controlDone", EventLog.Level.INFO, null, "shed",
+      "run");
+  static final EventLog.Event ALLOCATED = EventLog.event("server.allocated", EventLog.Level.INFO, null,
+      "receivePath", null);
+  
+  // receive path state, reused for every datagram
+  final BufferPool buffers = new BufferPool(POOL_SIZE);
+  final HACPacketView view = new HACPacketView();
+  final AllocationCounter allocations = AllocationCounter.ENABLED ? new AllocationCounter() : null;
+  
+  // replies never change, so they are encoded once and resent as is
+  // (apart from the membership version in their body, see below)
+  ByteBuffer pingFrame = null;
+  ByteBuffer fanoutFrame = null;
+  // the PING back to a PING, flagged HACPacket.ANSWER and stamped with the
+  // sequence number of the one it answers, so the node can time it. Loop
+  // thread only
+  ByteBuffer answerFrame = null;
+  
+  // sends the periodic pings to everyone, see SendPings
+  FanoutSender fanout = null;
+  
+  // replies that can't be lost (DATA, and anything a control thread
+  // hands over) that found the socket's send buffer full, waiting in
+  // order for it to drain, see sendOrWait(). Loop thread only
+  SelectionKey key = null;
+  final ArrayDeque<PendingSend> blocked = new ArrayDeque<PendingSend>();
+  long sendStalls = 0;
+  
+  // handles nodes whose timeout went off, see tick()
+  private final CheckPings checker = new CheckPings();
+  
+  // told whenever a node joins or gets dropped
+  volatile MembershipListener listener = MembershipListener.NONE;
+  
+  // packet counts, timings and membership changes, shown over JMX
+  final Metrics metrics = new Metrics();
+  
+  // runs non-heartbeat requests off the loop, null to run them inline.
+  // What they share with the loop: the membership log, under its lock,
+  // and each ReplayBuffer, under its own
+  ControlExecutor control = ControlExecutor.fromSystemProperties();
+  
+  // PROBEs and PING_REQs differ per target, so they share one scratch frame
+  final ByteBuffer probeFrame = ByteBuffer.allocateDirect(HACPacket.HEADER_SIZE + ProbeRelay.BODY_SIZE);
+  int origin = 0;
+  int probeSequence = 0;
+  
+  // DATA sent to each node is kept in the node's ReplayBuffer, within a
+  // byte budget, so a node that missed some can ask for it again with a
+  // BACK. Dropped nodes keep theirs in case they come back, but only the
+  // last REPLAY_DEPARTED of them, so memory stays flat however many go
+  static final int REPLAY_BYTES = Integer.getInteger("hac.replay.bytes", 16 * 1024);
+  static final boolean REPLAY_OFF_HEAP = Boolean.getBoolean("hac.replay.offHeap");
+  static final int REPLAY_DEPARTED = Integer.getInteger("hac.replay.departed", 1024);
+  final LinkedHashMap<Long, ReplayBuffer> departed = new LinkedHashMap<Long, ReplayBuffer>();
+  final ByteBuffer dataFrame = ByteBuffer.allocateDirect(HACPacket.MAX_PACKET_SIZE);
+  
+  // every join and drop bumps the membership version, and every PING we
+  // send carries the latest one in its body. A node whose view is older
+  // asks with a SYNC and gets a GOTO with just what changed, see sync().
+  // The last MEMBERSHIP_HISTORY changes are kept for that, anyone further
+  // behind gets a snapshot
+  // The log is only touched while holding its lock, since shards share it
+  static final int MEMBERSHIP_HISTORY = Integer.getInteger("hac.membership.history", 4096);
+  MembershipLog membership = new MembershipLog(MEMBERSHIP_HISTORY);
+  int pingVersion = -1;
+  // what the loop answers a SYNC from, control threads get their own
+  final SyncState syncState = new SyncState(ByteBuffer.allocateDirect(HACPacket.MAX_PACKET_SIZE));
+  
+  // every node's last heartbeat, saved as it comes in so a restarted
+  // server starts with the nodes it had instead of an empty table. Off
+  // unless -Dhac.checkpoint.dir is set, see Checkpoint
+  Checkpoint checkpoint = null;
+  // what a shard's checkpoint is called, followed by its index
+  static final String CHECKPOINT_SHARD = "server-shard";
+  
+  // the other shards on our port and which one we are, see ShardedServer.
+  // null and -1 when running on our own
+  ShardedServer group = null;
+  int shard = -1;
+  
+  // the last few nodes we heard from, which is where helpers for indirect
+  // probes are picked from. Anyone in here was alive very recently
+  final int RECENT_SIZE = 64;
+  final Node[] recent = new Node[RECENT_SIZE];
+  int recentNext = 0;
+  final Node[] helpers = new Node[ProbeRelay.HELPERS];
+  // picks the helpers, loop thread only
+  SplittableRandom random = new SplittableRandom();
+  
+  public Server() {}
+  
+  /**
+   * Opens the socket and runs the event loop on the calling thread. Incoming
+   * packets, outgoing pings and the timeout sweep all take turns on that one
+   * thread, so nothing here needs a lock
+   * @throws PacketTypeDataMismatchException 
+   */
+  public void createAndListenSocket() throws PacketTypeDataMismatchException 
+  {
+    createAndListenSocket(PORT);
+  }
+  
+  /**
+   * Same as createAndListenSocket(), on a port other than the usual one
+   * @param port port to listen on
+   * @throws PacketTypeDataMismatchException 
+   */
+  public void createAndListenSocket(int port) throws PacketTypeDataMismatchException 
+  {
     try 
     {
-      //makes the socket
-      socket = new DatagramSocket(PORT);
-      byte[] incomingData = new byte[PACKET_SIZE];
-      
-      new SendPings().run();
-      new CheckPings().run();
-      
-      while (true) 
-      {
-        //listens for shit
-        DatagramPacket incomingPacket = new DatagramPacket(incomingData, incomingData.length);
-        socket.receive(incomingPacket);
-        HACPacket packet = new HACPacket(incomingPacket.getData());
-        
-        String message = new String(incomingPacket.getData());
-        InetAddress IPAddress = incomingPacket.getAddress();
-        int port = incomingPacket.getPort();
-        
-        //bleep bloop, now it's on your screen
-        System.out.println("Received message from client: " + message);
-        System.out.println("Client IP: "+ IPAddress.getHostAddress());
-        System.out.println("Client port: " + port);
-        
-        //split up that bad boy and get the first word
-        HACPacket.PacketType command = packet.getPacketType();
-        
-        if(command.equals(HACPacket.PacketType.INIT)) {
-          HACPacket reply = new HACPacket(0,  
-              (Inet4Address) Inet4Address.getLocalHost(), HACPacket.PacketType.STATUS);
-          socket.send(reply.buildDatagramPacket(IPAddress, port));
-        }
-        else 
-          //sends a pingy boi
-          socket.send(new HACPacket(0,  
-              (Inet4Address) Inet4Address.getLocalHost(), 
-              HACPacket.PacketType.PING).buildDatagramPacket(IPAddress, port));
-      }
+      open(port);
+      listen();
     } 
     catch (SocketException e) 
     {
@@ -84,93 +221,1055 @@ public class Server {
     {
       i.printStackTrace();
     } 
-	}
-	
-	/**
-	 * read the name of the method
-	 */
-	public void closeSocket() {
-	  this.socket.close();
-	}
-	
-	/**
-	 * @author josh
-	 * Sends pings periodically to let nodes know that the server
-	 * is still alive and available
-	 */
-	private class SendPings extends Thread {
-	  //both variables are used to calculate time to send
-	  private SecureRandom rand = new SecureRandom();
-	  private static final long MAX_TIME = 30000;
-	  
-	  /**
-	   * Sends pings periodically to let nodes know that the server
-	   * is still alive and available
-	   */
-	  @Override
-	  public void run() {
-	    super.run(); // ?
-	    
-	    while(true) { // while go brrr
-  	    long temp = rand.nextLong(); //temp location to make sure that value is valid
-  	    try {
-          Thread.sleep(temp >= 0 ? temp % MAX_TIME : -temp % MAX_TIME); // sleep for abs(temp % MAX_TIME) millis
-          for(Node n : nodes) // for each node in the node list
-            socket.send(new HACPacket(0,  
-                (Inet4Address) Inet4Address.getLocalHost(), 
-                HACPacket.PacketType.PING).buildDatagramPacket(n.getIp(), n.getPort()));
-        } catch (InterruptedException e) { // uh-oh
-          System.out.println("lol computer borked");
-          e.printStackTrace(/* say wtf happened and where*/);
+  }
+  
+  /**
+   * Opens the socket and sets up everything the loop needs, without
+   * starting anything. Benchmarks use this to drive handle() by hand
+   * @param port port to bind, 0 for any
+   * @throws IOException if the socket can't be opened
+   * @throws PacketTypeDataMismatchException never, the frames are all valid
+   */
+  public void open(int port) throws IOException, PacketTypeDataMismatchException {
+    open(port, null, -1);
+  }
+  
+  /**
+   * Same as open(int), as one shard of a ShardedServer. The socket is bound
+   * with SO_REUSEPORT so the other shards can bind the same port, and the
+   * membership log is the group's
+   * @param port port to bind
+   * @param group the shards, null if this server runs on its own
+   * @param shard which shard this is
+   */
+  void open(int port, ShardedServer group, int shard) throws IOException, PacketTypeDataMismatchException {
+    this.group = group;
+    this.shard = shard;
+    if(group != null)
+      membership = group.membership;
+    
+    //makes the socket
+    channel = DatagramChannel.open(StandardProtocolFamily.INET);
+    channel.configureBlocking(false);
+    if(group != null)
+      channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+    channel.bind(new InetSocketAddress(port));
+    
+    loop = new EventLoop();
+    SelectionKey key = loop.register(channel, SelectionKey.OP_READ, this::ready);
+    setUp(channel::send, Clock.SYSTEM, key);
+    int bound = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    if(group != null)
+      metrics.register("Server", bound, shard);
+    else
+      metrics.register("Server", bound);
+    if(port != 0) { // a throwaway port would leave a throwaway file
+      checkpoint = Checkpoint.fromSystemProperties(group != null ? CHECKPOINT_SHARD + shard : "server", bound);
+      if(checkpoint != null)
+        restore();
+    }
+  }
+  
+  /**
+   * Starts the pings and the timeout checks, then runs the loop on the
+   * calling thread until closeSocket()
+   */
+  void listen() {
+    if(control != null)
+      EventLog.log(CONTROL_MODE, 0, control.isVirtual() ? "virtual" : "pool", 0);
+    
+    SendPings pinger = new SendPings();
+    loop.schedule(pinger.nextDelay(), pinger);
+    loop.scheduleAtFixedRate(CheckPings.TICK, CheckPings.TICK, this::tick);
+    
+    loop.run();
+  }
+  
+  /**
+   * Sets the server up to run on something other than a real socket, with
+   * no loop and no threads of its own. The caller feeds it packets through
+   * handle() and calls pingRound() and tick() when it's time, all from one
+   * thread. Control requests always run inline, and helpers for indirect
+   * probes are picked with the given seed, so a run can be replayed exactly
+   * @param transport where replies, pings and probes go
+   * @param clock where the time comes from
+   * @param seed seed for picking probe helpers
+   * @throws IOException if the local address can't be looked up
+   * @throws PacketTypeDataMismatchException never, the frames are all valid
+   */
+  public void open(Transport transport, Clock clock, long seed)
+      throws IOException, PacketTypeDataMismatchException {
+    if(control != null) {
+      control.shutdown();
+      control = null;
+    }
+    random = new SplittableRandom(seed);
+    setUp(transport, clock, null);
+  }
+  
+  /**
+   * Encodes the frames and builds the fanout and the timeouts
+   * @param key the channel's key with the loop, null if there's no loop
+   */
+  private void setUp(Transport transport, Clock clock, SelectionKey key)
+      throws UnknownHostException, PacketTypeDataMismatchException {
+    this.transport = transport;
+    this.clock = clock;
+    this.key = key;
+    
+    Inet4Address local = (Inet4Address) Inet4Address.getLocalHost();
+    origin = HACPacket.ipv4ToInt(local);
+    pingFrame = encodeFrame(new HACPacket(0, local, HACPacket.PacketType.PING, new byte[4]));
+    
+    // its own copy of the ping, since it stamps every send
+    fanoutFrame = encodeFrame(new HACPacket(0, local, HACPacket.PacketType.PING, new byte[4]));
+    answerFrame = encodeFrame(new HACPacket(HACPacket.ANSWER, local, HACPacket.PacketType.PING, new byte[4]));
+    fanout = new FanoutSender(transport, clock, key, loop, metrics, fanoutFrame, FANOUT_BATCH, heartbeats);
+    versionChanged();
+    
+    timeouts = new TimingWheel<Node>(CheckPings.TICK, clock.millis());
+  }
+  
+  /**
+   * Called by the loop when the channel can be read, or written after a
+   * ping round filled up the send buffer
+   * @param key the channel's key
+   * @throws IOException if the channel breaks
+   */
+  private void ready(SelectionKey key) throws IOException {
+    if(key.isWritable()) {
+      fanout.writable();
+      drainBlocked();
+    }
+    if(key.isReadable())
+      receive(key);
+  }
+  
+  /**
+   * Reads whatever datagrams are waiting, up to MAX_READS_PER_WAKEUP of them
+   * @param key the channel's key
+   * @throws IOException if the channel breaks
+   */
+  private void receive(SelectionKey key) throws IOException {
+    for(int i = 0; i < MAX_READS_PER_WAKEUP; i++) {
+      if(allocations != null)
+        allocations.begin();
+      
+      //listens for stuff
+      ByteBuffer buf = buffers.acquire();
+      SocketAddress sender = channel.receive(buf);
+      if(sender == null) { // nothing left to read
+        buffers.release(buf);
+        return;
+      }
+      buf.flip();
+      
+      // junk that isn't a HAC packet gets dropped on the floor
+      if(view.wrap(buf, 0)) {
+        long start = System.nanoTime();
+        handle(view, sender);
+        long spent = System.nanoTime() - start;
+        metrics.receiveTime(spent);
+        busyNanos += spent;
+        if(allocations != null && view.getPacketType() == HACPacket.PacketType.PING)
+          allocations.end();
+      }
+      buffers.release(buf);
+    }
+  }
+  
+  /**
+   * Responds to a single received packet
+   * @param packet view of the packet, only valid until this returns
+   * @param sender where the packet came from
+   * @throws IOException if the reply can't be sent
+   */
+  public void handle(HACPacketView packet, SocketAddress sender) throws IOException {
+    HACPacket.PacketType command = packet.getPacketType();
+    InetSocketAddress from = (InetSocketAddress) sender;
+    metrics.received(command);
+    long key = MembershipTable.withId(MembershipTable.pack(from), packet.getSenderId());
+    
+    //bleep bloop, now it's in the log (but only if you asked)
+    EventLog.log(RECEIVED, key, command, 0);
+    
+    // anyone who talks to us is alive, and anyone we haven't met gets added
+    long now = clock.millis();
+    Node node = heard(key, from, now);
+    if(command == HACPacket.PacketType.PING && (packet.getSenderId() & HACPacket.LISTS_IDS) != 0
+        && (packet.getBodyLength() & 1) == 0)
+      heardFrom(key, packet, from, now);
+    
+    if(command == HACPacket.PacketType.PROBE_ACK)
+      vouch(ProbeRelay.readTarget(packet.buffer(), packet.bodyOffset(), packet.getBodyLength()), now);
+    else if(command == HACPacket.PacketType.ACK)
+      return; // answer to one of our PROBEs, hearing from it was the point
+    else if(command == HACPacket.PacketType.PING) {
+      HACPacket.stamp(answerFrame, 0, packet.getSequence(), now);
+      send(answerFrame, HACPacket.PacketType.PING, sender); //sends a pingy boi
+      node.setLastSent(now);
+    }
+    else {
+      // anything but a JOIN, SYNC or BACK only gets a PING back if we've
+      // been quiet with it for a while, the packet itself already counted
+      // as its heartbeat
+      boolean answer = command == HACPacket.PacketType.INIT || command == HACPacket.PacketType.SYNC
+          || command == HACPacket.PacketType.BACK || heartbeats.isIdle(node.getLastSent(), now);
+      if(answer)
+        node.setLastSent(now);
+      if(control == null)
+        serve(node, command, packet.buffer(), packet.bodyOffset(), packet.getBodyLength(), sender, answer);
+      else {
+        // the view's buffer goes back to the pool when we return, so the
+        // request gets its own copy
+        byte[] body = packet.copyBody();
+        if(!control.submit(() -> serve(node, command, ByteBuffer.wrap(body), 0, body.length, sender, answer)))
+          EventLog.log(SHED, key, command, 0);
+      }
+    }
+  }
+  
+  /**
+   * Counts a packet as a heartbeat from a node, adding the node if it's new
+   * @param key packed address of the node, tagged with its logical id
+   * @param from where the packet came from
+   * @param now when it arrived
+   * @return the node
+   */
+  private Node heard(long key, InetSocketAddress from, long now) {
+    Node node = nodes.get(key);
+    if(node == null) {
+      node = new Node(from.getAddress(), from.getPort(), MembershipTable.idOf(key), detector.newHistory(), now);
+      node.setReplay(departed.remove(key));
+      if(checkpoint != null)
+        node.setRecord(checkpoint.claim(key));
+      nodes.put(key, node);
+      // with shards, it may only be new to us: the kernel sent it to
+      // another shard before, e.g. before a restart
+      if(group == null || !group.claim(key, this)) {
+        synchronized(membership) {
+          membership.joined(key);
+        }
+        versionChanged();
+        metrics.nodeUp();
+        EventLog.log(JOINED, key, null, 0);
+        listener.nodeUp(key, now);
+      }
+    }
+    else {
+      node.setLPTime(now);
+      metrics.heartbeatInterval(now - node.getArrivals().lastArrival());
+    }
+    if(checkpoint != null)
+      checkpoint.heard(node.getRecord(), now);
+    node.setSuspect(false);
+    detector.heartbeat(node.getArrivals(), now);
+    timeouts.schedule(node.getExpiry(), detector.suspectAt(node.getArrivals()));
+    recent[recentNext++ & (RECENT_SIZE - 1)] = node;
+    return node;
+  }
+  
+  /**
+   * Counts a ClientHost's PING as a heartbeat from every logical client its
+   * body lists, so one packet keeps a whole host's worth of them alive. Only
+   * for a PING whose sender id says its body is a list, HACPacket.LISTS_IDS:
+   * any other PING body (our own membership version, gossip) would turn
+   * into made up ids. See ClientHost for the body's layout
+   * @param key packed address of the socket
+   * @param packet the PING
+   * @param from where it came from
+   * @param now when it arrived
+   */
+  private void heardFrom(long key, HACPacketView packet, InetSocketAddress from, long now) {
+    ByteBuffer body = packet.buffer();
+    int end = packet.bodyOffset() + packet.getBodyLength();
+    for(int pos = packet.bodyOffset(); pos + 2 <= end; pos += 2) {
+      int id = body.getShort(pos) & 0xFFFF;
+      if(id != MembershipTable.idOf(key))
+        heard(MembershipTable.withId(key, id), from, now);
+    }
+  }
+  
+  /**
+   * Answers a control request, i.e. anything but a heartbeat: a JOIN gets
+   * a GOTO, a SYNC what changed, a BACK its replay, and anything else a
+   * PING if it's due one. Runs on the loop, or on a ControlExecutor thread
+   * in virtual mode, in which case the replies are sent by the loop, see
+   * reply()
+   * @param node who it came from
+   * @param command what it is
+   * @param body buffer holding its body
+   * @param offset index of the first body byte
+   * @param length length of the body
+   * @param sender where it came from
+   * @param answer whether to answer anything but a JOIN, SYNC or BACK with
+   *        a PING
+   */
+  void serve(Node node, HACPacket.PacketType command, ByteBuffer body, int offset, int length,
+      SocketAddress sender, boolean answer) {
+    int since = length >= 4 ? body.getInt(offset) : 0;
+    try {
+      if(command == HACPacket.PacketType.INIT)
+        // the GOTO is a SYNC from the current version, so all it says is
+        // what that version is
+        sync(membershipVersion(), sender);
+      else if(command == HACPacket.PacketType.SYNC)
+        sync(since, sender);
+      else if(command == HACPacket.PacketType.BACK)
+        replay(node, since, sender);
+      else if(answer)
+        reply(pingFrame, HACPacket.PacketType.PING, sender);
+    }
+    catch (IOException e) {
+      EventLog.log(SEND_FAILED, MembershipTable.pack((InetSocketAddress) sender), e, 0);
+    }
+  }
+  
+  /**
+   * Sends a reply from whichever thread we're on. A control thread hands
+   * the loop a copy to send, so the frame is free to be reused as soon as
+   * this returns, and only the loop ever writes to the channel. Anyone
+   * else, i.e. the loop or whoever drives handle() by hand, sends it
+   * straight away
+   * @param frame the frame, its limit marks the end of the packet
+   * @param type what's in the frame, for the metrics
+   * @param to where to send it
+   * @throws IOException if the send fails
+   */
+  private void reply(ByteBuffer frame, HACPacket.PacketType type, SocketAddress to) throws IOException {
+    if(!onControlThread()) {
+      send(frame, type, to);
+      return;
+    }
+    ByteBuffer copy = ByteBuffer.allocate(frame.limit());
+    copy.put(frame.duplicate().rewind()).flip();
+    loop.execute(() -> {
+      try {
+        sendOrWait(MembershipTable.pack((InetSocketAddress) to), () -> send(copy, type, to) != 0);
+      }
+      catch (IOException e) {
+        EventLog.log(SEND_FAILED, MembershipTable.pack((InetSocketAddress) to), e, 0);
+      }
+    });
+  }
+  
+  /**
+   * @return whether we're on one of the ControlExecutor's threads, rather
+   *         than the loop or (with no ControlExecutor) whoever is driving
+   *         handle()
+   */
+  private boolean onControlThread() {
+    return control != null && !loop.inLoop();
+  }
+  
+  /**
+   * Sends a message to a node as DATA, keeping a copy in its ReplayBuffer
+   * in case it has to be sent again. A node that's been dropped only gets
+   * it kept, for when it comes back, and one we've never heard of doesn't
+   * get it at all. Safe to call from any thread once listen() has started
+   * the loop; before that, only from the thread that opened the server
+   * @param key packed address of the node, see MembershipTable
+   * @param message the message, at most ReplayBuffer.MAX_MESSAGE bytes
+   * @throws IllegalArgumentException if the message is too long
+   */
+  public void publish(long key, byte[] message) {
+    if(message.length > ReplayBuffer.MAX_MESSAGE)
+      throw new IllegalArgumentException("message is " + message.length + " bytes, max is "
+          + ReplayBuffer.MAX_MESSAGE);
+    if(loop != null && loop.isStarted() && !loop.inLoop())
+      loop.execute(() -> deliver(key, message));
+    else
+      deliver(key, message);
+  }
+  
+  private void deliver(long key, byte[] message) {
+    Node n = nodes.get(key);
+    ReplayBuffer replay = n != null ? n.getReplay() : departed.get(key);
+    if(n != null && replay == null) {
+      replay = new ReplayBuffer(REPLAY_BYTES, REPLAY_OFF_HEAP);
+      n.setReplay(replay);
+    }
+    if(replay == null)
+      return; // never heard of it
+    int seq;
+    synchronized(replay) { // a control thread may be replaying from it
+      seq = replay.append(ByteBuffer.wrap(message));
+    }
+    if(n == null || n.isSuspect())
+      return; // it'll have to ask
+    try {
+      sendOrWait(key, new Resend(n, replay, seq - 1));
+    }
+    catch (IOException e) {
+      EventLog.log(SEND_FAILED, key, e, 0);
+    }
+  }
+  
+  /**
+   * Handles a BACK, a node saying it missed some DATA. Its body holds the
+   * last sequence number it got, and it gets everything after that which
+   * is still in its ReplayBuffer, as many messages to a packet as fit.
+   * Anything already evicted is gone, and the node sees that from the
+   * sequence numbers. A node with nothing to replay just gets a PING. Runs
+   * wherever serve() does
+   * @param n the node
+   * @param after the last sequence number it got
+   * @param sender where it came from
+   * @throws IOException if a send fails
+   */
+  private void replay(Node n, int after, SocketAddress sender) throws IOException {
+    ReplayBuffer replay = n.getReplay();
+    int packets = 0;
+    boolean waiting = false;
+    if(replay != null && !onControlThread()) {
+      Resend resend = new Resend(n, replay, after);
+      waiting = !sendOrWait(n.getKey(), resend);
+      packets = resend.packets;
+    }
+    else if(replay != null) {
+      // the loop's dataFrame may be in use, and reply() copies it anyway
+      ByteBuffer frame = ByteBuffer.allocate(HACPacket.MAX_PACKET_SIZE);
+      for(int last; (last = fillData(n, replay, after, frame)) != after; after = last) {
+        reply(frame, HACPacket.PacketType.DATA, n.getSocketAddress());
+        n.setLastSent(clock.millis());
+        packets++;
+      }
+    }
+    if(packets == 0 && !waiting) {
+      reply(pingFrame, HACPacket.PacketType.PING, sender);
+      n.setLastSent(clock.millis());
+    }
+    EventLog.log(REPLAYED, n.getKey(), null, packets);
+  }
+  
+  /**
+   * Puts together one DATA packet holding as many of a node's messages
+   * after the given sequence number as fit. See ReplayBuffer for the body's
+   * layout
+   * @param n the node
+   * @param replay its messages
+   * @param after last sequence number it doesn't need
+   * @param frame where to put the packet together, flipped once it's done
+   * @return last sequence number in the packet, or after if there was
+   *         nothing to send
+   */
+  private int fillData(Node n, ReplayBuffer replay, int after, ByteBuffer frame) {
+    frame.clear();
+    frame.position(HACPacket.HEADER_SIZE + ReplayBuffer.BATCH_HEADER);
+    int last;
+    synchronized(replay) {
+      last = replay.copyAfter(after, frame);
+    }
+    if(last == after)
+      return after;
+    int first = frame.getInt(HACPacket.HEADER_SIZE + ReplayBuffer.BATCH_HEADER);
+    frame.put(HACPacket.HEADER_SIZE, (byte) (last - first + 1));
+    HACPacket.encodeHeader(frame, 0, HACPacket.PacketType.DATA, MembershipTable.idOf(n.getKey()), origin, first,
+        clock.millis(), frame.position() - HACPacket.HEADER_SIZE);
+    frame.flip();
+    return last;
+  }
+  
+  /**
+   * Something to send that mustn't be dropped just because the socket's
+   * send buffer is full
+   */
+  private interface PendingSend {
+    /**
+     * Sends as much as the socket takes
+     * @return whether it's all gone, false to be called again once the
+     *         socket is writable
+     * @throws IOException if a send fails
+     */
+    boolean resume() throws IOException;
+  }
+  
+  /**
+   * Sends a node its messages after a given one from the loop, a DATA
+   * packet at a time out of dataFrame. If the socket's send buffer fills
+   * up it stops, and picks up from the first packet that didn't go out
+   */
+  private class Resend implements PendingSend {
+    private final Node n;
+    private final ReplayBuffer replay;
+    private int after;
+    int packets = 0;
+    
+    Resend(Node n, ReplayBuffer replay, int after) {
+      this.n = n;
+      this.replay = replay;
+      this.after = after;
+    }
+    
+    @Override
+    public boolean resume() throws IOException {
+      for(int last; (last = fillData(n, replay, after, dataFrame)) != after; after = last) {
+        if(send(dataFrame, HACPacket.PacketType.DATA, n.getSocketAddress()) == 0)
+          return false;
+        n.setLastSent(clock.millis());
+        packets++;
+      }
+      return true;
+    }
+  }
+  
+  /**
+   * Sends something from the loop, or if the socket's send buffer is full,
+   * or others are already waiting for it, queues it to go once the buffer
+   * drains, in order. Without a loop there's nothing to wait for, and
+   * whatever didn't go out is dropped. Either way it's counted and logged
+   * @param to packed address it's for, for the log
+   * @param send what to send
+   * @return whether it all went out now
+   * @throws IOException if a send fails
+   */
+  private boolean sendOrWait(long to, PendingSend send) throws IOException {
+    if(blocked.isEmpty() && send.resume())
+      return true;
+    sendStalls++;
+    if(blocked.isEmpty())
+      EventLog.log(SEND_BLOCKED, to, null, blocked.size() + 1);
+    if(key == null)
+      return false;
+    blocked.add(send);
+    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    return false;
+  }
+  
+  /**
+   * Sends whatever was waiting for the socket, in order, until it's all
+   * gone or the send buffer fills up again
+   */
+  private void drainBlocked() {
+    while(!blocked.isEmpty()) {
+      try {
+        if(!blocked.peek().resume()) {
+          key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+          return;
+        }
+      }
+      catch (IOException e) { // gets dropped, same as the network would
+        EventLog.log(SEND_FAILED, 0, e, 0);
+      }
+      blocked.poll();
+    }
+  }
+  
+  /**
+   * What a SYNC is answered from: the changes since the node's version, or
+   * every member, copied out of the log so the packets can be put together
+   * and sent after its lock is let go
+   */
+  private static final class SyncState {
+    final ByteBuffer frame;
+    long[] keys = new long[64];
+    boolean[] joined = new boolean[64];
+    int count = 0;
+    int version = 0;
+    boolean delta = false;
+    
+    SyncState(ByteBuffer frame) {
+      this.frame = frame;
+    }
+    
+    /**
+     * Makes sure there's room for the given number of keys
+     */
+    void ensure(int size) {
+      if(keys.length < size) {
+        keys = new long[Integer.highestOneBit(size) * 2];
+        joined = new boolean[keys.length];
+      }
+    }
+  }
+  
+  /**
+   * Answers a SYNC with one or more GOTOs holding what changed in the
+   * membership since the node's version: a delta if every change since
+   * then is still in the log and there are fewer of them than members,
+   * otherwise a snapshot of everyone. A node that's up to date gets an
+   * empty delta. See MembershipLog for the body's layout. Runs wherever
+   * serve() does. The log's lock is only held while the changes or the
+   * members are copied out, so a big snapshot doesn't hold up joins and
+   * drops on the loop (or the other shards) while it's sent
+   * @param since the version the node has
+   * @param sender where to send it
+   */
+  private void sync(int since, SocketAddress sender) {
+    SyncState s = onControlThread() ? new SyncState(ByteBuffer.allocate(HACPacket.MAX_PACKET_SIZE)) : syncState;
+    synchronized(membership) {
+      s.version = membership.version();
+      s.delta = membership.hasSince(since) && s.version - since <= (group != null ? group.size() : nodes.size());
+      if(s.delta) {
+        s.ensure(s.version - since);
+        s.count = membership.copySince(since, s.keys, s.joined);
+      }
+      else
+        collectMembers(s);
+    }
+    
+    try {
+      int at = 0;
+      do {
+        s.frame.clear().position(HACPacket.HEADER_SIZE);
+        if(s.delta)
+          at = MembershipLog.writeDelta(s.frame, since, s.keys, s.joined, s.count, at);
+        else
+          at = MembershipLog.writeSnapshot(s.frame, s.version, s.keys, s.count, at);
+        sendStatus(s, sender);
+      } while(at < s.count);
+    }
+    catch (IOException e) {
+      EventLog.log(SEND_FAILED, MembershipTable.pack((InetSocketAddress) sender), e, 0);
+    }
+  }
+  
+  private void sendStatus(SyncState s, SocketAddress to) throws IOException {
+    HACPacket.encodeHeader(s.frame, 0, HACPacket.PacketType.STATUS, 0, origin, s.version, clock.millis(),
+        s.frame.position() - HACPacket.HEADER_SIZE);
+    s.frame.flip();
+    reply(s.frame, HACPacket.PacketType.STATUS, to);
+  }
+  
+  /**
+   * Copies every member's key into s, growing it if need be. With shards
+   * that's the members of every shard. Call with the log's lock held: a
+   * node goes into the table before its join is logged, and out of it
+   * before its drop is, so at worst the copy is a change ahead of the
+   * version, and the node's next delta says the same thing again
+   */
+  private void collectMembers(SyncState s) {
+    s.ensure(group != null ? group.size() : nodes.size());
+    s.count = 0;
+    Consumer<Node> add = n -> {
+      if(s.count < s.keys.length)
+        s.keys[s.count++] = n.getKey();
+    };
+    if(group == null)
+      nodes.forEach(add);
+    else
+      // one that's being handed over is in two shards' tables for a
+      // moment, but only one owns it
+      for(Server other : group.shards)
+        other.nodes.forEach(n -> {
+          if(group.owner(n.getKey()) == other)
+            add.accept(n);
+        });
+  }
+  
+  /**
+   * Brings back the nodes saved in the checkpoint by the last server on
+   * this port, as if each had just pinged at the time it last did. So one
+   * that's been quiet too long gets probed on the first tick rather than a
+   * whole timeout later, and the rest carry on as if nothing happened
+   */
+  private void restore() {
+    int restored = checkpoint.restore(clock.millis(),
+        (key, lastHeard, flags, incarnation, record) -> restore(key, lastHeard, record));
+    versionChanged();
+    EventLog.log(RESTORED, 0, null, restored);
+  }
+  
+  /**
+   * Takes in the nodes saved in a checkpoint no shard uses any more, one
+   * left behind by a run with more shards, as if we'd saved them. They get
+   * records in our own checkpoint, and the old one ends up empty. Call
+   * before the loop starts, after restore()
+   * @param from the old checkpoint
+   */
+  void adopt(Checkpoint from) {
+    int restored = from.restore(clock.millis(), (key, lastHeard, flags, incarnation, record) -> {
+      if(nodes.get(key) == null) {
+        int ours = checkpoint.claim(key);
+        checkpoint.heard(ours, lastHeard);
+        restore(key, lastHeard, ours);
+      }
+      return false; // it's in our checkpoint now
+    });
+    versionChanged();
+    EventLog.log(RESTORED, 0, null, restored);
+  }
+  
+  /**
+   * Brings back one saved node
+   * @param key packed address of the node
+   * @param lastHeard when it was last heard from
+   * @param record its record in our checkpoint
+   * @return true
+   */
+  private boolean restore(long key, long lastHeard, int record) {
+    Node n = new Node(MembershipTable.inetAddressOf(key), MembershipTable.portOf(key), MembershipTable.idOf(key),
+        detector.newHistory(), lastHeard);
+    n.setRecord(record);
+    nodes.put(key, n);
+    if(group == null || !group.claim(key, this)) {
+      synchronized(membership) {
+        membership.joined(key);
+      }
+      metrics.nodeUp();
+    }
+    detector.heartbeat(n.getArrivals(), lastHeard);
+    timeouts.schedule(n.getExpiry(), detector.suspectAt(n.getArrivals()));
+    return true;
+  }
+  
+  /**
+   * Puts the latest membership version in the PINGs
+   */
+  private void versionChanged() {
+    pingVersion = membershipVersion();
+    pingFrame.putInt(HACPacket.HEADER_SIZE, pingVersion);
+    fanoutFrame.putInt(HACPacket.HEADER_SIZE, pingVersion);
+    answerFrame.putInt(HACPacket.HEADER_SIZE, pingVersion);
+  }
+  
+  private int membershipVersion() {
+    synchronized(membership) {
+      return membership.version();
+    }
+  }
+  
+  /**
+   * Forgets a node without calling it dropped, because it's moved to
+   * another shard. Its replay buffer goes with it. Loop thread only
+   * @param key packed address of the node
+   * @param to the shard that has it now
+   */
+  void forget(long key, Server to) {
+    Node n = nodes.get(key);
+    if(n == null || nodes.remove(key, n) == null)
+      return;
+    timeouts.cancel(n.getExpiry());
+    if(checkpoint != null)
+      checkpoint.release(n.getRecord());
+    ReplayBuffer replay = n.getReplay();
+    if(replay != null)
+      to.loop.execute(() -> {
+        Node m = to.nodes.get(key);
+        if(m != null && m.getReplay() == null)
+          m.setReplay(replay);
+      });
+  }
+  
+  /**
+   * Handles a PROBE_ACK, a client we asked to check on a suspect saying the
+   * suspect answered it. That counts as a heartbeat from the suspect. With
+   * shards, a suspect that isn't ours is passed on to the shard it's on
+   * @param key packed address of the suspect, from the PROBE_ACK's body
+   * @param now the current time
+   */
+  void vouch(long key, long now) {
+    Node target = key == 0 ? null : nodes.get(key);
+    if(target == null && key != 0 && group != null) {
+      // the helper's packets come to its own shard, not the suspect's
+      Server owner = group.owner(key);
+      if(owner != null && owner != this)
+        owner.loop.execute(() -> owner.vouch(key, now));
+      return;
+    }
+    if(target == null || !target.isSuspect())
+      return;
+    target.setSuspect(false);
+    detector.heartbeat(target.getArrivals(), now);
+    timeouts.schedule(target.getExpiry(), detector.suspectAt(target.getArrivals()));
+  }
+  
+  /**
+   * Gives a quiet node one last chance before it's dropped. It gets a PROBE
+   * from us, and up to ProbeRelay.HELPERS recently heard from clients get a
+   * PING_REQ asking them to PROBE it too, in case it's just our link to it
+   * that's bad. If nobody gets through within ProbeRelay.TIMEOUT its timeout
+   * goes off again and that's that
+   * @param n the node that went quiet
+   * @param now the current time
+   * @throws IOException if a send fails
+   */
+  void probeIndirectly(Node n, long now) throws IOException {
+    n.setSuspect(true);
+    timeouts.schedule(n.getExpiry(), now + ProbeRelay.TIMEOUT);
+    sendProbe(HACPacket.PacketType.PROBE, 0, n);
+    
+    int asked = 0;
+    for(int tries = 0; asked < helpers.length && tries < helpers.length * 4; tries++) {
+      Node helper = recent[random.nextInt(RECENT_SIZE)];
+      if(helper == null || helper == n || helper.isSuspect() || nodes.get(helper.getKey()) != helper
+          || alreadyAsked(helper, asked))
+        continue;
+      helpers[asked++] = helper;
+      sendProbe(HACPacket.PacketType.PING_REQ, n.getKey(), helper);
+    }
+    Arrays.fill(helpers, null);
+  }
+  
+  private boolean alreadyAsked(Node helper, int asked) {
+    for(int i = 0; i < asked; i++)
+      if(helpers[i] == helper)
+        return true;
+    return false;
+  }
+  
+  /**
+   * Sends a PROBE, or a PING_REQ naming a target, out of the scratch frame
+   * @param type PROBE or PING_REQ
+   * @param target packed address of the node to probe, for PING_REQ
+   * @param to the node to send it to
+   * @throws IOException if the send fails
+   */
+  private void sendProbe(HACPacket.PacketType type, long target, Node to) throws IOException {
+    int length = type == HACPacket.PacketType.PING_REQ ? ProbeRelay.BODY_SIZE : 0;
+    probeFrame.clear();
+    HACPacket.encodeHeader(probeFrame, 0, type, MembershipTable.idOf(to.getKey()), origin, probeSequence++,
+        clock.millis(), length);
+    if(length > 0)
+      ProbeRelay.writeTarget(probeFrame, HACPacket.HEADER_SIZE, target);
+    probeFrame.limit(HACPacket.HEADER_SIZE + length);
+    transport.send(probeFrame, to.getSocketAddress());
+    to.setLastSent(clock.millis());
+    metrics.sent(type);
+  }
+  
+  /**
+   * Sends a pre-encoded frame without copying it. If the socket's send
+   * buffer is full the frame isn't sent, which for a PING or a GOTO is the
+   * same as the network dropping it. Anything that can't be lost goes
+   * through sendOrWait()
+   * @param frame the frame, its limit marks the end of the packet
+   * @param type what's in the frame, for the metrics
+   * @param to where to send it
+   * @return bytes sent, 0 if the send buffer was full
+   * @throws IOException if the send fails
+   */
+  private int send(ByteBuffer frame, HACPacket.PacketType type, SocketAddress to) throws IOException {
+    frame.rewind();
+    int sent = transport.send(frame, to);
+    if(sent > 0)
+      metrics.sent(type);
+    return sent;
+  }
+  
+  /**
+   * Encodes a packet into its own direct buffer, ready for send()
+   * @param packet the packet to encode
+   * @return a flipped buffer holding exactly the packet
+   */
+  static ByteBuffer encodeFrame(HACPacket packet) {
+    ByteBuffer frame = ByteBuffer.allocateDirect(packet.encodedLength());
+    packet.encode(frame);
+    frame.flip();
+    return frame;
+  }
+  
+  /**
+   * @param listener what to tell about nodes joining and being dropped.
+   *        Called on the loop thread
+   */
+  public void setListener(MembershipListener listener) {
+    this.listener = listener != null ? listener : MembershipListener.NONE;
+  }
+  
+  /**
+   * Drops a node for good
+   * @param n the node
+   * @param now the current time
+   */
+  private void drop(Node n, long now) {
+    if(group != null && !group.release(n.getKey(), this))
+      return; // another shard has it now, and has told us to forget it
+    if(nodes.remove(n.getKey(), n) != null) {
+      if(checkpoint != null)
+        checkpoint.release(n.getRecord());
+      if(n.getReplay() != null) {
+        departed.put(n.getKey(), n.getReplay());
+        if(departed.size() > REPLAY_DEPARTED) { // forget whoever left first
+          Iterator<ReplayBuffer> oldest = departed.values().iterator();
+          oldest.next();
+          oldest.remove();
         }
-        catch (IOException e) { //lmao, hope this doesn't happen
-          System.out.println("Yikes, extra hecka borked");
-          e.printStackTrace(/* say wtf happened and where*/);
+      }
+      synchronized(membership) {
+        membership.left(n.getKey());
+      }
+      versionChanged();
+      long quiet = now - n.getArrivals().lastArrival();
+      metrics.nodeDown(quiet);
+      EventLog.log(DROPPED, n.getKey(), null, quiet);
+      listener.nodeDown(n.getKey(), now);
+    }
+  }
+  
+  /**
+   * Sends one round of pings to every node we haven't sent anything to
+   * lately. SendPings does this on the HeartbeatScheduler's schedule;
+   * without a loop it's up to the caller
+   */
+  public void pingRound() {
+    fanout.startRound(nodes);
+  }
+  
+  /**
+   * Fires whatever timeouts are due. The loop does this every
+   * CheckPings.TICK millis; without a loop it's up to the caller
+   */
+  public void tick() {
+    timeouts.advance(clock.millis(), checker);
+    // other shards' joins and drops bump the version too
+    if(group != null && pingVersion != membershipVersion())
+      versionChanged();
+  }
+  
+  /**
+   * @return how many nodes the server currently knows about
+   */
+  public int size() {
+    return nodes.size();
+  }
+  
+  /**
+   * @return how many times a reply that can't be lost found the socket's
+   *         send buffer full and had to wait for it
+   */
+  public long getSendStalls() {
+    return sendStalls;
+  }
+  
+  /**
+   * @return the server's counters and histograms
+   */
+  public Metrics getMetrics() {
+    return metrics;
+  }
+  
+  /**
+   * @return bytes allocated per received PING, or -1 if counting is off
+   */
+  public double getAllocatedBytesPerPing() {
+    return allocations != null ? allocations.bytesPerEvent() : -1;
+  }
+  
+  /**
+   * read the name of the method
+   */
+  public void closeSocket() {
+    if(this.loop != null)
+      this.loop.shutdown();
+    if(this.control != null)
+      this.control.shutdown();
+    this.metrics.unregister();
+    if(this.checkpoint != null)
+      this.checkpoint.close();
+    try {
+      if(this.channel != null)
+        this.channel.close();
+    }
+    catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+  
+  /**
+   * @author josh
+   * Sends pings periodically to let nodes know that the server
+   * is still alive and available. Runs on the loop, hands the round
+   * to the FanoutSender, then schedules its own next round, as far off as
+   * the HeartbeatScheduler says. Rounds get no answers, so all it has to
+   * go on is the clients' deadline, and how much of the time since the
+   * last round the loop spent handling packets: when that's most of it,
+   * the rounds back off to leave the loop for the packets
+   */
+  private class SendPings implements Runnable {
+    private final HeartbeatScheduler.Link link = heartbeats.newLink();
+    private long lastRound = System.nanoTime();
+    private long busyAtLastRound = 0;
+    
+    /**
+     * Sends one round of pings to everyone we know about
+     */
+    @Override
+    public void run() {
+      pingRound(); // for each node in the node list
+      loop.schedule(nextDelay(), this);
+    }
+    
+    /**
+     * @return millis until the next round
+     */
+    long nextDelay() {
+      long now = System.nanoTime();
+      double load = (double) (busyNanos - busyAtLastRound) / Math.max(1, now - lastRound);
+      lastRound = now;
+      busyAtLastRound = busyNanos;
+      return heartbeats.nextDelay(link, load);
+    }
+  }
+  
+  /**
+   * Drops nodes the failure detector has given up on, once an indirect probe
+   * has failed too. Runs from tick() every TICK millis, but only touches
+   * nodes whose timeout actually went off, so a quiet tick costs next to
+   * nothing. MAX_TIME is the timeout used when the detector is the plain
+   * fixed one
+   */
+  private class CheckPings implements Consumer<Node> {
+    private static final long MAX_TIME = 30000;
+    static final long TICK = 100;
+    
+    /**
+     * Called by the wheel for each node that has been quiet for too long
+     * @param n the node that timed out
+     */
+    @Override
+    public void accept(Node n) {
+      long now = clock.millis();
+      long suspectAt = detector.suspectAt(n.getArrivals());
+      if(suspectAt > now) // the wheel rounds to a tick, so check before yeeting
+        timeouts.schedule(n.getExpiry(), suspectAt);
+      else if(!n.isSuspect()) {
+        try {
+          probeIndirectly(n, now);
         }
-        catch (PacketTypeDataMismatchException e) {
-          // TODO Auto-generated catch block
-          e.printStackTrace();
+        catch (IOException e) { // can't even ask, so don't wait on it
+          EventLog.log(SEND_FAILED, n.getKey(), e, 0);
+          timeouts.cancel(n.getExpiry());
+          drop(n, now);
         }
-	    }
-	  }
-	}
-	
-	private class CheckPings extends Thread {
-	  private static final long MAX_TIME = 30000;
-	  
-	  @Override
-	  public void run() {
-	    super.run();
-	    while(true) // keep on going
-	      for(Node n : nodes) // for each node
-	        if(n.getLPTime() + MAX_TIME < System.currentTimeMillis()) // if its been too long
-	          nodes.remove(nodes.indexOf(n)); //yeet that mfer
-	  }
-	}
-	
-	/**
-	 * @author josh
-	 * This is for use in main. Closes the socket upon termination
-	 */
-	private static class Exit extends Thread {
-	  Server server = null;
-	  public Exit(Server s) {
-	    this.server = s;
-	  }
-	  
-	  public void run() {
-	    try {
+      }
+      else
+        drop(n, now); //yeet it
+    }
+  }
+  
+  /**
+   * @author josh
+   * This is for use in main. Closes the socket upon termination
+   */
+  private static class Exit extends Thread {
+    Server server = null;
+    public Exit(Server s) {
+      this.server = s;
+    }
+    
+    public void run() {
+      try {
         Thread.sleep(2000); //zzz
       }
       catch (InterruptedException e) {
         e.printStackTrace();
       }
-	    this.server.closeSocket();
-	  }
-	}
+      if(this.server.allocations != null)
+        EventLog.log(ALLOCATED, 0, this.server.allocations, 0);
+      if(this.server.control != null)
+        EventLog.log(CONTROL_DONE, 0, this.server.control.getShed(), this.server.control.getSubmitted());
+      this.server.closeSocket();
+    }
+  }
 
   public static void main(String[] args) 
   {
+    int shards = Integer.getInteger("hac.server.shards", 1);
+    if(shards > 1) {
+      ShardedServer.main(shards);
+      return;
+    }
     Server server = new Server();
     Runtime.getRuntime().addShutdownHook(new Exit(server));
     try {
@@ -0,0 +1,203 @@
+/**
+ * @version October 17, 2026
+ * Runs the server as several shards on one port, so heartbeats aren't all
+ * handled by one core. Every shard is a whole Server with its own socket,
+ * loop thread, membership table, timeouts and pings; the sockets are bound
+ * with SO_REUSEPORT, and the kernel picks a shard for each datagram by
+ * hashing its addresses, so a node's heartbeats always land on the same
+ * shard and that shard is the only one that ever touches the node.
+ *
+ * What the shards share is the membership log: each shard's joins and
+ * drops go into the one log, under its lock, so there's a single version
+ * for the whole cluster, and a SYNC answered by any shard covers every
+ * shard's members. Each shard puts the latest version in its PINGs on its
+ * next tick.
+ *
+ * Which shard owns which node is kept in one shared table, and a shard
+ * takes a node over in a single atomic step, so when two shards hear from
+ * a new node at once only one of them logs it as a join.
+ *
+ * The few things that cross shards:
+ *   a node the kernel moves to another shard (e.g. the shard count changed
+ *   across a restart) is handed over, without being counted as a leave
+ *   and a join
+ *   checkpoints are saved per shard, and those of shards that no longer
+ *   exist after the count went down are taken in by the ones that do
+ *   a PROBE_ACK comes in on the helper's shard, so it's passed on to the
+ *   suspect's
+ *   publish() goes to every shard, and only the one that has the node
+ *   does anything with it
+ *
+ * Turned on with -Dhac.server.shards=N, on systems with SO_REUSEPORT
+ * (Linux, the BSDs, macOS). N is usually the number of cores.
+ */
+
+package hac_server;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+
+import hac_core.Checkpoint;
+import hac_core.MembershipListener;
+import hac_core.MembershipLog;
+import hac_core.MembershipTable;
+import packet_format.HACPacket.PacketTypeDataMismatchException;
+
+public class ShardedServer {
+  final Server[] shards;
+  final MembershipLog membership = new MembershipLog(Server.MEMBERSHIP_HISTORY);
+  // which shard each node is on, see claim()
+  final MembershipTable<Server> owners = new MembershipTable<Server>();
+
+  /**
+   * @param count how many shards
+   */
+  public ShardedServer(int count) {
+    this.shards = new Server[Math.max(1, count)];
+    for(int i = 0; i < this.shards.length; i++)
+      this.shards[i] = new Server();
+  }
+
+  /**
+   * @return whether sockets here can share a port with SO_REUSEPORT
+   */
+  public static boolean isSupported() {
+    try(DatagramChannel c = DatagramChannel.open(StandardProtocolFamily.INET)) {
+      return c.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+    }
+    catch(IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Opens every shard's socket on the port, without starting anything.
+   * Checkpoints left behind by shards past the current count are taken in
+   * by the shards there are now
+   * @param port port to bind
+   * @throws IOException if a socket can't be opened
+   * @throws PacketTypeDataMismatchException never, the frames are all valid
+   */
+  public void open(int port) throws IOException, PacketTypeDataMismatchException {
+    for(int i = 0; i < this.shards.length; i++)
+      this.shards[i].open(port, this, i);
+    if(port == 0)
+      return; // no checkpoints on a throwaway port
+    Checkpoint orphan;
+    for(int i = this.shards.length; (orphan = Checkpoint.ifExists(Server.CHECKPOINT_SHARD + i, port)) != null; i++) {
+      Server s = this.shards[i % this.shards.length];
+      if(s.checkpoint != null) {
+        s.adopt(orphan);
+        orphan.delete();
+      }
+      else
+        orphan.close();
+    }
+  }
+
+  /**
+   * Runs every shard's loop on a thread of its own, the first one on the
+   * calling thread, until closeSocket()
+   */
+  public void listen() {
+    for(int i = 1; i < this.shards.length; i++) {
+      Server s = this.shards[i];
+      new Thread(s::listen, "hac-shard-" + i).start();
+    }
+    this.shards[0].listen();
+  }
+
+  /**
+   * @param key packed address of the node
+   * @return the shard the node is on, null if it isn't on any
+   */
+  Server owner(long key) {
+    return this.owners.get(key);
+  }
+
+  /**
+   * Called by a shard that just heard from a node it didn't have, before
+   * it logs a join. Takes the node over in one step, so of two shards
+   * claiming a new node at once, only one finds it new. If another shard
+   * had it, that shard is told to let it go
+   * @param key packed address of the node
+   * @param to the shard that has it now
+   * @return whether a shard had it already, i.e. it's not really new
+   */
+  boolean claim(long key, Server to) {
+    Server from = this.owners.put(key, to);
+    if(from != null && from != to)
+      from.loop.execute(() -> from.forget(key, to));
+    return from != null;
+  }
+
+  /**
+   * Called by a shard that's dropping a node, before it logs the leave
+   * @param key packed address of the node
+   * @param from the shard dropping it
+   * @return whether it was still that shard's. If not, another shard took
+   *         it over in the meantime and it hasn't left at all
+   */
+  boolean release(long key, Server from) {
+    return this.owners.remove(key, from) != null;
+  }
+
+  /**
+   * @return how many nodes all the shards know about
+   */
+  public int size() {
+    return this.owners.size();
+  }
+
+  /**
+   * Sends a message to a node as DATA, see Server.publish(). Safe to call
+   * from any thread
+   * @param key packed address of the node
+   * @param message the message
+   */
+  public void publish(long key, byte[] message) {
+    for(Server s : this.shards)
+      s.publish(key, message);
+  }
+
+  /**
+   * @param listener what to tell about nodes joining and being dropped.
+   *        Called on the loop thread of whichever shard has the node, so
+   *        from several threads at once
+   */
+  public void setListener(MembershipListener listener) {
+    for(Server s : this.shards)
+      s.setListener(listener);
+  }
+
+  public void closeSocket() {
+    for(Server s : this.shards)
+      s.closeSocket();
+  }
+
+  /**
+   * Runs the shards on the usual port, or a single plain server if this
+   * system can't share a port
+   * @param count how many shards
+   */
+  static void main(int count) {
+    if(!isSupported()) {
+      System.err.println("SO_REUSEPORT isn't supported here, running one shard");
+      System.setProperty("hac.server.shards", "1");
+      Server.main(new String[0]);
+      return;
+    }
+    ShardedServer server = new ShardedServer(count);
+    Runtime.getRuntime().addShutdownHook(new Thread(server::closeSocket));
+    try {
+      server.open(9876);
+      System.out.println("Running " + count + " shards on port 9876");
+      server.listen();
+    }
+    catch(IOException | PacketTypeDataMismatchException e) {
+      e.printStackTrace();
+    }
+  }
+}
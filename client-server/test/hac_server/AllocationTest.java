@@ -0,0 +1,71 @@
+package hac_server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+import packet_format.HACPacket;
+import packet_format.HACPacketView;
+
+/**
+ * Drives handle() with PINGs from a few hundred nodes, the way the loop
+ * does, and checks it allocates nothing per PING once it's warmed up. See
+ * AllocationCounter
+ *
+ * The socket read itself is left out: DatagramChannel.receive() returns the
+ * sender as a new InetSocketAddress whenever it differs from the last
+ * datagram's (about 120 bytes on JDK 17), and there's no way to read a UDP
+ * datagram's sender without that short of native code. So this holds
+ * everything after the read to zero, which is all the server controls
+ */
+class AllocationTest {
+  private static final int NODES = 256;
+  private static final int WARMUP_ROUNDS = 2000;
+  private static final int ROUNDS = 500;
+
+  private final long[] now = { 1_000_000 };
+
+  @Test
+  void pingsAllocateNothing() throws Exception {
+    Server server = new Server();
+    server.open((frame, to) -> {
+      int length = frame.remaining();
+      frame.position(frame.limit());
+      return length;
+    }, () -> this.now[0], 1);
+
+    InetSocketAddress[] senders = new InetSocketAddress[NODES];
+    for(int i = 0; i < NODES; i++)
+      senders[i] = new InetSocketAddress(InetAddress.getByAddress(new byte[] { 10, 0, (byte) (i >> 8), (byte) i }),
+          5000);
+    ByteBuffer frame = Server.encodeFrame(new HACPacket(0, (Inet4Address) InetAddress.getLoopbackAddress(),
+        HACPacket.PacketType.PING));
+    HACPacketView view = new HACPacketView();
+
+    for(int r = 0; r < WARMUP_ROUNDS; r++)
+      round(server, senders, frame, view, r);
+
+    AllocationCounter counter = new AllocationCounter();
+    counter.begin();
+    for(int r = 0; r < ROUNDS; r++)
+      round(server, senders, frame, view, WARMUP_ROUNDS + r);
+    counter.end();
+    assertEquals(0, counter.getBytes(), "bytes over " + ROUNDS * NODES + " PINGs");
+  }
+
+  private void round(Server server, InetSocketAddress[] senders, ByteBuffer frame, HACPacketView view, int r)
+      throws Exception {
+    this.now[0] += 100;
+    for(int i = 0; i < NODES; i++) {
+      HACPacket.stamp(frame, 0, r, this.now[0]);
+      view.wrap(frame, 0);
+      server.handle(view, senders[i]);
+    }
+    server.tick();
+  }
+}
@@ -0,0 +1,119 @@
+package hac_server;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import hac_core.MembershipTable;
+import hac_core.ReplayBuffer;
+import packet_format.HACPacket;
+import packet_format.HACPacketView;
+
+/**
+ * In virtual mode a SYNC or BACK that's stuck on a control thread mustn't
+ * stop the loop reading: PINGs sent after it still get answered, and the
+ * stuck reply still goes out once it's let go
+ */
+class ControlModeTest {
+  private Server server;
+  private DatagramSocket socket;
+  private InetSocketAddress address;
+  private int sequence = 0;
+
+  @BeforeEach
+  void start() throws Exception {
+    this.server = new Server();
+    this.server.control = new ControlExecutor(16, 2);
+    this.server.open(0);
+    new Thread(this.server::listen, "test-server").start();
+    this.address = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+        ((InetSocketAddress) this.server.channel.getLocalAddress()).getPort());
+    this.socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    this.socket.setSoTimeout(200);
+
+    send(HACPacket.PacketType.PING, -1);
+    expect(HACPacket.PacketType.PING);
+  }
+
+  @AfterEach
+  void stop() {
+    this.socket.close();
+    this.server.closeSocket();
+  }
+
+  @Test
+  void loopKeepsReadingWhileSyncWaits() throws Exception {
+    synchronized(this.server.membership) {
+      send(HACPacket.PacketType.SYNC, 0);
+      send(HACPacket.PacketType.PING, -1);
+      expect(HACPacket.PacketType.PING);
+    }
+    expect(HACPacket.PacketType.STATUS);
+    assertTrue(this.server.control.getSubmitted() >= 1);
+  }
+
+  @Test
+  void loopKeepsReadingWhileReplayWaits() throws Exception {
+    long key = MembershipTable.pack(InetAddress.getLoopbackAddress(), this.socket.getLocalPort());
+    this.server.publish(key, new byte[] { 42 });
+    expect(HACPacket.PacketType.DATA);
+    // once this is answered the loop is done with the publish, and with
+    // the buffer
+    send(HACPacket.PacketType.PING, -1);
+    expect(HACPacket.PacketType.PING);
+
+    ReplayBuffer replay = this.server.nodes.get(key).getReplay();
+    synchronized(replay) {
+      send(HACPacket.PacketType.BACK, 0);
+      send(HACPacket.PacketType.PING, -1);
+      expect(HACPacket.PacketType.PING);
+    }
+    expect(HACPacket.PacketType.DATA);
+  }
+
+  /**
+   * @param body an int to put in the body, -1 for none
+   */
+  private void send(HACPacket.PacketType type, int body) throws IOException {
+    int length = body < 0 ? 0 : 4;
+    ByteBuffer frame = ByteBuffer.allocate(HACPacket.HEADER_SIZE + length);
+    HACPacket.encodeHeader(frame, 0, type, 0, 0x7F000001, this.sequence++, System.currentTimeMillis(), length);
+    if(length > 0)
+      frame.putInt(HACPacket.HEADER_SIZE, body);
+    this.socket.send(new DatagramPacket(frame.array(), frame.capacity(), this.address));
+  }
+
+  /**
+   * Waits up to two seconds for a packet of the given type, skipping any
+   * others (e.g. ping rounds)
+   */
+  private void expect(HACPacket.PacketType type) throws IOException {
+    byte[] data = new byte[HACPacket.MAX_PACKET_SIZE];
+    DatagramPacket in = new DatagramPacket(data, data.length);
+    HACPacketView view = new HACPacketView();
+    long end = System.currentTimeMillis() + 2000;
+    while(System.currentTimeMillis() < end) {
+      try {
+        in.setLength(data.length);
+        this.socket.receive(in);
+      }
+      catch (SocketTimeoutException e) {
+        continue;
+      }
+      if(view.wrap(ByteBuffer.wrap(data, 0, in.getLength()), 0) && view.getPacketType() == type)
+        return;
+    }
+    fail("no " + type + " within 2s");
+  }
+}
@@ -0,0 +1,65 @@
+package hac_server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * A task that hands itself back to the loop, the way FanoutSender sends a
+ * round in batches, has to let the loop read between one run and the next
+ */
+class EventLoopTest {
+  private static final int RUNS = 5;
+
+  @Test
+  void resubmittedTaskWaitsForTheNextSelect() throws Exception {
+    EventLoop loop = new EventLoop();
+    Pipe pipe = Pipe.open();
+    pipe.source().configureBlocking(false);
+    // never read, so the source is readable on every select
+    pipe.sink().write(ByteBuffer.wrap(new byte[] { 1 }));
+
+    List<String> order = new ArrayList<String>();
+    CountDownLatch done = new CountDownLatch(1);
+    loop.register(pipe.source(), SelectionKey.OP_READ, key -> order.add("read"));
+    loop.execute(new Runnable() {
+      private int runs = 0;
+
+      @Override
+      public void run() {
+        order.add("batch");
+        if(++this.runs < RUNS)
+          loop.execute(this);
+        else
+          done.countDown();
+      }
+    });
+
+    Thread thread = new Thread(loop, "test-loop");
+    thread.start();
+    assertTrue(done.await(2, TimeUnit.SECONDS));
+    loop.shutdown();
+    thread.join();
+    pipe.sink().close();
+    pipe.source().close();
+
+    int batches = 0;
+    for(int i = 0; i < order.size(); i++) {
+      if(!order.get(i).equals("batch"))
+        continue;
+      batches++;
+      if(i > 0)
+        assertEquals("read", order.get(i - 1), "batch " + batches + " ran straight after the one before: " + order);
+    }
+    assertEquals(RUNS, batches);
+  }
+}
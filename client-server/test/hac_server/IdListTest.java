@@ -0,0 +1,73 @@
+package hac_server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import hac_core.MembershipTable;
+import packet_format.HACPacket;
+import packet_format.HACPacketView;
+
+/**
+ * Only a PING flagged as a ClientHost's list of ids adds logical nodes; any
+ * other PING body is left alone
+ */
+class IdListTest {
+  private final long[] now = { 1_000_000 };
+  private final HACPacketView view = new HACPacketView();
+  private Server server;
+  private InetSocketAddress from;
+
+  @BeforeEach
+  void start() throws Exception {
+    this.server = new Server();
+    this.server.open((frame, to) -> {
+      int length = frame.remaining();
+      frame.position(frame.limit());
+      return length;
+    }, () -> this.now[0], 1);
+    this.from = new InetSocketAddress(InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 }), 5000);
+  }
+
+  @Test
+  void flaggedPingAddsEveryId() throws Exception {
+    ping(HACPacket.LISTS_IDS, 1, 2, 3);
+    assertEquals(4, this.server.size());
+    long key = MembershipTable.pack(this.from);
+    for(int id = 1; id <= 3; id++)
+      assertNotNull(this.server.nodes.get(MembershipTable.withId(key, id)));
+  }
+
+  @Test
+  void versionBodyAddsNothing() throws Exception {
+    // what our own PINGs carry: a membership version
+    ping(0, 0x0001, 0x0002);
+    assertEquals(1, this.server.size());
+  }
+
+  @Test
+  void oddLengthListAddsNothing() throws Exception {
+    ByteBuffer frame = ByteBuffer.allocate(HACPacket.HEADER_SIZE + 3);
+    HACPacket.encodeHeader(frame, 0, HACPacket.PacketType.PING, HACPacket.LISTS_IDS, 0x0A000001, 0, this.now[0], 3);
+    frame.putShort(HACPacket.HEADER_SIZE, (short) 1).put(HACPacket.HEADER_SIZE + 2, (byte) 0);
+    this.view.wrap(frame, 0);
+    this.server.handle(this.view, this.from);
+    assertEquals(1, this.server.size());
+  }
+
+  private void ping(int senderId, int... shorts) throws Exception {
+    ByteBuffer frame = ByteBuffer.allocate(HACPacket.HEADER_SIZE + shorts.length * 2);
+    HACPacket.encodeHeader(frame, 0, HACPacket.PacketType.PING, senderId, 0x0A000001, 0, this.now[0],
+        shorts.length * 2);
+    for(int i = 0; i < shorts.length; i++)
+      frame.putShort(HACPacket.HEADER_SIZE + i * 2, (short) shorts[i]);
+    this.view.wrap(frame, 0);
+    this.server.handle(this.view, this.from);
+  }
+}
@@ -0,0 +1,56 @@
+package hac_server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import packet_format.HACPacket;
+import packet_format.HACPacketView;
+
+/**
+ * A PING back to a PING says which one it answers, so the node can time
+ * it; a PING from a ping round doesn't claim to answer anything
+ */
+class PingAnswerTest {
+  private final long[] now = { 1_000_000 };
+  private final List<ByteBuffer> sent = new ArrayList<ByteBuffer>();
+
+  @Test
+  void onlyTheReplyIsAnAnswer() throws Exception {
+    Server server = new Server();
+    server.open((frame, to) -> {
+      ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+      copy.put(frame).flip();
+      this.sent.add(copy);
+      return copy.capacity();
+    }, () -> this.now[0], 1);
+    InetSocketAddress from = new InetSocketAddress(InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 }), 5000);
+
+    ByteBuffer ping = ByteBuffer.allocate(HACPacket.HEADER_SIZE);
+    HACPacket.encodeHeader(ping, 0, HACPacket.PacketType.PING, 0, 0x0A000001, 42, this.now[0], 0);
+    HACPacketView view = new HACPacketView();
+    view.wrap(ping, 0);
+    server.handle(view, from);
+
+    assertEquals(1, this.sent.size());
+    view.wrap(this.sent.get(0), 0);
+    assertEquals(HACPacket.PacketType.PING, view.getPacketType());
+    assertEquals(HACPacket.ANSWER, view.getSenderId() & HACPacket.ANSWER);
+    assertEquals(42, view.getSequence());
+
+    // long enough that the node is idle and gets a round's PING
+    this.now[0] += 60_000;
+    this.sent.clear();
+    server.pingRound();
+    assertEquals(1, this.sent.size());
+    view.wrap(this.sent.get(0), 0);
+    assertEquals(HACPacket.PacketType.PING, view.getPacketType());
+    assertEquals(0, view.getSenderId() & HACPacket.ANSWER);
+  }
+}
@@ -0,0 +1,88 @@
+package hac_server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import hac_core.Checkpoint;
+import hac_core.MembershipTable;
+import packet_format.HACPacket;
+import packet_format.HACPacketView;
+
+/**
+ * A node only joins once however many shards hear from it, and nodes saved
+ * by shards that are gone still come back
+ */
+class ShardedServerTest {
+  private final HACPacketView view = new HACPacketView();
+  private final ByteBuffer ping = ByteBuffer.allocate(HACPacket.HEADER_SIZE);
+  private ShardedServer group;
+
+  @AfterEach
+  void stop() {
+    System.clearProperty("hac.checkpoint.dir");
+    if(this.group != null)
+      this.group.closeSocket();
+  }
+
+  @Test
+  void secondShardTakesOverWithoutAJoin() throws Exception {
+    assumeTrue(ShardedServer.isSupported());
+    this.group = new ShardedServer(2);
+    this.group.open(0);
+    InetSocketAddress from = new InetSocketAddress(InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 }), 5000);
+    long key = MembershipTable.pack(from);
+
+    ping(this.group.shards[0], from);
+    int version = this.group.membership.version();
+    ping(this.group.shards[1], from);
+
+    assertEquals(version, this.group.membership.version());
+    assertSame(this.group.shards[1], this.group.owner(key));
+    assertEquals(1, this.group.size());
+    // the first shard can't drop it any more
+    assertFalse(this.group.release(key, this.group.shards[0]));
+  }
+
+  @Test
+  void checkpointOfAShardThatIsGoneIsTakenIn(@TempDir Path dir) throws Exception {
+    assumeTrue(ShardedServer.isSupported());
+    System.setProperty("hac.checkpoint.dir", dir.toString());
+    int port;
+    try(DatagramSocket s = new DatagramSocket(0)) {
+      port = s.getLocalPort();
+    }
+    // what a third shard saved before the restart
+    long key = MembershipTable.pack(0x0A000001, 5000);
+    Checkpoint old = Checkpoint.fromSystemProperties(Server.CHECKPOINT_SHARD + 2, port);
+    assertNotNull(old);
+    old.heard(old.claim(key), System.currentTimeMillis());
+    old.close();
+
+    this.group = new ShardedServer(2);
+    this.group.open(port);
+
+    assertEquals(1, this.group.size());
+    assertNotNull(this.group.shards[0].nodes.get(key));
+    assertNull(Checkpoint.ifExists(Server.CHECKPOINT_SHARD + 2, port));
+  }
+
+  private void ping(Server shard, InetSocketAddress from) throws Exception {
+    HACPacket.encodeHeader(this.ping, 0, HACPacket.PacketType.PING, 0, 0x0A000001, 0, System.currentTimeMillis(), 0);
+    this.view.wrap(this.ping, 0);
+    shard.handle(this.view, from);
+  }
+}
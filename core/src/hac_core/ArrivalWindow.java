@@ -0,0 +1,89 @@
+/**
+ * @version October 17, 2026
+ * Sliding window of heartbeat inter-arrival times for one node, plus the
+ * time of the last heartbeat. Keeps running sums so the mean and standard
+ * deviation cost O(1) no matter how big the window is.
+ *
+ * Not thread safe, whoever records heartbeats should also be the one asking
+ * questions about them.
+ */
+package hac_core;
+
+public final class ArrivalWindow {
+  // anything longer than this was an outage, not a heartbeat interval
+  private static final long MAX_INTERVAL = 60L * 60 * 1000;
+
+  private final int[] intervals;
+  private int count = 0;
+  private int next = 0;
+  private long sum = 0;
+  private long sumOfSquares = 0;
+  private long lastArrival = -1;
+
+  /**
+   * @param capacity how many intervals to remember. 0 only tracks the last
+   *        arrival, which is all a fixed timeout needs
+   */
+  public ArrivalWindow(int capacity) {
+    this.intervals = new int[capacity];
+  }
+
+  /**
+   * Records a heartbeat
+   * @param now when it arrived, in millis
+   */
+  public void record(long now) {
+    if (this.lastArrival >= 0 && this.intervals.length > 0) {
+      long interval = Math.max(0, Math.min(now - this.lastArrival, MAX_INTERVAL));
+      if (this.count == this.intervals.length) {
+        long old = this.intervals[this.next];
+        this.sum -= old;
+        this.sumOfSquares -= old * old;
+      } else {
+        this.count++;
+      }
+      this.intervals[this.next] = (int) interval;
+      this.sum += interval;
+      this.sumOfSquares += interval * interval;
+      this.next = (this.next + 1) % this.intervals.length;
+    }
+    this.lastArrival = now;
+  }
+
+  /**
+   * Forgets everything, e.g. when a node comes back after being declared
+   * dead and its old intervals no longer mean anything
+   */
+  public void reset() {
+    this.count = 0;
+    this.next = 0;
+    this.sum = 0;
+    this.sumOfSquares = 0;
+    this.lastArrival = -1;
+  }
+
+  /**
+   * @return time of the last heartbeat in millis, or -1 if there hasn't been one
+   */
+  public long lastArrival() {
+    return this.lastArrival;
+  }
+
+  /**
+   * @return how many intervals are in the window
+   */
+  public int size() {
+    return this.count;
+  }
+
+  public double mean() {
+    return this.count == 0 ? 0 : (double) this.sum / this.count;
+  }
+
+  public double stdDev() {
+    if (this.count == 0)
+      return 0;
+    double mean = mean();
+    return Math.sqrt(Math.max(0, (double) this.sumOfSquares / this.count - mean * mean));
+  }
+}
@@ -0,0 +1,262 @@
+/**
+ * @version October 17, 2026
+ * What we know about every node, kept in a memory-mapped file so a
+ * restarted process can pick up where the last one left off instead of
+ * taking every node for dead until it pings again. Each node gets a fixed
+ * size record in the file, and saving is a few plain writes into mapped
+ * memory, cheap enough to do on every heartbeat. The OS writes the pages
+ * out in its own time. Since the pages live in the page cache, a process
+ * that crashes loses nothing, only a crash of the whole machine can lose
+ * the last few seconds.
+ *
+ * Layout (big-endian):
+ *    header, HEADER_SIZE bytes:
+ *       i32  MAGIC
+ *       i32  LAYOUT
+ *       i32  number of records
+ *       i32  unused
+ *    then per record, RECORD_SIZE bytes:
+ *       i64  packed address of the node, 0 for an empty record
+ *       i64  when we last heard from it, wall clock millis
+ *       i32  flags, see ONLINE and DEAD
+ *       i32  incarnation (P2P gossip mode only)
+ * A file that doesn't match, e.g. one with a different number of records,
+ * is started over.
+ *
+ * Settings, read by fromSystemProperties():
+ *   hac.checkpoint.dir      where the files go. Checkpointing is off
+ *                           unless this is set
+ *   hac.checkpoint.records  records per file, i.e. most nodes saved (65536)
+ *   hac.checkpoint.maxAge   millis after which a saved node is too stale
+ *                           to bring back (60000)
+ *
+ * Claiming and releasing records is for one thread at a time. Saving into
+ * records that are already claimed is fine from any thread.
+ */
+package hac_core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+public final class Checkpoint implements Closeable {
+  public static final int MAGIC = 0x4841434B; // "HACK"
+  public static final int LAYOUT = 1;
+  public static final int HEADER_SIZE = 16;
+  public static final int RECORD_SIZE = 24;
+
+  public static final int ONLINE = 1;
+  public static final int DEAD = 2;
+
+  /**
+   * Gets each saved node at startup
+   */
+  public interface Restorer {
+    /**
+     * @param key packed address of the node, see MembershipTable
+     * @param lastHeard when we last heard from it
+     * @param flags ONLINE and DEAD
+     * @param incarnation its incarnation
+     * @param record the node's record, to keep saving into
+     * @return false to forget the node, which frees its record
+     */
+    boolean restore(long key, long lastHeard, int flags, int incarnation, int record);
+  }
+
+  private final Path file;
+  private final FileChannel channel;
+  private final MappedByteBuffer map;
+  private final int records;
+  private final long maxAge;
+  // records nobody has, as a stack
+  private final int[] free;
+  private int freeCount = 0;
+
+  /**
+   * Maps a checkpoint file, creating it if need be
+   * @param file the file
+   * @param records how many nodes it can hold
+   * @param maxAge millis after which a saved node is too stale to restore
+   * @throws IOException if the file can't be opened or mapped
+   */
+  public Checkpoint(Path file, int records, long maxAge) throws IOException {
+    this.records = Math.max(1, Math.min(records, (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE));
+    this.maxAge = maxAge;
+    long size = HEADER_SIZE + (long) this.records * RECORD_SIZE;
+    this.file = file;
+    this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    boolean fresh = this.channel.size() != size;
+    if (fresh)
+      this.channel.truncate(0);
+    this.map = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    if (fresh || this.map.getInt(0) != MAGIC || this.map.getInt(4) != LAYOUT
+        || this.map.getInt(8) != this.records) {
+      for (int i = 0; i < this.records; i++)
+        this.map.putLong(offset(i), 0);
+      this.map.putInt(0, MAGIC);
+      this.map.putInt(4, LAYOUT);
+      this.map.putInt(8, this.records);
+      this.map.putInt(12, 0);
+    }
+    this.free = new int[this.records];
+    for (int i = this.records - 1; i >= 0; i--)
+      if (this.map.getLong(offset(i)) == 0)
+        this.free[this.freeCount++] = i;
+  }
+
+  /**
+   * @param name what's being checkpointed, e.g. "server"
+   * @param port the port it's on, so two on one host don't share a file
+   * @return a checkpoint set up from the hac.checkpoint.* properties, or
+   *         null if checkpointing is off or the file can't be mapped
+   */
+  public static Checkpoint fromSystemProperties(String name, int port) {
+    String dir = System.getProperty("hac.checkpoint.dir");
+    if (dir == null)
+      return null;
+    try {
+      Path d = Paths.get(dir);
+      Files.createDirectories(d);
+      return new Checkpoint(d.resolve(fileName(name, port)), Integer.getInteger("hac.checkpoint.records", 65536),
+          Long.getLong("hac.checkpoint.maxAge", 60000));
+    } catch (IOException | RuntimeException e) {
+      System.err.println("Checkpointing is off, " + dir + " can't be used: " + e);
+      return null;
+    }
+  }
+
+  /**
+   * Same as fromSystemProperties(), but only if the file is already there,
+   * e.g. to pick up one left behind by a shard that no longer exists
+   * @param name what was checkpointed
+   * @param port the port it was on
+   * @return the checkpoint, or null if there's no such file or
+   *         checkpointing is off
+   */
+  public static Checkpoint ifExists(String name, int port) {
+    String dir = System.getProperty("hac.checkpoint.dir");
+    if (dir == null || !Files.exists(Paths.get(dir, fileName(name, port))))
+      return null;
+    return fromSystemProperties(name, port);
+  }
+
+  private static String fileName(String name, int port) {
+    return name + "-" + port + ".ckpt";
+  }
+
+  /**
+   * Hands every saved node that isn't too stale to the restorer, and
+   * forgets the rest. Call once, before claiming anything
+   * @param now the current time, wall clock millis
+   * @param restorer gets each node
+   * @return how many nodes were restored
+   */
+  public int restore(long now, Restorer restorer) {
+    int restored = 0;
+    for (int i = 0; i < this.records; i++) {
+      int at = offset(i);
+      long key = this.map.getLong(at);
+      if (key == 0)
+        continue;
+      long lastHeard = this.map.getLong(at + 8);
+      if (now - lastHeard <= this.maxAge
+          && restorer.restore(key, lastHeard, this.map.getInt(at + 16), this.map.getInt(at + 20), i))
+        restored++;
+      else
+        release(i);
+    }
+    return restored;
+  }
+
+  /**
+   * Gives a node a record
+   * @param key packed address of the node
+   * @return the record, -1 if they're all taken, in which case the node
+   *         just isn't saved
+   */
+  public int claim(long key) {
+    if (this.freeCount == 0)
+      return -1;
+    int record = this.free[--this.freeCount];
+    int at = offset(record);
+    this.map.putLong(at + 8, 0);
+    this.map.putInt(at + 16, 0);
+    this.map.putInt(at + 20, 0);
+    this.map.putLong(at, key);
+    return record;
+  }
+
+  /**
+   * Gives up a record, e.g. when its node is dropped
+   * @param record the record, -1 is ignored
+   */
+  public void release(int record) {
+    if (record < 0)
+      return;
+    this.map.putLong(offset(record), 0);
+    this.free[this.freeCount++] = record;
+  }
+
+  /**
+   * Saves when a node was last heard from
+   * @param record the node's record, -1 is ignored
+   * @param lastHeard wall clock millis
+   */
+  public void heard(int record, long lastHeard) {
+    if (record >= 0)
+      this.map.putLong(offset(record) + 8, lastHeard);
+  }
+
+  /**
+   * Saves everything about a node
+   * @param record the node's record, -1 is ignored
+   * @param lastHeard wall clock millis, or -1 if never
+   * @param flags ONLINE and DEAD
+   * @param incarnation its incarnation
+   */
+  public void save(int record, long lastHeard, int flags, int incarnation) {
+    if (record < 0)
+      return;
+    int at = offset(record);
+    this.map.putLong(at + 8, lastHeard);
+    this.map.putInt(at + 16, flags);
+    this.map.putInt(at + 20, incarnation);
+  }
+
+  /**
+   * Closes the file. The mapping itself stays valid, so saves racing with
+   * this are harmless
+   */
+  @Override
+  public void close() {
+    try {
+      this.map.force();
+      this.channel.close();
+    } catch (IOException e) {
+      // the pages get written out regardless
+    }
+  }
+
+  /**
+   * Closes the file and deletes it, once everything in it has been taken
+   * in somewhere else
+   */
+  public void delete() {
+    close();
+    try {
+      Files.deleteIfExists(this.file);
+    } catch (IOException e) {
+      // an empty file is harmless, it just gets looked at again next time
+    }
+  }
+
+  private static int offset(int record) {
+    return HEADER_SIZE + record * RECORD_SIZE;
+  }
+}
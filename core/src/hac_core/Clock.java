@@ -0,0 +1,21 @@
+/**
+ * @version October 17, 2026
+ * Where the protocol code gets the time from. Everything runs on
+ * Clock.SYSTEM, except under the simulator, which swaps in a virtual clock
+ * so minutes of protocol time can pass in a fraction of a second and the
+ * same run always plays out the same way.
+ */
+package hac_core;
+
+@FunctionalInterface
+public interface Clock {
+  /**
+   * The wall clock
+   */
+  Clock SYSTEM = System::currentTimeMillis;
+
+  /**
+   * @return the current time in millis
+   */
+  long millis();
+}
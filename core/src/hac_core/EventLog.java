@@ -0,0 +1,265 @@
+/**
+ * @version October 17, 2026
+ * Structured, asynchronous log for things that happen on the hot path,
+ * e.g. a packet arriving or a node being dropped. Logging an event writes
+ * a few fields into a slot of a pre-allocated ring and returns; a daemon
+ * thread formats the slots and prints them. The caller never formats a
+ * string, never allocates, never takes a lock and never waits on stdout.
+ * If the writer falls so far behind that the ring is full, events are
+ * dropped and counted instead, and the writer says how many it missed.
+ *
+ * Every kind of event is declared once as an Event with a name, a level
+ * and labels for the fields it uses:
+ *    static final EventLog.Event DROP = EventLog.event("server.drop",
+ *        EventLog.Level.INFO, "node", null, "quietMillis");
+ *    ...
+ *    EventLog.log(DROP, key, null, quiet);
+ * which prints as
+ *    2026-10-17T10:15:30.123Z INFO server.drop node=10.0.0.7:9877 quietMillis=30412
+ *
+ * Settings, read once:
+ *   hac.log.level          DEBUG, INFO (default), WARN, ERROR or OFF.
+ *                          -Dhac.verbose=true still means DEBUG
+ *   hac.log.sample.NAME=N  only log one in N of the event called NAME
+ *   hac.log.buffer         ring size, rounded up to a power of two (8192)
+ */
+package hac_core;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public final class EventLog {
+  public enum Level {
+    DEBUG, INFO, WARN, ERROR, OFF
+  }
+
+  /**
+   * One kind of event. Declare these as constants, they're what the level
+   * and sampling settings hang off
+   */
+  public static final class Event {
+    final String name;
+    final Level level;
+    final String nodeLabel;
+    final String detailLabel;
+    final String valueLabel;
+    private final boolean on;
+    private final long sampleEvery;
+    private final AtomicLong seen = new AtomicLong();
+
+    private Event(String name, Level level, String nodeLabel, String detailLabel, String valueLabel) {
+      this.name = name;
+      this.level = level;
+      this.nodeLabel = nodeLabel;
+      this.detailLabel = detailLabel;
+      this.valueLabel = valueLabel;
+      this.on = level.compareTo(THRESHOLD) >= 0 && THRESHOLD != Level.OFF;
+      this.sampleEvery = Math.max(1, Long.getLong("hac.log.sample." + name, 1));
+    }
+
+    /**
+     * @return whether this event's level is logged at all. Worth checking
+     *         before doing any work just to build the fields
+     */
+    public boolean isEnabled() {
+      return this.on;
+    }
+
+    /**
+     * Counts one occurrence against the sampling rate
+     * @return whether this occurrence should be logged
+     */
+    boolean sample() {
+      return this.on && (this.sampleEvery == 1 || this.seen.getAndIncrement() % this.sampleEvery == 0);
+    }
+  }
+
+  /**
+   * One slot of the ring. published is the sequence number of the event in
+   * it, so the writer can tell a finished slot from one still being filled
+   */
+  private static final class Entry {
+    volatile long published = -1;
+    long time;
+    Event event;
+    long node;
+    Object detail;
+    long value;
+  }
+
+  static final Level THRESHOLD = threshold();
+  private static final int CAPACITY = Integer.highestOneBit(Math.max(2,
+      Integer.getInteger("hac.log.buffer", 8192) * 2 - 1));
+  private static final int MASK = CAPACITY - 1;
+
+  private static final Entry[] RING = new Entry[CAPACITY];
+  static {
+    for (int i = 0; i < CAPACITY; i++)
+      RING[i] = new Entry();
+  }
+  // next sequence to hand out to a producer
+  private static final AtomicLong TAIL = new AtomicLong();
+  // next sequence the writer will print, only the writer moves it
+  private static volatile long head = 0;
+  private static final LongAdder DROPPED = new LongAdder();
+  private static volatile Thread writer = null;
+
+  // writer side, only touched under the class lock
+  private static final Writer OUT = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+  private static final StringBuilder LINE = new StringBuilder(128);
+  private static long reportedDrops = 0;
+
+  private EventLog() {}
+
+  /**
+   * Declares a kind of event
+   * @param name short dotted name, e.g. "server.drop"
+   * @param level how important it is
+   * @param nodeLabel what to call the node field, null if it's not used
+   * @param detailLabel what to call the detail field, null if not used
+   * @param valueLabel what to call the value field, null if not used
+   * @return the event, to pass to log()
+   */
+  public static Event event(String name, Level level, String nodeLabel, String detailLabel, String valueLabel) {
+    return new Event(name, level, nodeLabel, detailLabel, valueLabel);
+  }
+
+  /**
+   * Logs one occurrence of an event, if its level and sampling say so.
+   * Never blocks
+   * @param event what happened
+   * @param node packed address of the node it's about, see MembershipTable
+   * @param detail anything with a useful toString(), e.g. a PacketType or
+   *        an exception. Only formatted on the writer thread
+   * @param value a number, e.g. a duration
+   */
+  public static void log(Event event, long node, Object detail, long value) {
+    if (!event.sample())
+      return;
+    long seq;
+    do {
+      seq = TAIL.get();
+      if (seq - head >= CAPACITY) {
+        DROPPED.increment();
+        return;
+      }
+    } while (!TAIL.compareAndSet(seq, seq + 1));
+
+    Entry e = RING[(int) seq & MASK];
+    e.time = System.currentTimeMillis();
+    e.event = event;
+    e.node = node;
+    e.detail = detail;
+    e.value = value;
+    e.published = seq;
+    if (writer == null)
+      startWriter();
+  }
+
+  /**
+   * @return events dropped because the ring was full
+   */
+  public static long dropped() {
+    return DROPPED.sum();
+  }
+
+  private static synchronized void startWriter() {
+    if (writer != null)
+      return;
+    Thread t = new Thread(EventLog::drain, "hac-event-log");
+    t.setDaemon(true);
+    writer = t;
+    t.start();
+    // print whatever is left when the process goes down
+    Runtime.getRuntime().addShutdownHook(new Thread(EventLog::flush, "hac-event-log-flush"));
+  }
+
+  private static void drain() {
+    int idle = 0;
+    while (true) {
+      if (pump(256)) {
+        idle = 0;
+        continue;
+      }
+      // nothing to do: spin briefly, then back off to a millisecond nap
+      if (++idle < 100)
+        Thread.onSpinWait();
+      else
+        LockSupport.parkNanos(1_000_000);
+    }
+  }
+
+  /**
+   * Writes up to max ready events. Once it runs out, owns up to any drops
+   * and flushes
+   * @return true if it wrote anything
+   */
+  private static synchronized boolean pump(int max) {
+    int written = 0;
+    try {
+      for (; written < max; written++) {
+        long seq = head;
+        Entry e = RING[(int) seq & MASK];
+        if (e.published != seq)
+          break;
+        LINE.setLength(0);
+        format(e, LINE);
+        e.event = null;
+        e.detail = null;
+        head = seq + 1;
+        OUT.append(LINE);
+      }
+      if (written < max) {
+        long drops = DROPPED.sum();
+        if (drops != reportedDrops) {
+          OUT.write(Instant.ofEpochMilli(System.currentTimeMillis()) + " WARN log.dropped count=" + (drops - reportedDrops) + "\n");
+          reportedDrops = drops;
+        }
+        OUT.flush();
+      }
+    } catch (IOException e) {
+      // nowhere left to complain to
+    }
+    return written > 0;
+  }
+
+  private static void flush() {
+    while (pump(Integer.MAX_VALUE))
+      ;
+  }
+
+  private static void format(Entry e, StringBuilder line) {
+    Event ev = e.event;
+    line.append(Instant.ofEpochMilli(e.time)).append(' ').append(ev.level).append(' ').append(ev.name);
+    if (ev.nodeLabel != null)
+      line.append(' ').append(ev.nodeLabel).append('=').append(address(e.node));
+    if (ev.detailLabel != null)
+      line.append(' ').append(ev.detailLabel).append('=').append(e.detail);
+    if (ev.valueLabel != null)
+      line.append(' ').append(ev.valueLabel).append('=').append(e.value);
+    line.append('\n');
+  }
+
+  private static String address(long key) {
+    String address = MembershipTable.inetAddressOf(key).getHostAddress() + ":" + MembershipTable.portOf(key);
+    int id = MembershipTable.idOf(key);
+    return id == 0 ? address : address + "#" + id;
+  }
+
+  private static Level threshold() {
+    String level = System.getProperty("hac.log.level");
+    if (level == null)
+      return Boolean.getBoolean("hac.verbose") ? Level.DEBUG : Level.INFO;
+    try {
+      return Level.valueOf(level.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      return Level.INFO;
+    }
+  }
+}
@@ -0,0 +1,59 @@
+/**
+ * @version October 17, 2026
+ * Decides whether a node is still alive based on when its heartbeats
+ * arrived. Implementations keep no per-node state of their own, all of that
+ * lives in the node's ArrivalWindow, so one detector serves a whole cluster.
+ */
+package hac_core;
+
+public interface FailureDetector {
+  /**
+   * @return a fresh, empty history sized for this detector
+   */
+  ArrivalWindow newHistory();
+
+  /**
+   * Records a heartbeat from a node
+   * @param history the node's history
+   * @param now when the heartbeat arrived, in millis
+   */
+  void heartbeat(ArrivalWindow history, long now);
+
+  /**
+   * @param history the node's history
+   * @param now the current time in millis
+   * @return false if the node should be considered dead
+   */
+  boolean isAvailable(ArrivalWindow history, long now);
+
+  /**
+   * Works out when the node will stop being available if no more heartbeats
+   * show up, so callers can arm a timeout instead of polling isAvailable
+   * @param history the node's history
+   * @return the time in millis at which the node becomes suspect
+   */
+  long suspectAt(ArrivalWindow history);
+
+  /**
+   * Builds the detector picked by system properties:
+   *   hac.detector              "fixed" (default) or "phi"
+   *   hac.timeout               fixed timeout in millis
+   *   hac.phi.threshold         suspicion level, default 8
+   *   hac.phi.minStdDev         floor on the interval deviation, default 500 ms
+   *   hac.phi.acceptablePause   slack added to the mean interval, default 0 ms
+   *   hac.phi.firstHeartbeat    interval to assume before any are measured,
+   *                             defaults to half the fixed timeout
+   * @param defaultTimeout fixed timeout to use if hac.timeout isn't set
+   * @return the detector
+   */
+  static FailureDetector fromSystemProperties(long defaultTimeout) {
+    long timeout = Long.getLong("hac.timeout", defaultTimeout);
+    if ("phi".equalsIgnoreCase(System.getProperty("hac.detector", "fixed")))
+      return new PhiAccrualDetector(
+          Double.parseDouble(System.getProperty("hac.phi.threshold", "8")),
+          Long.getLong("hac.phi.minStdDev", 500),
+          Long.getLong("hac.phi.acceptablePause", 0),
+          Long.getLong("hac.phi.firstHeartbeat", timeout / 2));
+    return new FixedTimeoutDetector(timeout);
+  }
+}
@@ -0,0 +1,41 @@
+/**
+ * @version October 17, 2026
+ * The original rule: a node is dead once it has been quiet for a fixed
+ * amount of time.
+ */
+package hac_core;
+
+public final class FixedTimeoutDetector implements FailureDetector {
+  private final long timeout;
+
+  /**
+   * @param timeout how long a node may stay quiet, in millis
+   */
+  public FixedTimeoutDetector(long timeout) {
+    this.timeout = timeout;
+  }
+
+  @Override
+  public ArrivalWindow newHistory() {
+    return new ArrivalWindow(0); // only the last arrival matters
+  }
+
+  @Override
+  public void heartbeat(ArrivalWindow history, long now) {
+    history.record(now);
+  }
+
+  @Override
+  public boolean isAvailable(ArrivalWindow history, long now) {
+    return now <= suspectAt(history);
+  }
+
+  @Override
+  public long suspectAt(ArrivalWindow history) {
+    return history.lastArrival() + this.timeout;
+  }
+
+  public long getTimeout() {
+    return this.timeout;
+  }
+}
@@ -0,0 +1,222 @@
+/**
+ * @version October 17, 2026
+ * Decides how long to wait before the next heartbeat on a link, instead of
+ * picking a random time up to 30 seconds. The interval is worked out from
+ * what the link has shown so far:
+ *   the detection deadline (hac.timeout), minus the time the last heartbeat
+ *   needs to get there (smoothed RTT plus four deviations, as TCP does),
+ *   is the window the other end's detector waits
+ *   the loss rate says how many heartbeats have to go out in that window
+ *   for the chance of all of them getting lost to stay under
+ *   hac.heartbeat.miss, never fewer than BEATS, so one lost heartbeat is
+ *   never enough to get us suspected
+ *   the interval is the window shared out among them, stretched by up to
+ *   MAX_BACKOFF when the caller says it's overloaded, but never so far
+ *   that fewer than MIN_BEATS fit in the window
+ * and then moved by up to hac.heartbeat.jitter either way, so nodes that
+ * started together don't keep heartbeating together. A link that has no
+ * RTT or loss to go on just gets the deadline shared out BEATS ways.
+ *
+ * Links report what they see through sent() and answered(), when
+ * heartbeats get answered, or observed(), when loss is worked out some
+ * other way, e.g. from gaps in the other end's sequence numbers.
+ *
+ * Anything that goes out on a link is as good a heartbeat as a PING, so a
+ * heartbeat that comes due on a link that carried something else less
+ * than hac.heartbeat.idle ago can be skipped, see isIdle(). Only traffic
+ * other than the heartbeats themselves counts, or on a lossy link with a
+ * short interval each heartbeat would stand in for the next. The default is
+ * small enough that one skipped heartbeat still leaves the rest of the
+ * window for the next.
+ *
+ * Settings, read by fromSystemProperties():
+ *   hac.timeout                  detection deadline in millis, as for
+ *                                FailureDetector
+ *   hac.heartbeat.minInterval    shortest interval in millis (250)
+ *   hac.heartbeat.maxInterval    longest interval in millis (the deadline)
+ *   hac.heartbeat.jitter         fraction of the interval to jitter by (0.1)
+ *   hac.heartbeat.miss           acceptable chance of a window with no
+ *                                heartbeats getting through (1e-6)
+ *   hac.heartbeat.loadThreshold  load, 0 to 1, above which to back off (0.7)
+ *   hac.heartbeat.idle           millis a link has to go without traffic
+ *                                before it needs a PING (a sixth of the
+ *                                deadline)
+ *
+ * A scheduler can be shared by any number of threads, each Link is for one
+ * thread at a time.
+ */
+package hac_core;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+public final class HeartbeatScheduler {
+  public static final int BEATS = 3;
+  public static final int MIN_BEATS = 2;
+  public static final int MAX_BEATS = 10;
+  public static final double MAX_BACKOFF = 4;
+
+  // weight of each new sample in the loss rate
+  private static final double LOSS_GAIN = 1.0 / 16;
+
+  /**
+   * What's known about one link
+   */
+  public static final class Link {
+    private long srtt = -1;
+    private long rttvar = 0;
+    private double loss = 0;
+    private long sentAt = -1;
+
+    /**
+     * @return the smoothed RTT in millis, -1 before the first sample
+     */
+    public long rtt() {
+      return this.srtt;
+    }
+
+    /**
+     * @return the fraction of heartbeats lost lately
+     */
+    public double loss() {
+      return this.loss;
+    }
+  }
+
+  private final long deadline;
+  private final long minInterval;
+  private final long maxInterval;
+  private final double jitter;
+  private final double miss;
+  private final double loadThreshold;
+  private final long idle;
+
+  /**
+   * @param deadline how long the other end waits before suspecting us, in
+   *        millis
+   * @param minInterval shortest interval in millis
+   * @param maxInterval longest interval in millis
+   * @param jitter fraction of the interval to move it by, either way
+   * @param miss acceptable chance of a window with no heartbeat arriving
+   * @param loadThreshold load above which to back off
+   * @param idle millis without traffic after which a link needs a PING
+   */
+  public HeartbeatScheduler(long deadline, long minInterval, long maxInterval, double jitter, double miss,
+      double loadThreshold, long idle) {
+    this.deadline = Math.max(1, deadline);
+    this.minInterval = Math.max(1, minInterval);
+    this.maxInterval = Math.max(this.minInterval, maxInterval);
+    this.jitter = Math.max(0, Math.min(jitter, 0.5));
+    this.miss = Math.max(Double.MIN_NORMAL, Math.min(miss, 0.5));
+    this.loadThreshold = Math.max(0, Math.min(loadThreshold, 0.99));
+    this.idle = Math.max(0, idle);
+  }
+
+  /**
+   * @param defaultDeadline deadline to use if hac.timeout isn't set
+   * @return a scheduler set up from the hac.heartbeat.* properties
+   */
+  public static HeartbeatScheduler fromSystemProperties(long defaultDeadline) {
+    long deadline = Long.getLong("hac.timeout", defaultDeadline);
+    return new HeartbeatScheduler(deadline, Long.getLong("hac.heartbeat.minInterval", 250),
+        Long.getLong("hac.heartbeat.maxInterval", deadline),
+        Double.parseDouble(System.getProperty("hac.heartbeat.jitter", "0.1")),
+        Double.parseDouble(System.getProperty("hac.heartbeat.miss", "1e-6")),
+        Double.parseDouble(System.getProperty("hac.heartbeat.loadThreshold", "0.7")),
+        Long.getLong("hac.heartbeat.idle", deadline / (2 * BEATS)));
+  }
+
+  public Link newLink() {
+    return new Link();
+  }
+
+  /**
+   * Records a heartbeat going out. If the last one is still unanswered it
+   * counts as lost
+   * @param link the link
+   * @param now the current time in millis
+   */
+  public void sent(Link link, long now) {
+    if (link.sentAt >= 0)
+      observed(link, 0, 1);
+    link.sentAt = now;
+  }
+
+  /**
+   * Records the answer to the last heartbeat, taking an RTT sample from it.
+   * Answers with nothing outstanding are ignored
+   * @param link the link
+   * @param now the current time in millis
+   */
+  public void answered(Link link, long now) {
+    if (link.sentAt < 0)
+      return;
+    long sample = Math.max(0, now - link.sentAt);
+    link.sentAt = -1;
+    if (link.srtt < 0) {
+      link.srtt = sample;
+      link.rttvar = sample / 2;
+    } else {
+      link.rttvar += (Math.abs(link.srtt - sample) - link.rttvar) / 4;
+      link.srtt += (sample - link.srtt) / 8;
+    }
+    observed(link, 1, 0);
+  }
+
+  /**
+   * Records heartbeats that are known to have arrived or gone missing
+   * @param link the link
+   * @param arrived how many arrived
+   * @param lost how many went missing
+   */
+  public void observed(Link link, int arrived, int lost) {
+    // past a few dozen samples the old rate has all but decayed anyway
+    for (int i = Math.min(lost, 64); i > 0; i--)
+      link.loss += LOSS_GAIN * (1 - link.loss);
+    for (int i = Math.min(arrived, 64); i > 0; i--)
+      link.loss -= LOSS_GAIN * link.loss;
+  }
+
+  /**
+   * @param link the link
+   * @param load how busy the caller is, 0 idle to 1 flat out
+   * @return the interval before the next heartbeat in millis, without
+   *         jitter
+   */
+  public long interval(Link link, double load) {
+    long margin = link.srtt < 0 ? 0 : link.srtt + 4 * link.rttvar;
+    double window = Math.max(this.minInterval, this.deadline - margin);
+    int beats = BEATS;
+    if (link.loss > 0) {
+      double needed = Math.ceil(Math.log(this.miss) / Math.log(Math.min(link.loss, 0.99)));
+      beats = (int) Math.max(BEATS, Math.min(MAX_BEATS, needed));
+    }
+    double interval = window / beats;
+    if (load > this.loadThreshold) {
+      double over = (Math.min(load, 1) - this.loadThreshold) / (1 - this.loadThreshold);
+      interval = Math.min(interval * (1 + over * (MAX_BACKOFF - 1)), Math.max(interval, window / MIN_BEATS));
+    }
+    return Math.max(this.minInterval, Math.min(this.maxInterval, (long) interval));
+  }
+
+  /**
+   * @param lastSent when anything other than a heartbeat last went out on
+   *        the link, -1 if never
+   * @param now the current time in millis
+   * @return whether the link has been quiet long enough that a heartbeat
+   *         that's due has to be sent
+   */
+  public boolean isIdle(long lastSent, long now) {
+    return lastSent < 0 || now - lastSent >= this.idle;
+  }
+
+  /**
+   * @param link the link
+   * @param load how busy the caller is, 0 idle to 1 flat out
+   * @return how long to wait before the next heartbeat in millis, jittered
+   */
+  public long nextDelay(Link link, double load) {
+    long interval = interval(link, load);
+    double spread = this.jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+    return Math.max(1, (long) (interval * (1 + spread)));
+  }
+}
@@ -0,0 +1,166 @@
+/**
+ * @version October 17, 2026
+ * Log-linear histogram of non-negative longs, e.g. latencies. Values below
+ * 16 get a bucket each; above that every power of two is split into 16
+ * buckets, so any value is reported to within about 6% and the whole range
+ * of a long fits in 960 buckets. Recording is one bucket increment plus a
+ * few striped adds, and never allocates.
+ *
+ * Safe to record from any number of threads. Snapshots taken while others
+ * record may be off by the odd in-flight value, which is fine for metrics.
+ */
+package hac_core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ConstructorParameters;
+
+public final class Histogram {
+  private static final int SUB_BITS = 4;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+  /**
+   * What a histogram looked like at one point. A plain bean, so JMX shows
+   * it as a composite
+   */
+  public static final class Snapshot {
+    private final long count;
+    private final double mean;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long p999;
+    private final long max;
+
+    @ConstructorParameters({ "count", "mean", "p50", "p90", "p99", "p999", "max" })
+    public Snapshot(long count, double mean, long p50, long p90, long p99, long p999, long max) {
+      this.count = count;
+      this.mean = mean;
+      this.p50 = p50;
+      this.p90 = p90;
+      this.p99 = p99;
+      this.p999 = p999;
+      this.max = max;
+    }
+
+    public long getCount() {
+      return this.count;
+    }
+
+    public double getMean() {
+      return this.mean;
+    }
+
+    public long getP50() {
+      return this.p50;
+    }
+
+    public long getP90() {
+      return this.p90;
+    }
+
+    public long getP99() {
+      return this.p99;
+    }
+
+    public long getP999() {
+      return this.p999;
+    }
+
+    public long getMax() {
+      return this.max;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("n=%d mean=%.1f p50=%d p90=%d p99=%d p99.9=%d max=%d", this.count, this.mean,
+          this.p50, this.p90, this.p99, this.p999, this.max);
+    }
+  }
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+  /**
+   * Records one value. Negative values count as 0
+   * @param value the value
+   */
+  public void record(long value) {
+    long v = Math.max(0, value);
+    this.counts.incrementAndGet(bucket(v));
+    this.count.increment();
+    this.sum.add(v);
+    this.max.accumulate(v);
+  }
+
+  /**
+   * @return how many values have been recorded
+   */
+  public long count() {
+    return this.count.sum();
+  }
+
+  /**
+   * @param percentile 0 to 100
+   * @return the value at that percentile, to within a bucket, or 0 if
+   *         nothing has been recorded
+   */
+  public long percentile(double percentile) {
+    long total = this.count.sum();
+    if (total == 0)
+      return 0;
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+    long seen = 0;
+    for (int b = 0; b < BUCKETS; b++) {
+      seen += this.counts.get(b);
+      if (seen >= rank)
+        return Math.min(upperBound(b), this.max.get());
+    }
+    return this.max.get();
+  }
+
+  /**
+   * @return the current state
+   */
+  public Snapshot snapshot() {
+    long n = this.count.sum();
+    return new Snapshot(n, n == 0 ? 0 : (double) this.sum.sum() / n, percentile(50), percentile(90),
+        percentile(99), percentile(99.9), this.max.get());
+  }
+
+  /**
+   * Starts over, e.g. at the start of a new reporting interval
+   */
+  public void reset() {
+    for (int b = 0; b < BUCKETS; b++)
+      this.counts.set(b, 0);
+    this.count.reset();
+    this.sum.reset();
+    this.max.reset();
+  }
+
+  static int bucket(long v) {
+    if (v < SUB_COUNT)
+      return (int) v;
+    int exp = 63 - Long.numberOfLeadingZeros(v);
+    int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+    return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+  }
+
+  /**
+   * @return the largest value that lands in bucket b
+   */
+  static long upperBound(int b) {
+    if (b < SUB_COUNT)
+      return b;
+    int exp = b / SUB_COUNT + SUB_BITS - 1;
+    long width = 1L << (exp - SUB_BITS);
+    long lower = (1L << exp) | (b % SUB_COUNT) * width;
+    return lower + width - 1;
+  }
+}
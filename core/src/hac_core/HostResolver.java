@@ -0,0 +1,182 @@
+/**
+ * @version October 17, 2026
+ * Looks hostnames up in the background and remembers the answers for a
+ * while. resolve() never blocks: it hands back a future, shared by everyone
+ * asking for the same name while the lookup is in flight, so a config file
+ * that names the same host a thousand times still costs one lookup, and a
+ * thousand different hosts are looked up a few dozen at a time instead of
+ * one after the other. IPv4 literals are parsed on the spot and never touch
+ * a thread.
+ *
+ * An answer is kept for the TTL, a failed lookup for the (shorter)
+ * negative TTL, so a name that doesn't resolve yet is asked about again
+ * soon but not on every call. Only IPv4 addresses count, a name with
+ * nothing but IPv6 addresses resolves to null like an unknown one.
+ *
+ * Settings, read by fromSystemProperties():
+ *   hac.dns.threads      lookups in flight at once (16)
+ *   hac.dns.ttl          millis to keep an address (60000)
+ *   hac.dns.negativeTtl  millis before retrying a failed name (5000)
+ *
+ * Thread safe.
+ */
+package hac_core;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+public final class HostResolver {
+  private static final class Entry {
+    final CompletableFuture<Inet4Address> address = new CompletableFuture<Inet4Address>();
+    volatile long expires = Long.MAX_VALUE; // until it's done
+  }
+
+  private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+  private final int threads;
+  private final long ttl;
+  private final long negativeTtl;
+  private final Clock clock;
+  // only started once something needs an actual lookup
+  private volatile ExecutorService pool = null;
+
+  /**
+   * @param threads lookups in flight at once
+   * @param ttl millis to keep an address
+   * @param negativeTtl millis to keep a failed lookup
+   * @param clock where the time comes from
+   */
+  public HostResolver(int threads, long ttl, long negativeTtl, Clock clock) {
+    this.threads = Math.max(1, threads);
+    this.ttl = ttl;
+    this.negativeTtl = negativeTtl;
+    this.clock = clock;
+  }
+
+  /**
+   * @param clock where the time comes from
+   * @return a resolver set up from the hac.dns.* properties
+   */
+  public static HostResolver fromSystemProperties(Clock clock) {
+    return new HostResolver(Integer.getInteger("hac.dns.threads", 16), Long.getLong("hac.dns.ttl", 60000),
+        Long.getLong("hac.dns.negativeTtl", 5000), clock);
+  }
+
+  /**
+   * Starts looking a host up, unless there's a fresh answer or a lookup
+   * already on its way. Never blocks
+   * @param host a hostname or an IPv4 literal
+   * @return the host's IPv4 address once known, null if it has none (yet)
+   */
+  public CompletableFuture<Inet4Address> resolve(String host) {
+    Inet4Address literal = parseLiteral(host);
+    if (literal != null)
+      return CompletableFuture.completedFuture(literal);
+
+    long now = this.clock.millis();
+    Entry e = this.cache.get(host);
+    if (e != null && now < e.expires)
+      return e.address;
+    Entry fresh = new Entry();
+    if (e == null ? this.cache.putIfAbsent(host, fresh) != null : !this.cache.replace(host, e, fresh))
+      return this.cache.get(host).address; // someone else got there first
+    try {
+      pool().execute(() -> lookUp(host, fresh));
+    } catch (RejectedExecutionException x) { // shut down
+      finish(fresh, null);
+    }
+    return fresh.address;
+  }
+
+  /**
+   * @param host a hostname or an IPv4 literal
+   * @return its address if it's already known, otherwise null, having
+   *         started a lookup so it's known later
+   */
+  public Inet4Address lookup(String host) {
+    return resolve(host).getNow(null);
+  }
+
+  /**
+   * Stops the lookup threads. Lookups in flight still finish, later ones
+   * come back null
+   */
+  public void shutdown() {
+    ExecutorService p = this.pool;
+    if (p != null)
+      p.shutdown();
+  }
+
+  private void lookUp(String host, Entry e) {
+    Inet4Address found = null;
+    try {
+      for (InetAddress a : InetAddress.getAllByName(host)) {
+        if (a instanceof Inet4Address) {
+          found = (Inet4Address) a;
+          break;
+        }
+      }
+    } catch (UnknownHostException x) {
+      // not there (yet), found stays null
+    }
+    finish(e, found);
+  }
+
+  private void finish(Entry e, Inet4Address address) {
+    e.expires = this.clock.millis() + (address != null ? this.ttl : this.negativeTtl);
+    e.address.complete(address);
+  }
+
+  private ExecutorService pool() {
+    ExecutorService p = this.pool;
+    if (p == null) {
+      synchronized (this) {
+        p = this.pool;
+        if (p == null) {
+          p = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread t = new Thread(r, "hac-dns");
+            t.setDaemon(true);
+            return t;
+          });
+          this.pool = p;
+        }
+      }
+    }
+    return p;
+  }
+
+  /**
+   * @return the address if host is a dotted quad, otherwise null
+   */
+  private static Inet4Address parseLiteral(String host) {
+    byte[] b = new byte[4];
+    int part = 0;
+    int value = -1;
+    for (int i = 0; i < host.length(); i++) {
+      char c = host.charAt(i);
+      if (c >= '0' && c <= '9') {
+        value = (value < 0 ? 0 : value * 10) + (c - '0');
+        if (value > 255)
+          return null;
+      } else if (c == '.' && value >= 0 && part < 3) {
+        b[part++] = (byte) value;
+        value = -1;
+      } else {
+        return null;
+      }
+    }
+    if (part != 3 || value < 0)
+      return null;
+    b[3] = (byte) value;
+    try {
+      return (Inet4Address) InetAddress.getByAddress(b);
+    } catch (UnknownHostException x) {
+      return null; // can't happen, it's four bytes
+    }
+  }
+}
@@ -0,0 +1,29 @@
+/**
+ * @version October 17, 2026
+ * Hears about nodes coming and going, as decided by whoever owns the
+ * membership (the Server or a P2P runtime). Calls come from the owner's own
+ * thread in the middle of its work, so keep them quick, and thread safe if
+ * the listener is shared.
+ */
+package hac_core;
+
+public interface MembershipListener {
+  /**
+   * Listens to nothing, the default
+   */
+  MembershipListener NONE = new MembershipListener() {};
+
+  /**
+   * A node joined or came back
+   * @param key packed address of the node, see MembershipTable.pack()
+   * @param now when it was noticed, in millis
+   */
+  default void nodeUp(long key, long now) {}
+
+  /**
+   * A node was declared dead
+   * @param key packed address of the node, see MembershipTable.pack()
+   * @param now when it was declared dead, in millis
+   */
+  default void nodeDown(long key, long now) {}
+}
@@ -0,0 +1,211 @@
+/**
+ * @version October 17, 2026
+ * Versioned history of who joined and who left, so the server can tell a
+ * node what changed since the view it already has instead of sending the
+ * whole membership every time. Every join or leave bumps the version by
+ * one. The last few changes are kept in a ring; a node that asks for the
+ * changes since a version still in the ring gets just those (a delta), one
+ * that's further behind than that gets the whole view (a snapshot). Either
+ * way the reply is split over as many packets as it takes.
+ *
+ * Wire format of a STATUS (GOTO) body:
+ *    u8   DELTA or SNAPSHOT, plus WITH_IDS
+ *    i32  version of the view once this packet is applied
+ *    i32  DELTA: version the changes go on top of
+ *         SNAPSHOT: number of members in the whole view
+ *    u16  number of entries
+ *    per entry:
+ *       u8   NOOB (joined) or WTF (left), always NOOB in a snapshot
+ *       i32  IPv4 address
+ *       u16  port
+ *       u16  logical id, see ClientHost. Only with WITH_IDS
+ * The entries of a delta are in the order the changes happened. See
+ * MembershipView for the other end. Bodies are always written WITH_IDS,
+ * so ids on one socket stay apart; a reader from before the ids doesn't
+ * know those kinds and ignores them instead of misreading the entries,
+ * and MembershipView still reads bodies without.
+ *
+ * Not thread safe.
+ */
+package hac_core;
+
+import java.nio.ByteBuffer;
+
+import packet_format.HACPacket;
+import packet_format.HACPacket.PacketType;
+
+public final class MembershipLog {
+  public static final byte DELTA = 0;
+  public static final byte SNAPSHOT = 1;
+  // flag on the kind: every entry has a logical id on the end
+  public static final byte WITH_IDS = 2;
+
+  // kind, version, base or total, entry count
+  public static final int HEADER = 11;
+
+  // type, address, port, id
+  public static final int ENTRY = 9;
+  // type, address, port, from before WITH_IDS
+  public static final int LEGACY_ENTRY = 7;
+
+  // most entries that fit one packet
+  public static final int MAX_ENTRIES = (HACPacket.MAX_BODY_SIZE - HEADER) / ENTRY;
+
+  // change number v sits at v % capacity
+  private final long[] keys;
+  private final boolean[] joined;
+  private int version = 0;
+
+  /**
+   * @param history how many of the latest changes to keep for deltas
+   */
+  public MembershipLog(int history) {
+    this.keys = new long[Math.max(1, history)];
+    this.joined = new boolean[this.keys.length];
+  }
+
+  /**
+   * Records a node joining
+   * @param key packed address of the node, see MembershipTable
+   * @return the new version
+   */
+  public int joined(long key) {
+    return record(key, true);
+  }
+
+  /**
+   * Records a node leaving
+   * @param key packed address of the node, see MembershipTable
+   * @return the new version
+   */
+  public int left(long key) {
+    return record(key, false);
+  }
+
+  /**
+   * @return the version of the current view, 0 before the first change
+   */
+  public int version() {
+    return this.version;
+  }
+
+  /**
+   * @param since the version a node has
+   * @return whether every change after it is still here, so it can be sent
+   *         a delta. A version from the future (e.g. from before a restart)
+   *         never can
+   */
+  public boolean hasSince(int since) {
+    return since >= 0 && since <= this.version && this.version - since <= this.keys.length;
+  }
+
+  /**
+   * Writes one delta packet's body at dst's position, with as many of the
+   * changes after the given version as fit
+   * @param since the version the changes go on top of, see hasSince()
+   * @param dst where to write it
+   * @return the version the body brings a node up to, since if there were
+   *         no changes after it
+   */
+  public int writeDelta(int since, ByteBuffer dst) {
+    int count = Math.min(this.version - since, Math.min(MAX_ENTRIES, (dst.remaining() - HEADER) / ENTRY));
+    int to = since + count;
+    header(dst, DELTA, to, since, count);
+    for (int v = since + 1; v <= to; v++) {
+      int i = v % this.keys.length;
+      entry(dst, this.joined[i] ? PacketType.NOOB : PacketType.WTF, this.keys[i]);
+    }
+    return to;
+  }
+
+  /**
+   * Copies the changes after the given version, oldest first, so a delta
+   * can be written from them without holding on to the log, see
+   * writeDelta(ByteBuffer, int, long[], boolean[], int, int)
+   * @param since the version the changes go on top of, see hasSince()
+   * @param keys where the nodes go, with room for version() - since
+   * @param joined where whether each one joined or left goes, same size
+   * @return how many changes were copied
+   */
+  public int copySince(int since, long[] keys, boolean[] joined) {
+    int count = this.version - since;
+    for (int i = 0; i < count; i++) {
+      int at = (since + 1 + i) % this.keys.length;
+      keys[i] = this.keys[at];
+      joined[i] = this.joined[at];
+    }
+    return count;
+  }
+
+  /**
+   * Writes one delta packet's body at dst's position from changes copied
+   * out with copySince(), with as many as fit starting from the given one
+   * @param dst where to write it
+   * @param since the version the changes go on top of
+   * @param keys the nodes that changed
+   * @param joined whether each one joined or left
+   * @param total how many changes there are
+   * @param from index of the first change to write
+   * @return index of the first change not written, total once done
+   */
+  public static int writeDelta(ByteBuffer dst, int since, long[] keys, boolean[] joined, int total, int from) {
+    int count = Math.min(total - from, Math.min(MAX_ENTRIES, (dst.remaining() - HEADER) / ENTRY));
+    header(dst, DELTA, since + from + count, since + from, count);
+    for (int i = from; i < from + count; i++)
+      entry(dst, joined[i] ? PacketType.NOOB : PacketType.WTF, keys[i]);
+    return from + count;
+  }
+
+  /**
+   * Writes one snapshot packet's body at dst's position, with as many
+   * members as fit starting from the given one. All the packets of one
+   * snapshot have to be written without the view changing in between
+   * @param dst where to write it
+   * @param members packed addresses of every member
+   * @param total how many of members are in use
+   * @param from index of the first member to write
+   * @return index of the first member not written, total once done
+   */
+  public int writeSnapshot(ByteBuffer dst, long[] members, int total, int from) {
+    return writeSnapshot(dst, this.version, members, total, from);
+  }
+
+  /**
+   * Same as writeSnapshot(ByteBuffer, long[], int, int), for members copied
+   * out of the log at the given version
+   * @param dst where to write it
+   * @param version the version the members are the view of
+   * @param members packed addresses of every member
+   * @param total how many of members are in use
+   * @param from index of the first member to write
+   * @return index of the first member not written, total once done
+   */
+  public static int writeSnapshot(ByteBuffer dst, int version, long[] members, int total, int from) {
+    int count = Math.min(total - from, Math.min(MAX_ENTRIES, (dst.remaining() - HEADER) / ENTRY));
+    header(dst, SNAPSHOT, version, total, count);
+    for (int i = from; i < from + count; i++)
+      entry(dst, PacketType.NOOB, members[i]);
+    return from + count;
+  }
+
+  private int record(long key, boolean up) {
+    int v = ++this.version;
+    this.keys[v % this.keys.length] = key;
+    this.joined[v % this.keys.length] = up;
+    return v;
+  }
+
+  private static void header(ByteBuffer dst, byte kind, int version, int baseOrTotal, int count) {
+    dst.put((byte) (kind | WITH_IDS));
+    dst.putInt(version);
+    dst.putInt(baseOrTotal);
+    dst.putShort((short) count);
+  }
+
+  private static void entry(ByteBuffer dst, PacketType type, long key) {
+    dst.put(type.code());
+    dst.putInt(MembershipTable.addressOf(key));
+    dst.putShort((short) MembershipTable.portOf(key));
+    dst.putShort((short) MembershipTable.idOf(key));
+  }
+}
@@ -0,0 +1,360 @@
+/**
+ * @version October 17, 2026
+ * Concurrent map from a node's packed address (IPv4 and port in one long,
+ * see pack(), plus a logical id when several nodes share a socket, see
+ * withId()) to whatever we keep about that node. Lookups take no locks and
+ * allocate nothing, so they are safe on the hot receive path of any number of
+ * threads. Writes lock one of a fixed number of stripes, so threads only
+ * block each other when they touch the same stripe.
+ *
+ * Each stripe is an open addressing table with linear probing. A slot's key
+ * never changes once it has been set (removing a node just clears the value)
+ * which is what lets readers go without locks: a reader that finds its key
+ * can trust whatever value sits next to it. Cleared slots are dropped the
+ * next time the stripe is rebuilt.
+ */
+package hac_core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+
+public final class MembershipTable<V> {
+  private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(long[].class);
+  private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+
+  // 0.0.0.0:0 is never a real peer, so it marks a slot that was never used
+  private static final long FREE = 0;
+
+  private static final int DEFAULT_STRIPES = 64;
+  private static final int MIN_CAPACITY = 16;
+
+  private static final class Table {
+    final long[] keys;
+    final Object[] values;
+    final int mask;
+
+    Table(int capacity) {
+      this.keys = new long[capacity];
+      this.values = new Object[capacity];
+      this.mask = capacity - 1;
+    }
+  }
+
+  private static final class Stripe {
+    volatile Table table = new Table(MIN_CAPACITY);
+    int size = 0; // live entries
+    int used = 0; // slots with a key, live or cleared
+  }
+
+  private final Stripe[] stripes;
+  private final int stripeShift;
+
+  public MembershipTable() {
+    this(DEFAULT_STRIPES);
+  }
+
+  /**
+   * @param stripes how many independently locked stripes to use, rounded up
+   *        to a power of two. More stripes means less contention between
+   *        writers
+   */
+  public MembershipTable(int stripes) {
+    int n = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+    this.stripes = new Stripe[n];
+    for (int i = 0; i < n; i++)
+      this.stripes[i] = new Stripe();
+    this.stripeShift = 32 - Integer.numberOfTrailingZeros(n);
+  }
+
+  /**
+   * Packs an IPv4 address and port into a key
+   * @param ipv4 the address, most significant octet first
+   * @param port the port
+   * @return the key
+   */
+  public static long pack(int ipv4, int port) {
+    return (ipv4 & 0xFFFFFFFFL) << 16 | (port & 0xFFFF);
+  }
+
+  /**
+   * Packs an address and port into a key without allocating
+   * @param address an IPv4 address
+   * @param port the port
+   * @return the key
+   * @throws IllegalArgumentException if the address isn't IPv4
+   */
+  public static long pack(InetAddress address, int port) {
+    if (!(address instanceof Inet4Address))
+      throw new IllegalArgumentException("only IPv4 addresses can be packed: " + address);
+    // Inet4Address.hashCode() is the address itself, and unlike getAddress()
+    // it doesn't copy anything
+    return pack(address.hashCode(), port);
+  }
+
+  /**
+   * @param address an IPv4 socket address
+   * @return the key for it
+   */
+  public static long pack(InetSocketAddress address) {
+    return pack(address.getAddress(), address.getPort());
+  }
+
+  /**
+   * Tags a key with a logical id, for telling apart nodes that share one
+   * address and port. The id sits in the 16 bits above the address, so
+   * addressOf() and portOf() still work on a tagged key, and id 0 is the
+   * key untagged
+   * @param key a packed address
+   * @param id the logical id, 0 to 65535
+   * @return the tagged key
+   */
+  public static long withId(long key, int id) {
+    return (key & 0xFFFFFFFFFFFFL) | (id & 0xFFFFL) << 48;
+  }
+
+  /**
+   * @return the logical id a key is tagged with, 0 if none
+   */
+  public static int idOf(long key) {
+    return (int) (key >>> 48);
+  }
+
+  /**
+   * @return the IPv4 address part of a key
+   */
+  public static int addressOf(long key) {
+    return (int) (key >>> 16);
+  }
+
+  /**
+   * @return the address part of a key as an InetAddress
+   */
+  public static Inet4Address inetAddressOf(long key) {
+    int ip = addressOf(key);
+    try {
+      return (Inet4Address) InetAddress.getByAddress(
+          new byte[] { (byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip });
+    } catch (UnknownHostException e) { // only thrown for bad lengths, which can't happen
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the port part of a key
+   */
+  public static int portOf(long key) {
+    return (int) (key & 0xFFFF);
+  }
+
+  /**
+   * @param key a packed address
+   * @return the value for it, or null if there isn't one
+   */
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    int h = hash(key);
+    Table t = stripeFor(h).table;
+    for (int i = h & t.mask;; i = (i + 1) & t.mask) {
+      long k = (long) KEYS.getAcquire(t.keys, i);
+      if (k == key)
+        return (V) VALUES.getAcquire(t.values, i);
+      if (k == FREE)
+        return null;
+    }
+  }
+
+  /**
+   * Sets the value for a key
+   * @return the previous value, or null
+   */
+  public V put(long key, V value) {
+    return put(key, value, false);
+  }
+
+  /**
+   * Sets the value for a key unless it already has one
+   * @return the existing value, or null if value was added
+   */
+  public V putIfAbsent(long key, V value) {
+    return put(key, value, true);
+  }
+
+  /**
+   * Gets the value for a key, making one if there isn't one yet. The factory
+   * runs under the stripe's lock, so keep it cheap
+   * @param key a packed address
+   * @param factory makes the value from the key
+   * @return the existing or new value
+   */
+  public V computeIfAbsent(long key, LongFunction<? extends V> factory) {
+    V v = get(key);
+    if (v != null)
+      return v;
+    int h = hash(key);
+    Stripe s = stripeFor(h);
+    synchronized (s) {
+      v = get(key);
+      if (v == null) {
+        v = factory.apply(key);
+        insert(s, h, key, v, false);
+      }
+      return v;
+    }
+  }
+
+  /**
+   * Removes a key
+   * @return the value that was removed, or null
+   */
+  public V remove(long key) {
+    return remove(key, null);
+  }
+
+  /**
+   * Removes a key, but only if it still maps to the given value. Handy when
+   * a node may have been replaced by a newer one in the meantime
+   * @param key a packed address
+   * @param expected the value to remove, or null for any value
+   * @return the value that was removed, or null
+   */
+  @SuppressWarnings("unchecked")
+  public V remove(long key, V expected) {
+    int h = hash(key);
+    Stripe s = stripeFor(h);
+    synchronized (s) {
+      Table t = s.table;
+      for (int i = h & t.mask;; i = (i + 1) & t.mask) {
+        long k = t.keys[i];
+        if (k == FREE)
+          return null;
+        if (k == key) {
+          V old = (V) t.values[i];
+          if (old == null || (expected != null && old != expected))
+            return null;
+          VALUES.setRelease(t.values, i, null);
+          s.size--;
+          return old;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return how many entries there are. Only a snapshot if other threads are
+   *         writing
+   */
+  public int size() {
+    int n = 0;
+    for (Stripe s : this.stripes)
+      synchronized (s) {
+        n += s.size;
+      }
+    return n;
+  }
+
+  /**
+   * Calls action for every value. Takes no locks, so entries added or
+   * removed while this runs may or may not be seen
+   * @param action what to do with each value
+   */
+  @SuppressWarnings("unchecked")
+  public void forEach(Consumer<? super V> action) {
+    for (Stripe s : this.stripes) {
+      Table t = s.table;
+      for (int i = 0; i < t.values.length; i++) {
+        Object v = VALUES.getAcquire(t.values, i);
+        if (v != null)
+          action.accept((V) v);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private V put(long key, V value, boolean onlyIfAbsent) {
+    if (key == FREE)
+      throw new IllegalArgumentException("0.0.0.0:0 can't be used as a key");
+    if (value == null)
+      throw new NullPointerException("null values are not allowed");
+    int h = hash(key);
+    Stripe s = stripeFor(h);
+    synchronized (s) {
+      return (V) insert(s, h, key, value, onlyIfAbsent);
+    }
+  }
+
+  /**
+   * Does the actual insert. Caller holds the stripe's lock
+   */
+  private Object insert(Stripe s, int h, long key, Object value, boolean onlyIfAbsent) {
+    Table t = s.table;
+    for (int i = h & t.mask;; i = (i + 1) & t.mask) {
+      long k = t.keys[i];
+      if (k == key) {
+        Object old = t.values[i];
+        if (old == null || !onlyIfAbsent) {
+          VALUES.setRelease(t.values, i, value);
+          if (old == null)
+            s.size++;
+        }
+        return old;
+      }
+      if (k == FREE) {
+        // value first, so a reader that sees the key also sees the value
+        VALUES.setRelease(t.values, i, value);
+        KEYS.setRelease(t.keys, i, key);
+        s.size++;
+        if (++s.used * 4 > t.keys.length * 3)
+          rebuild(s);
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Copies a stripe's live entries into a fresh table, growing it if it is
+   * mostly live entries, and publishes it. Caller holds the stripe's lock
+   */
+  private void rebuild(Stripe s) {
+    Table old = s.table;
+    int capacity = old.keys.length;
+    if (s.size * 2 > capacity)
+      capacity <<= 1;
+    Table t = new Table(Math.max(MIN_CAPACITY, capacity));
+    for (int i = 0; i < old.keys.length; i++) {
+      Object v = old.values[i];
+      if (v == null)
+        continue;
+      long key = old.keys[i];
+      int j = hash(key) & t.mask;
+      while (t.keys[j] != FREE)
+        j = (j + 1) & t.mask;
+      t.keys[j] = key;
+      t.values[j] = v;
+    }
+    s.used = s.size;
+    s.table = t; // volatile write publishes the filled-in arrays
+  }
+
+  private Stripe stripeFor(int h) {
+    return this.stripes[this.stripes.length == 1 ? 0 : h >>> this.stripeShift];
+  }
+
+  /**
+   * Spreads the bits of a key. High bits pick the stripe, low bits pick the
+   * slot, so the two don't line up
+   */
+  private static int hash(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return (int) key;
+  }
+}
@@ -0,0 +1,106 @@
+/**
+ * @version October 17, 2026
+ * A node's copy of the membership, kept up to date from the STATUS (GOTO)
+ * bodies a MembershipLog writes. A delta is applied as long as it starts
+ * at or before our version and takes us past it, since replaying a change
+ * we already have leaves things as they were. A snapshot is put together
+ * on the side from its packets and only replaces the view once every
+ * member has arrived, going by how many entries came in rather than how
+ * many different keys, so nothing can keep it from completing. Anything
+ * else is ignored: the node sees its version is still behind and asks
+ * again. Bodies with and without logical ids are both read, see
+ * MembershipLog.
+ *
+ * Not thread safe.
+ */
+package hac_core;
+
+import java.nio.ByteBuffer;
+
+import packet_format.HACPacket.PacketType;
+
+public final class MembershipView {
+  private MembershipTable<Boolean> members = new MembershipTable<Boolean>();
+  private int version = 0;
+
+  // snapshot being put together, null if there isn't one
+  private MembershipTable<Boolean> incoming = null;
+  private int incomingVersion = -1;
+  private int incomingCount = 0;
+
+  /**
+   * @return the version of the view, 0 if it's empty
+   */
+  public int version() {
+    return this.version;
+  }
+
+  public int size() {
+    return this.members.size();
+  }
+
+  /**
+   * @param key packed address of a node, see MembershipTable
+   * @return whether the node is a member
+   */
+  public boolean contains(long key) {
+    return this.members.get(key) != null;
+  }
+
+  /**
+   * Applies a STATUS body
+   * @param src buffer holding the body
+   * @param offset index of the first body byte
+   * @param length length of the body
+   * @return whether the version moved
+   */
+  public boolean apply(ByteBuffer src, int offset, int length) {
+    if (length < MembershipLog.HEADER)
+      return false;
+    byte kind = src.get(offset);
+    boolean ids = (kind & MembershipLog.WITH_IDS) != 0;
+    kind &= ~MembershipLog.WITH_IDS;
+    int entry = ids ? MembershipLog.ENTRY : MembershipLog.LEGACY_ENTRY;
+    int to = src.getInt(offset + 1);
+    int baseOrTotal = src.getInt(offset + 5);
+    int count = Math.min(src.getShort(offset + 9) & 0xFFFF, (length - MembershipLog.HEADER) / entry);
+    int pos = offset + MembershipLog.HEADER;
+
+    if (kind == MembershipLog.DELTA) {
+      if (baseOrTotal > this.version || to <= this.version)
+        return false; // a gap, or nothing new
+      for (int i = 0; i < count; i++, pos += entry) {
+        long key = key(src, pos, ids);
+        if (src.get(pos) == PacketType.NOOB.code())
+          this.members.put(key, Boolean.TRUE);
+        else
+          this.members.remove(key);
+      }
+      this.version = to;
+      return true;
+    }
+    if (kind != MembershipLog.SNAPSHOT)
+      return false;
+
+    if (this.incoming == null || this.incomingVersion != to) {
+      this.incoming = new MembershipTable<Boolean>();
+      this.incomingVersion = to;
+      this.incomingCount = 0;
+    }
+    for (int i = 0; i < count; i++, pos += entry)
+      this.incoming.put(key(src, pos, ids), Boolean.TRUE);
+    this.incomingCount += count;
+    if (this.incomingCount < baseOrTotal)
+      return false;
+    this.members = this.incoming;
+    this.version = to;
+    this.incoming = null;
+    this.incomingVersion = -1;
+    return true;
+  }
+
+  private static long key(ByteBuffer src, int pos, boolean ids) {
+    long key = MembershipTable.pack(src.getInt(pos + 1), src.getShort(pos + 5) & 0xFFFF);
+    return ids ? MembershipTable.withId(key, src.getShort(pos + 7) & 0xFFFF) : key;
+  }
+}
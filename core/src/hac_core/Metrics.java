@@ -0,0 +1,192 @@
+/**
+ * @version October 17, 2026
+ * Counters and histograms for one Server or P2P runtime, shown over JMX.
+ * Counters are LongAdders, so threads bumping the same one don't fight
+ * over a cache line; histograms are Histograms. Nothing here allocates on
+ * the way in, so it stays on in production.
+ *
+ * JMX registration can be turned off with -Dhac.metrics.jmx=false, in which
+ * case everything is still counted and can be read through the getters.
+ */
+package hac_core;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import packet_format.HACPacket.PacketType;
+
+public final class Metrics implements MetricsMXBean {
+  private static final boolean JMX = !"false".equalsIgnoreCase(System.getProperty("hac.metrics.jmx"));
+  private static final PacketType[] TYPES = PacketType.values();
+
+  private final LongAdder[] in = adders(TYPES.length);
+  private final LongAdder[] out = adders(TYPES.length);
+  private final LongAdder up = new LongAdder();
+  private final LongAdder down = new LongAdder();
+  private final Histogram receive = new Histogram();
+  private final Histogram interval = new Histogram();
+  private final Histogram detection = new Histogram();
+  private ObjectName name = null;
+
+  /**
+   * @param type the packet that came in
+   */
+  public void received(PacketType type) {
+    this.in[type.ordinal()].increment();
+  }
+
+  /**
+   * @param type the packet that went out
+   */
+  public void sent(PacketType type) {
+    this.out[type.ordinal()].increment();
+  }
+
+  /**
+   * @param nanos how long it took to handle one received packet
+   */
+  public void receiveTime(long nanos) {
+    this.receive.record(nanos);
+  }
+
+  /**
+   * @param millis time since the same node's previous heartbeat
+   */
+  public void heartbeatInterval(long millis) {
+    this.interval.record(millis);
+  }
+
+  /**
+   * A node came up, or joined for the first time
+   */
+  public void nodeUp() {
+    this.up.increment();
+  }
+
+  /**
+   * A node was declared down
+   * @param quietFor millis since it was last heard from, or -1 if it
+   *        never was (e.g. we only heard about it through gossip)
+   */
+  public void nodeDown(long quietFor) {
+    this.down.increment();
+    if (quietFor >= 0)
+      this.detection.record(quietFor);
+  }
+
+  /**
+   * Shows these metrics over JMX as hac:type=type,port=port. A name that's
+   * already taken (two runtimes in one process on the same port) only gets
+   * a warning
+   * @param type "Server" or "P2P"
+   * @param port the runtime's port
+   */
+  public void register(String type, int port) {
+    register("hac:type=" + type + ",port=" + port);
+  }
+
+  /**
+   * Same as register(type, port), for one of several shards sharing a
+   * port. Shows up as hac:type=type,port=port,shard=shard
+   * @param type "Server"
+   * @param port the port the shards share
+   * @param shard which shard these metrics are for
+   */
+  public void register(String type, int port, int shard) {
+    register("hac:type=" + type + ",port=" + port + ",shard=" + shard);
+  }
+
+  private void register(String objectName) {
+    if (!JMX)
+      return;
+    try {
+      ObjectName n = new ObjectName(objectName);
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, n);
+      this.name = n;
+    } catch (JMException e) {
+      System.err.println("Metrics not registered with JMX: " + e);
+    }
+  }
+
+  /**
+   * Takes these metrics off JMX again, if they were on it
+   */
+  public void unregister() {
+    if (this.name == null)
+      return;
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      server.unregisterMBean(this.name);
+    } catch (JMException e) {
+      // gone already
+    }
+    this.name = null;
+  }
+
+  @Override
+  public Map<String, Long> getPacketsIn() {
+    return byType(this.in);
+  }
+
+  @Override
+  public Map<String, Long> getPacketsOut() {
+    return byType(this.out);
+  }
+
+  @Override
+  public long getMembers() {
+    return this.up.sum() - this.down.sum();
+  }
+
+  @Override
+  public long getNodesUp() {
+    return this.up.sum();
+  }
+
+  @Override
+  public long getNodesDown() {
+    return this.down.sum();
+  }
+
+  @Override
+  public Histogram.Snapshot getReceiveNanos() {
+    return this.receive.snapshot();
+  }
+
+  @Override
+  public Histogram.Snapshot getHeartbeatIntervalMillis() {
+    return this.interval.snapshot();
+  }
+
+  @Override
+  public Histogram.Snapshot getDetectionMillis() {
+    return this.detection.snapshot();
+  }
+
+  @Override
+  public void resetHistograms() {
+    this.receive.reset();
+    this.interval.reset();
+    this.detection.reset();
+  }
+
+  private static Map<String, Long> byType(LongAdder[] counters) {
+    Map<String, Long> m = new LinkedHashMap<String, Long>();
+    for (PacketType t : TYPES)
+      m.put(t.name(), counters[t.ordinal()].sum());
+    return m;
+  }
+
+  private static LongAdder[] adders(int n) {
+    LongAdder[] a = new LongAdder[n];
+    for (int i = 0; i < n; i++)
+      a[i] = new LongAdder();
+    return a;
+  }
+}
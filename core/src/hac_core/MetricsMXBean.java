@@ -0,0 +1,56 @@
+/**
+ * @version October 17, 2026
+ * What a Server or P2P runtime shows over JMX, see Metrics. Registered as
+ * hac:type=Server,port=N or hac:type=P2P,port=N
+ */
+package hac_core;
+
+import java.util.Map;
+
+public interface MetricsMXBean {
+  /**
+   * @return packets received so far, by packet type
+   */
+  Map<String, Long> getPacketsIn();
+
+  /**
+   * @return packets sent so far, by packet type
+   */
+  Map<String, Long> getPacketsOut();
+
+  /**
+   * @return nodes currently up
+   */
+  long getMembers();
+
+  /**
+   * @return how many times a node came up, including first joins
+   */
+  long getNodesUp();
+
+  /**
+   * @return how many times a node was declared down
+   */
+  long getNodesDown();
+
+  /**
+   * @return nanos spent handling each received packet
+   */
+  Histogram.Snapshot getReceiveNanos();
+
+  /**
+   * @return millis between heartbeats from the same node
+   */
+  Histogram.Snapshot getHeartbeatIntervalMillis();
+
+  /**
+   * @return millis from a node's last heartbeat to it being declared down
+   */
+  Histogram.Snapshot getDetectionMillis();
+
+  /**
+   * Starts the histograms over, so the next read covers just the time
+   * since. Counters keep counting
+   */
+  void resetHistograms();
+}
@@ -0,0 +1,135 @@
+/**
+ * @version October 17, 2026
+ * Phi accrual failure detector (Hayashibara et al.). Instead of a yes/no
+ * timeout it works out phi, how unlikely it is that the next heartbeat is
+ * still on its way given the intervals seen so far, on a log10 scale. phi = 8
+ * means roughly a 1 in 10^8 chance that we're wrong to call the node dead.
+ *
+ * Because the model is built from each node's own intervals, a node that
+ * pings every second gets suspected within a few seconds, while a node on a
+ * jittery link gets more slack instead of flapping.
+ *
+ * Uses the logistic approximation of the normal CDF, same as Akka and
+ * Cassandra.
+ */
+package hac_core;
+
+public final class PhiAccrualDetector implements FailureDetector {
+  public static final int DEFAULT_WINDOW = 100;
+
+  private final double threshold;
+  private final double minStdDev;
+  private final double acceptablePause;
+  private final double firstHeartbeat;
+  private final int window;
+
+  // how many standard deviations past the mean phi reaches the threshold
+  private final double thresholdDeviations;
+
+  /**
+   * @param threshold phi at which a node is considered dead
+   * @param minStdDev floor on the standard deviation in millis, so a node
+   *        with perfectly regular heartbeats isn't suspected the moment one
+   *        is a little late
+   * @param acceptablePause extra millis added to the mean interval, e.g. to
+   *        ride out GC pauses
+   * @param firstHeartbeat interval in millis to assume until one has been
+   *        measured
+   */
+  public PhiAccrualDetector(double threshold, long minStdDev, long acceptablePause, long firstHeartbeat) {
+    this(threshold, minStdDev, acceptablePause, firstHeartbeat, DEFAULT_WINDOW);
+  }
+
+  /**
+   * @param window how many intervals each node's history keeps
+   */
+  public PhiAccrualDetector(double threshold, long minStdDev, long acceptablePause, long firstHeartbeat,
+      int window) {
+    if (threshold <= 0)
+      throw new IllegalArgumentException("threshold must be positive");
+    if (minStdDev <= 0 || firstHeartbeat <= 0 || window <= 0)
+      throw new IllegalArgumentException("minStdDev, firstHeartbeat and window must be positive");
+    this.threshold = threshold;
+    this.minStdDev = minStdDev;
+    this.acceptablePause = acceptablePause;
+    this.firstHeartbeat = firstHeartbeat;
+    this.window = window;
+    this.thresholdDeviations = solveDeviations(threshold);
+  }
+
+  @Override
+  public ArrivalWindow newHistory() {
+    return new ArrivalWindow(this.window);
+  }
+
+  @Override
+  public void heartbeat(ArrivalWindow history, long now) {
+    history.record(now);
+  }
+
+  @Override
+  public boolean isAvailable(ArrivalWindow history, long now) {
+    return phi(history, now) < this.threshold;
+  }
+
+  @Override
+  public long suspectAt(ArrivalWindow history) {
+    // phi only depends on how many deviations past the mean we are, so the
+    // crossing point falls straight out of the precomputed multiple
+    return history.lastArrival() + (long) Math.ceil(mean(history) + this.thresholdDeviations * stdDev(history));
+  }
+
+  /**
+   * @param history the node's history
+   * @param now the current time in millis
+   * @return the suspicion level, 0 if the node has never been heard from
+   */
+  public double phi(ArrivalWindow history, long now) {
+    if (history.lastArrival() < 0)
+      return 0;
+    return phi((now - history.lastArrival() - mean(history)) / stdDev(history));
+  }
+
+  public double getThreshold() {
+    return this.threshold;
+  }
+
+  private double mean(ArrivalWindow history) {
+    return (history.size() > 0 ? history.mean() : this.firstHeartbeat) + this.acceptablePause;
+  }
+
+  private double stdDev(ArrivalWindow history) {
+    double sd = history.size() > 0 ? history.stdDev() : this.firstHeartbeat / 4;
+    return Math.max(sd, this.minStdDev);
+  }
+
+  /**
+   * @param y how many standard deviations the current silence is past the
+   *        mean interval
+   * @return -log10 of the chance a heartbeat is still coming
+   */
+  private static double phi(double y) {
+    double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+    if (y > 0)
+      return -Math.log10(e / (1.0 + e));
+    return -Math.log10(1.0 - 1.0 / (1.0 + e));
+  }
+
+  /**
+   * phi(y) only ever goes up, so bisect for the y where it hits the
+   * threshold
+   */
+  private static double solveDeviations(double threshold) {
+    double lo = -10, hi = 10;
+    while (phi(hi) < threshold)
+      hi *= 2;
+    for (int i = 0; i < 100; i++) {
+      double mid = (lo + hi) / 2;
+      if (phi(mid) < threshold)
+        lo = mid;
+      else
+        hi = mid;
+    }
+    return hi;
+  }
+}
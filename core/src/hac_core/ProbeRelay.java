@@ -0,0 +1,133 @@
+/**
+ * @version October 17, 2026
+ * Indirect probing (ping-req, as in SWIM). When a node can't reach a peer
+ * directly it asks a few others to try before calling the peer dead: it sends
+ * each of them a PING_REQ naming the peer, they send the peer a PROBE, and any
+ * of them that gets an ACK back passes it on as a PROBE_ACK naming the peer.
+ * One congested link is then no longer enough to get a node declared dead.
+ *
+ * This class is the helper's half of that. It remembers which PROBEs went out
+ * on whose behalf, in a fixed ring so a flood of PING_REQs can't make it grow,
+ * and forgets them after a bounded timeout. It also reads and writes the
+ * target that PING_REQ and PROBE_ACK bodies carry:
+ *   0  IPv4 address  i32
+ *   4  port          u16
+ *   6  logical id    u16  see MembershipTable.withId(), left out by older
+ *                         senders
+ *
+ * Not thread safe.
+ */
+package hac_core;
+
+import java.nio.ByteBuffer;
+
+public final class ProbeRelay {
+  public static final int BODY_SIZE = 8;
+
+  // how many peers to ask, and how long to wait on them before giving up.
+  // Shared by everything that probes so the whole cluster agrees
+  public static final int HELPERS = Integer.getInteger("hac.probe.helpers", 3);
+  public static final long TIMEOUT = Long.getLong("hac.probe.timeout", 1000);
+
+  private final long[] requesters;
+  private final long[] targets;
+  private final int[] requestSequences;
+  private final int[] probeSequences;
+  private final long[] deadlines;
+  private final int mask;
+  private final long timeout;
+  private int nextSequence = 1;
+
+  /**
+   * @param capacity most relays in flight at once, rounded up to a power of
+   *        two. The oldest is forgotten when a new one needs its slot
+   * @param timeout millis to wait for the target's ACK
+   */
+  public ProbeRelay(int capacity, long timeout) {
+    int n = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    this.requesters = new long[n];
+    this.targets = new long[n];
+    this.requestSequences = new int[n];
+    this.probeSequences = new int[n];
+    this.deadlines = new long[n];
+    this.mask = n - 1;
+    this.timeout = timeout;
+  }
+
+  /**
+   * Remembers a PING_REQ we're about to act on
+   * @param requester packed address of whoever sent the PING_REQ
+   * @param requestSequence sequence number of the PING_REQ
+   * @param target packed address of the node to probe
+   * @param now the current time in millis
+   * @return the sequence number to put on the PROBE
+   */
+  public int begin(long requester, int requestSequence, long target, long now) {
+    int seq = this.nextSequence++;
+    if (seq == 0) // 0 marks an empty slot
+      seq = this.nextSequence++;
+    int slot = seq & this.mask;
+    this.requesters[slot] = requester;
+    this.targets[slot] = target;
+    this.requestSequences[slot] = requestSequence;
+    this.probeSequences[slot] = seq;
+    this.deadlines[slot] = now + this.timeout;
+    return seq;
+  }
+
+  /**
+   * Matches an ACK to a PROBE we sent on someone else's behalf. A match is
+   * cleared, so a duplicate ACK doesn't get relayed twice
+   * @param probeSequence sequence number on the ACK
+   * @param from packed address the ACK came from
+   * @param now the current time in millis
+   * @return the slot of the relay, for requester(), requestSequence() and
+   *         target(), or -1 if the ACK isn't for a relay or came too late
+   */
+  public int complete(int probeSequence, long from, long now) {
+    int slot = probeSequence & this.mask;
+    if (probeSequence == 0 || this.probeSequences[slot] != probeSequence
+        || this.targets[slot] != from || this.deadlines[slot] < now)
+      return -1;
+    this.probeSequences[slot] = 0;
+    return slot;
+  }
+
+  public long requester(int slot) {
+    return this.requesters[slot];
+  }
+
+  public int requestSequence(int slot) {
+    return this.requestSequences[slot];
+  }
+
+  public long target(int slot) {
+    return this.targets[slot];
+  }
+
+  /**
+   * Writes a target into a PING_REQ or PROBE_ACK body
+   * @param dst buffer to write into
+   * @param offset index of the first body byte
+   * @param target packed address of the target
+   */
+  public static void writeTarget(ByteBuffer dst, int offset, long target) {
+    dst.putInt(offset, MembershipTable.addressOf(target));
+    dst.putShort(offset + 4, (short) MembershipTable.portOf(target));
+    dst.putShort(offset + 6, (short) MembershipTable.idOf(target));
+  }
+
+  /**
+   * Reads the target out of a PING_REQ or PROBE_ACK body
+   * @param src buffer holding the body
+   * @param offset index of the first body byte
+   * @param length length of the body
+   * @return packed address of the target, or 0 if the body is too short
+   */
+  public static long readTarget(ByteBuffer src, int offset, int length) {
+    if (length < 6)
+      return 0;
+    long key = MembershipTable.pack(src.getInt(offset), src.getShort(offset + 4) & 0xFFFF);
+    return length < BODY_SIZE ? key : MembershipTable.withId(key, src.getShort(offset + 6) & 0xFFFF);
+  }
+}
@@ -0,0 +1,166 @@
+/**
+ * @version October 17, 2026
+ * The last few messages sent to one node, so they can be sent again if the
+ * node says it missed them (a BACK). Messages are numbered 1, 2, 3... in
+ * the order they're appended, and kept in a fixed byte budget: once it's
+ * full, the oldest messages are evicted to make room. So however long a
+ * node stays away, its buffer never grows, and when it comes back it gets
+ * whatever part of the gap is still here.
+ *
+ * The buffer is a circular byte log of records, and a record is exactly
+ * what goes on the wire in a DATA body:
+ *    i32  sequence number
+ *    u16  length of the message
+ *    the message
+ * so replaying a gap is just copying a run of records into a frame. The
+ * log can live on or off the heap.
+ *
+ * Not thread safe.
+ */
+package hac_core;
+
+import java.nio.ByteBuffer;
+
+import packet_format.HACPacket;
+
+public final class ReplayBuffer {
+  // sequence number and length in front of every message
+  public static final int RECORD_HEADER = 6;
+
+  // DATA bodies start with a record count
+  public static final int BATCH_HEADER = 1;
+
+  // largest message that fits one DATA packet on its own
+  public static final int MAX_MESSAGE = HACPacket.MAX_BODY_SIZE - BATCH_HEADER - RECORD_HEADER;
+
+  private final ByteBuffer log;
+  private final int capacity;
+  // positions in bytes since the start, taken modulo capacity to index log
+  private long head = 0;
+  private long tail = 0;
+  // sequence number of the record at head, and of the next one appended
+  private int first = 1;
+  private int next = 1;
+
+  /**
+   * @param budget bytes to keep messages in. Raised to fit at least one
+   *        full size message
+   * @param offHeap whether to keep them in a direct buffer
+   */
+  public ReplayBuffer(int budget, boolean offHeap) {
+    this.capacity = Math.max(budget, RECORD_HEADER + MAX_MESSAGE);
+    this.log = offHeap ? ByteBuffer.allocateDirect(this.capacity) : ByteBuffer.allocate(this.capacity);
+  }
+
+  /**
+   * Adds a message, evicting the oldest ones if there isn't room
+   * @param message the message's remaining bytes. Its position is left
+   *        alone
+   * @return the message's sequence number
+   * @throws IllegalArgumentException if it's longer than MAX_MESSAGE
+   */
+  public int append(ByteBuffer message) {
+    int length = message.remaining();
+    if (length > MAX_MESSAGE)
+      throw new IllegalArgumentException("message is " + length + " bytes, max is " + MAX_MESSAGE);
+    int size = RECORD_HEADER + length;
+    while (this.capacity - (this.tail - this.head) < size)
+      evict();
+
+    int seq = this.next++;
+    put(this.tail, (byte) (seq >>> 24));
+    put(this.tail + 1, (byte) (seq >>> 16));
+    put(this.tail + 2, (byte) (seq >>> 8));
+    put(this.tail + 3, (byte) seq);
+    put(this.tail + 4, (byte) (length >>> 8));
+    put(this.tail + 5, (byte) length);
+    write(this.tail + RECORD_HEADER, message, message.position(), length);
+    this.tail += size;
+    return seq;
+  }
+
+  /**
+   * Copies whole records into dst, starting with the first one numbered
+   * after the given sequence that's still here, for as long as they fit
+   * @param after the last sequence number the node got, 0 for none
+   * @param dst where to copy them, from its position on
+   * @return the sequence number of the last record copied, or after if
+   *         none were (nothing newer, or no room for the next one)
+   */
+  public int copyAfter(int after, ByteBuffer dst) {
+    int seq = this.first;
+    long pos = this.head;
+    while (pos < this.tail && seq <= after) {
+      pos += RECORD_HEADER + length(pos);
+      seq++;
+    }
+    int last = after;
+    while (pos < this.tail) {
+      int size = RECORD_HEADER + length(pos);
+      if (dst.remaining() < size)
+        break;
+      read(pos, size, dst);
+      pos += size;
+      last = seq++;
+    }
+    return last;
+  }
+
+  /**
+   * @return sequence number of the oldest message still here, or of the
+   *         next one if there are none
+   */
+  public int firstSequence() {
+    return this.first;
+  }
+
+  /**
+   * @return sequence number of the newest message, 0 if there never was one
+   */
+  public int lastSequence() {
+    return this.next - 1;
+  }
+
+  /**
+   * @return how many bytes the buffer holds at most
+   */
+  public int capacity() {
+    return this.capacity;
+  }
+
+  private void evict() {
+    this.head += RECORD_HEADER + length(this.head);
+    this.first++;
+  }
+
+  private int length(long pos) {
+    return (get(pos + 4) & 0xFF) << 8 | get(pos + 5) & 0xFF;
+  }
+
+  private byte get(long pos) {
+    return this.log.get((int) (pos % this.capacity));
+  }
+
+  private void put(long pos, byte b) {
+    this.log.put((int) (pos % this.capacity), b);
+  }
+
+  // bulk copies, in two goes if they run off the end of the log
+
+  private void write(long pos, ByteBuffer src, int offset, int length) {
+    int at = (int) (pos % this.capacity);
+    int part = Math.min(length, this.capacity - at);
+    this.log.put(at, src, offset, part);
+    if (part < length)
+      this.log.put(0, src, offset + part, length - part);
+  }
+
+  private void read(long pos, int length, ByteBuffer dst) {
+    int at = (int) (pos % this.capacity);
+    int part = Math.min(length, this.capacity - at);
+    dst.put(dst.position(), this.log, at, part);
+    if (part < length)
+      dst.put(dst.position() + part, this.log, 0, length - part);
+    dst.position(dst.position() + length);
+  }
+}
@@ -0,0 +1,234 @@
+/**
+ * @version October 17, 2026
+ * Hierarchical timing wheel for deadlines, e.g. "this node is dead if we
+ * don't hear from it by then". Arming, re-arming and cancelling a timeout
+ * are O(1) and allocate nothing. Advancing the wheel only touches timeouts
+ * that are actually due (plus the odd cascade from a coarser level down to
+ * a finer one), so the cost of checking for dead nodes depends on how many
+ * die, not on how many there are.
+ *
+ * Every level has 64 slots. Level 0 slots are one tick wide, level 1 slots
+ * are 64 ticks wide and so on. Deadlines further out than the top level can
+ * reach are parked in the top level and re-filed when they get closer.
+ *
+ * Not thread safe. Use it from one thread, e.g. an event loop.
+ */
+package hac_core;
+
+import java.util.function.Consumer;
+
+public final class TimingWheel<T> {
+  private static final int BITS = 6;
+  private static final int SLOTS = 1 << BITS;
+  private static final int MASK = SLOTS - 1;
+  private static final int LEVELS = 4;
+  private static final long MAX_DELTA = (1L << (BITS * LEVELS)) - 1;
+
+  /**
+   * One deadline in the wheel. These are meant to live as long as the
+   * thing they belong to (e.g. one per node) and get re-armed over and over,
+   * so they double as the linked list node that holds them in a slot.
+   */
+  public static final class Timeout<T> {
+    private final T owner;
+    private Timeout<T> prev;
+    private Timeout<T> next;
+    private long deadline;
+    private long deadlineTick;
+
+    /**
+     * @param owner what gets handed to the expiry callback
+     */
+    public Timeout(T owner) {
+      this.owner = owner;
+    }
+
+    // sentinel constructor for slot heads
+    private Timeout() {
+      this.owner = null;
+      this.prev = this;
+      this.next = this;
+    }
+
+    public T owner() {
+      return this.owner;
+    }
+
+    /**
+     * @return whether this timeout is armed and hasn't fired yet
+     */
+    public boolean isPending() {
+      return this.next != null;
+    }
+
+    /**
+     * @return the deadline this was last armed with, in millis
+     */
+    public long deadline() {
+      return this.deadline;
+    }
+  }
+
+  private final long tickMillis;
+  private final Timeout<T>[][] wheel;
+  private final Timeout<T> scratch = new Timeout<T>();
+  private long currentTick;
+  private int pending = 0;
+
+  /**
+   * @param tickMillis resolution of the wheel. Timeouts fire up to one tick
+   *        late, never early
+   * @param now the current time in millis
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public TimingWheel(long tickMillis, long now) {
+    if (tickMillis <= 0)
+      throw new IllegalArgumentException("tick must be positive");
+    this.tickMillis = tickMillis;
+    this.currentTick = now / tickMillis;
+    this.wheel = new Timeout[LEVELS][SLOTS];
+    for (int l = 0; l < LEVELS; l++)
+      for (int s = 0; s < SLOTS; s++)
+        this.wheel[l][s] = new Timeout<T>();
+  }
+
+  /**
+   * Arms a timeout, or moves it if it is already armed
+   * @param timeout the timeout to arm
+   * @param deadline when it should fire, in millis
+   */
+  public void schedule(Timeout<T> timeout, long deadline) {
+    if (timeout.isPending())
+      unlink(timeout);
+    else
+      this.pending++;
+    timeout.deadline = deadline;
+    timeout.deadlineTick = (deadline + this.tickMillis - 1) / this.tickMillis;
+    file(timeout);
+  }
+
+  /**
+   * Disarms a timeout
+   * @param timeout the timeout to disarm
+   * @return true if it was armed
+   */
+  public boolean cancel(Timeout<T> timeout) {
+    if (!timeout.isPending())
+      return false;
+    unlink(timeout);
+    this.pending--;
+    return true;
+  }
+
+  /**
+   * Moves the wheel up to the given time and fires everything that is due.
+   * Callbacks may re-arm or cancel any timeout, including the one firing
+   * @param now the current time in millis
+   * @param onExpired called with the owner of every timeout that fires
+   * @return how many timeouts fired
+   */
+  public int advance(long now, Consumer<? super T> onExpired) {
+    long target = now / this.tickMillis;
+    int fired = 0;
+    while (this.currentTick <= target) {
+      if (this.pending == 0) { // nothing to do, just catch up
+        this.currentTick = target + 1;
+        break;
+      }
+      fired += tick(onExpired);
+    }
+    return fired;
+  }
+
+  /**
+   * @return how many timeouts are armed
+   */
+  public int size() {
+    return this.pending;
+  }
+
+  public long getTickMillis() {
+    return this.tickMillis;
+  }
+
+  private int tick(Consumer<? super T> onExpired) {
+    int slot = (int) (this.currentTick & MASK);
+    // at the start of every lap of a level, pull the next slot of the level
+    // above down into the finer levels
+    if (slot == 0)
+      for (int l = 1; l < LEVELS && cascade(l) == 0; l++)
+        ;
+
+    int fired = 0;
+    splice(this.wheel[0][slot]);
+    Timeout<T> t;
+    while ((t = this.scratch.next) != this.scratch) {
+      unlink(t);
+      if (t.deadlineTick > this.currentTick) { // parked past the top level
+        file(t);
+        continue;
+      }
+      this.pending--;
+      onExpired.accept(t.owner);
+      fired++;
+    }
+    this.currentTick++;
+    return fired;
+  }
+
+  /**
+   * Re-files everything in the current slot of a level
+   * @return the index of the slot that was cascaded
+   */
+  private int cascade(int level) {
+    int slot = (int) ((this.currentTick >>> (BITS * level)) & MASK);
+    splice(this.wheel[level][slot]);
+    Timeout<T> t;
+    while ((t = this.scratch.next) != this.scratch) {
+      unlink(t);
+      file(t);
+    }
+    return slot;
+  }
+
+  private void file(Timeout<T> t) {
+    long ticks = Math.max(t.deadlineTick, this.currentTick);
+    long delta = ticks - this.currentTick;
+    if (delta > MAX_DELTA) {
+      ticks = this.currentTick + MAX_DELTA;
+      delta = MAX_DELTA;
+    }
+    int level = 0;
+    while (delta >= 1L << (BITS * (level + 1)))
+      level++;
+    link(this.wheel[level][(int) ((ticks >>> (BITS * level)) & MASK)], t);
+  }
+
+  /**
+   * Moves every timeout in a slot onto the scratch list in O(1)
+   */
+  private void splice(Timeout<T> head) {
+    if (head.next == head)
+      return;
+    this.scratch.next = head.next;
+    this.scratch.prev = head.prev;
+    head.next.prev = this.scratch;
+    head.prev.next = this.scratch;
+    head.next = head;
+    head.prev = head;
+  }
+
+  private static <T> void link(Timeout<T> head, Timeout<T> t) {
+    t.prev = head.prev;
+    t.next = head;
+    head.prev.next = t;
+    head.prev = t;
+  }
+
+  private static <T> void unlink(Timeout<T> t) {
+    t.prev.next = t.next;
+    t.next.prev = t.prev;
+    t.prev = null;
+    t.next = null;
+  }
+}
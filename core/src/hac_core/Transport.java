@@ -0,0 +1,25 @@
+/**
+ * @version October 17, 2026
+ * Where the protocol code sends datagrams. Normally a DatagramChannel
+ * (DatagramChannel::send fits as is), or an in-memory network under the
+ * simulator.
+ */
+package hac_core;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+@FunctionalInterface
+public interface Transport {
+  /**
+   * Sends one datagram made of the frame's remaining bytes
+   * @param frame the datagram. Its position is advanced past whatever was
+   *        sent, same as a channel would
+   * @param to where to send it
+   * @return the number of bytes sent, or 0 if there was no room to send it
+   *         right now
+   * @throws IOException if the send fails
+   */
+  int send(ByteBuffer frame, SocketAddress to) throws IOException;
+}
@@ -0,0 +1,111 @@
+package hac_core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+import packet_format.HACPacket;
+
+/**
+ * SYNCs against a log whose members include several logical ids on one
+ * socket, as a ClientHost's are
+ */
+class MembershipLogTest {
+  private static final long HOST = MembershipTable.pack(0x7F000001, 4000);
+  private static final long OTHER = MembershipTable.pack(0x7F000002, 4000);
+
+  @Test
+  void snapshotKeepsIdsOnOneSocketApart() {
+    MembershipLog log = new MembershipLog(16);
+    long[] members = { HOST, MembershipTable.withId(HOST, 1), MembershipTable.withId(HOST, 2), OTHER };
+    for (long key : members)
+      log.joined(key);
+
+    MembershipView view = new MembershipView();
+    ByteBuffer body = ByteBuffer.allocate(HACPacket.MAX_BODY_SIZE);
+    assertEquals(members.length, log.writeSnapshot(body, members, members.length, 0));
+    assertTrue(view.apply(body, 0, body.position()));
+
+    assertEquals(log.version(), view.version());
+    assertEquals(members.length, view.size());
+    for (long key : members)
+      assertTrue(view.contains(key));
+  }
+
+  @Test
+  void snapshotOverSeveralPacketsCompletes() {
+    MembershipLog log = new MembershipLog(16);
+    long[] members = { HOST, MembershipTable.withId(HOST, 1), MembershipTable.withId(HOST, 2) };
+    for (long key : members)
+      log.joined(key);
+
+    // room for one entry per packet
+    MembershipView view = new MembershipView();
+    ByteBuffer body = ByteBuffer.allocate(MembershipLog.HEADER + MembershipLog.ENTRY);
+    for (int at = 0; at < members.length;) {
+      body.clear();
+      at = log.writeSnapshot(body, members, members.length, at);
+      assertEquals(at == members.length, view.apply(body, 0, body.position()));
+    }
+    assertEquals(log.version(), view.version());
+    assertEquals(members.length, view.size());
+  }
+
+  @Test
+  void deltaDropsOnlyTheIdThatLeft() {
+    MembershipLog log = new MembershipLog(16);
+    long one = MembershipTable.withId(HOST, 1);
+    log.joined(HOST);
+    log.joined(one);
+
+    MembershipView view = new MembershipView();
+    ByteBuffer body = ByteBuffer.allocate(HACPacket.MAX_BODY_SIZE);
+    log.writeDelta(0, body);
+    assertTrue(view.apply(body, 0, body.position()));
+    assertEquals(2, view.size());
+
+    int since = log.version();
+    log.left(one);
+    body.clear();
+    log.writeDelta(since, body);
+    assertTrue(view.apply(body, 0, body.position()));
+    assertTrue(view.contains(HOST));
+    assertFalse(view.contains(one));
+  }
+
+  @Test
+  void copiedDeltaMatchesTheLog() {
+    MembershipLog log = new MembershipLog(16);
+    log.joined(OTHER);
+    int since = log.version();
+    log.joined(HOST);
+    log.joined(MembershipTable.withId(HOST, 1));
+    log.left(OTHER);
+
+    ByteBuffer expected = ByteBuffer.allocate(HACPacket.MAX_BODY_SIZE);
+    assertEquals(log.version(), log.writeDelta(since, expected));
+
+    long[] keys = new long[16];
+    boolean[] joined = new boolean[16];
+    int count = log.copySince(since, keys, joined);
+    assertEquals(3, count);
+    ByteBuffer copied = ByteBuffer.allocate(HACPacket.MAX_BODY_SIZE);
+    assertEquals(count, MembershipLog.writeDelta(copied, since, keys, joined, count, 0));
+    assertEquals(expected.flip(), copied.flip());
+  }
+
+  @Test
+  void readsBodiesWithoutIds() {
+    ByteBuffer body = ByteBuffer.allocate(MembershipLog.HEADER + MembershipLog.LEGACY_ENTRY);
+    body.put(MembershipLog.SNAPSHOT).putInt(1).putInt(1).putShort((short) 1);
+    body.put(HACPacket.PacketType.NOOB.code()).putInt(0x7F000001).putShort((short) 4000);
+
+    MembershipView view = new MembershipView();
+    assertTrue(view.apply(body, 0, body.position()));
+    assertTrue(view.contains(HOST));
+  }
+}
@@ -2,6 +2,7 @@
  * @author Joshu Maxwell
  * @version March 20, 2021
  * This class creates forces a packet structure that is compatible with the HAC protocol
+ * @deprecated text format, kept around for comparison. Use HACPacket instead
  */
 package packet_format;
 
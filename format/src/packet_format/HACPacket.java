@@ -0,0 +1,389 @@
+/**
+ * @version October 17, 2026
+ * Fixed-layout binary packet for the HAC protocol. Every field sits at a
+ * known offset so a packet can be written into or read out of a ByteBuffer
+ * without ever turning it into a String first.
+ *
+ * Layout (big-endian):
+ *   0  magic        u16  always 0x4841 ("HA")
+ *   2  version      u8
+ *   3  type         u8   see PacketType
+ *   4  sender id    i32  logical id of the sender, a u16, 0 if it doesn't
+ *                        care. On a packet to one of several nodes sharing
+ *                        a socket, the id of the one it's for. Bits above
+ *                        the id are flags, see LISTS_IDS and ANSWER
+ *   8  origin       i32  IPv4 address of the sender
+ *   12 sequence     i32
+ *   16 timestamp    i64  sender clock in millis when the packet was built
+ *   24 body length  u16
+ *   26 body         ...
+ */
+package packet_format;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+public class HACPacket {
+  public static final short MAGIC = 0x4841;
+  public static final byte VERSION = 1;
+
+  // field offsets, relative to the start of the packet
+  static final int OFF_MAGIC = 0;
+  static final int OFF_VERSION = 2;
+  static final int OFF_TYPE = 3;
+  static final int OFF_SENDER = 4;
+  static final int OFF_ORIGIN = 8;
+  static final int OFF_SEQUENCE = 12;
+  static final int OFF_TIMESTAMP = 16;
+  static final int OFF_LENGTH = 24;
+
+  // flag on the sender id: the body is a list of u16 logical ids, a
+  // ClientHost's PING speaking for all of them
+  public static final int LISTS_IDS = 1 << 16;
+  // flag on the sender id: the packet answers the one whose sequence
+  // number it carries, e.g. the server's PING back to a client's PING, as
+  // opposed to one from a ping round that answers nothing
+  public static final int ANSWER = 1 << 17;
+
+  public static final int HEADER_SIZE = 26;
+  public static final int MAX_BODY_SIZE = 1024;
+  public static final int MAX_PACKET_SIZE = HEADER_SIZE + MAX_BODY_SIZE;
+
+  private static final byte[] NO_BODY = new byte[0];
+
+  /**
+   * Every kind of message the protocol knows about. The code is what goes
+   * on the wire, so don't renumber these.
+   */
+  public enum PacketType {
+    INIT(1, false),   // JOIN, a client asking to be let in
+    STATUS(2, true),  // GOTO, the reply to a JOIN
+    PING(3, true),
+    BACK(4, true),
+    NOOB(5, true),
+    WTF(6, true),
+    DATA(7, true),
+    ACK(8, true),     // answer to a PING or PROBE that expects one
+    PING_REQ(9, true),  // please PROBE the node in the body for me
+    PROBE(10, false),   // are you there? answered with an ACK
+    PROBE_ACK(11, true), // the node in the body answered your PING_REQ
+    SYNC(12, true);     // membership changes since the version in the body, please
+
+    private static final PacketType[] BY_CODE = new PacketType[256];
+    static {
+      for (PacketType t : values())
+        BY_CODE[t.code] = t;
+    }
+
+    private final byte code;
+    private final boolean carriesData;
+
+    PacketType(int code, boolean carriesData) {
+      this.code = (byte) code;
+      this.carriesData = carriesData;
+    }
+
+    /**
+     * @return the byte that identifies this type on the wire
+     */
+    public byte code() {
+      return this.code;
+    }
+
+    /**
+     * @return whether packets of this type may have a body
+     */
+    public boolean carriesData() {
+      return this.carriesData;
+    }
+
+    /**
+     * Looks a type up by its wire code
+     * @param code the type byte from a packet
+     * @return the matching type, or null if there isn't one
+     */
+    public static PacketType fromCode(byte code) {
+      return BY_CODE[code & 0xFF];
+    }
+  }
+
+  private final PacketType type;
+  private final int senderId;
+  private final int origin;
+  private int sequence;
+  private long timestamp;
+  private final byte[] body;
+
+  /**
+   * Builds a packet with no body
+   * @param senderId logical id of the sender
+   * @param origin address of the sender
+   * @param type what kind of packet this is
+   * @throws PacketTypeDataMismatchException never for an empty body, but kept
+   *         so callers handle both constructors the same way
+   */
+  public HACPacket(int senderId, Inet4Address origin, PacketType type)
+      throws PacketTypeDataMismatchException {
+    this(senderId, origin, type, NO_BODY);
+  }
+
+  /**
+   * Builds a packet with a body
+   * @param senderId logical id of the sender
+   * @param origin address of the sender
+   * @param type what kind of packet this is
+   * @param body the payload, at most MAX_BODY_SIZE bytes
+   * @throws PacketTypeDataMismatchException if the type can't carry a body
+   *         or the body is too big
+   */
+  public HACPacket(int senderId, Inet4Address origin, PacketType type, byte[] body)
+      throws PacketTypeDataMismatchException {
+    if (body == null)
+      body = NO_BODY;
+    if (body.length > 0 && !type.carriesData())
+      throw new PacketTypeDataMismatchException(type + " packets do not carry data");
+    if (body.length > MAX_BODY_SIZE)
+      throw new PacketTypeDataMismatchException(
+          "body is " + body.length + " bytes, max is " + MAX_BODY_SIZE);
+    this.type = type;
+    this.senderId = senderId;
+    this.origin = origin != null ? ipv4ToInt(origin) : 0;
+    this.sequence = 0;
+    this.timestamp = System.currentTimeMillis();
+    this.body = body;
+  }
+
+  /**
+   * Decodes a packet from the start of a byte array, such as the one backing
+   * a received DatagramPacket. Anything after the body is ignored.
+   * @param data the raw packet
+   * @throws MalformedPacketException if the data isn't a valid packet
+   */
+  public HACPacket(byte[] data) throws MalformedPacketException {
+    this(ByteBuffer.wrap(data));
+  }
+
+  private HACPacket(ByteBuffer src) throws MalformedPacketException {
+    int start = src.position();
+    int length = checkFrame(src, start);
+    this.type = PacketType.fromCode(src.get(start + OFF_TYPE));
+    this.senderId = src.getInt(start + OFF_SENDER);
+    this.origin = src.getInt(start + OFF_ORIGIN);
+    this.sequence = src.getInt(start + OFF_SEQUENCE);
+    this.timestamp = src.getLong(start + OFF_TIMESTAMP);
+    if (length == 0) {
+      this.body = NO_BODY;
+    } else {
+      this.body = new byte[length];
+      src.get(start + HEADER_SIZE, this.body);
+    }
+    src.position(start + HEADER_SIZE + length);
+  }
+
+  /**
+   * Decodes one packet starting at the buffer's position and moves the
+   * position past it
+   * @param src buffer holding the packet
+   * @return the decoded packet
+   * @throws MalformedPacketException if the bytes aren't a valid packet
+   */
+  public static HACPacket decode(ByteBuffer src) throws MalformedPacketException {
+    return new HACPacket(src);
+  }
+
+  /**
+   * Makes sure a valid frame starts at the given index and fits in the
+   * buffer's limit
+   * @param src buffer holding the frame
+   * @param start index of the first byte of the frame
+   * @return the body length of the frame
+   * @throws MalformedPacketException if the frame is truncated or isn't ours
+   */
+  static int checkFrame(ByteBuffer src, int start) throws MalformedPacketException {
+    if (src.limit() - start < HEADER_SIZE)
+      throw new MalformedPacketException("truncated header");
+    if (src.getShort(start + OFF_MAGIC) != MAGIC)
+      throw new MalformedPacketException("bad magic");
+    if (src.get(start + OFF_VERSION) != VERSION)
+      throw new MalformedPacketException("unsupported version " + src.get(start + OFF_VERSION));
+    if (PacketType.fromCode(src.get(start + OFF_TYPE)) == null)
+      throw new MalformedPacketException("unknown packet type " + src.get(start + OFF_TYPE));
+    int length = src.getShort(start + OFF_LENGTH) & 0xFFFF;
+    if (length > MAX_BODY_SIZE || src.limit() - start - HEADER_SIZE < length)
+      throw new MalformedPacketException("truncated body");
+    return length;
+  }
+
+  /**
+   * Writes this packet at the buffer's position and moves the position past
+   * it. Nothing is allocated along the way.
+   * @param dst buffer to write into
+   * @throws BufferOverflowException if the packet doesn't fit
+   */
+  public void encode(ByteBuffer dst) {
+    int start = dst.position();
+    if (dst.limit() - start < encodedLength())
+      throw new BufferOverflowException();
+    encodeHeader(dst, start, this.type, this.senderId, this.origin, this.sequence, this.timestamp,
+        this.body.length);
+    dst.put(start + HEADER_SIZE, this.body);
+    dst.position(start + encodedLength());
+  }
+
+  /**
+   * Writes just a header, for callers that write the body straight into the
+   * buffer after it instead of building a HACPacket first. Doesn't touch the
+   * buffer's position
+   * @param dst buffer to write into
+   * @param start index to write the header at
+   * @param type what kind of packet this is
+   * @param senderId logical id of the sender
+   * @param origin IPv4 address of the sender, packed
+   * @param sequence sequence number
+   * @param timestamp sender clock in millis
+   * @param bodyLength length of the body that follows the header
+   */
+  public static void encodeHeader(ByteBuffer dst, int start, PacketType type, int senderId, int origin,
+      int sequence, long timestamp, int bodyLength) {
+    if (bodyLength > MAX_BODY_SIZE)
+      throw new IllegalArgumentException("body is " + bodyLength + " bytes, max is " + MAX_BODY_SIZE);
+    dst.putShort(start + OFF_MAGIC, MAGIC);
+    dst.put(start + OFF_VERSION, VERSION);
+    dst.put(start + OFF_TYPE, type.code());
+    dst.putInt(start + OFF_SENDER, senderId);
+    dst.putInt(start + OFF_ORIGIN, origin);
+    dst.putInt(start + OFF_SEQUENCE, sequence);
+    dst.putLong(start + OFF_TIMESTAMP, timestamp);
+    dst.putShort(start + OFF_LENGTH, (short) bodyLength);
+  }
+
+  /**
+   * Rewrites the sequence number and timestamp of an already encoded
+   * packet. Those are the only fields that differ between two heartbeats, so
+   * a heartbeat can be encoded once and stamped before every send
+   * @param frame buffer holding the encoded packet
+   * @param start index of the first byte of the packet
+   * @param sequence new sequence number
+   * @param timestamp new timestamp
+   */
+  public static void stamp(ByteBuffer frame, int start, int sequence, long timestamp) {
+    frame.putInt(start + OFF_SEQUENCE, sequence);
+    frame.putLong(start + OFF_TIMESTAMP, timestamp);
+  }
+
+  /**
+   * @return how many bytes encode() will write
+   */
+  public int encodedLength() {
+    return HEADER_SIZE + this.body.length;
+  }
+
+  /**
+   * Converts this packet to a DatagramPacket that can be sent by a socket
+   * @param IP address of recipient
+   * @param port port number of recipient
+   * @return DatagramPacket representation of this packet
+   */
+  public DatagramPacket buildDatagramPacket(InetAddress IP, int port) {
+    byte[] data = new byte[encodedLength()];
+    encode(ByteBuffer.wrap(data));
+    return new DatagramPacket(data, data.length, IP, port);
+  }
+
+  public PacketType getPacketType() {
+    return this.type;
+  }
+
+  public int getSenderId() {
+    return this.senderId;
+  }
+
+  /**
+   * @return the sender's IPv4 address packed into an int
+   */
+  public int getOrigin() {
+    return this.origin;
+  }
+
+  /**
+   * @return the sender's address as an InetAddress
+   */
+  public InetAddress getOriginAddress() {
+    try {
+      return InetAddress.getByAddress(intToBytes(this.origin));
+    } catch (UnknownHostException e) { // only thrown for bad lengths, which can't happen
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public int getSequence() {
+    return this.sequence;
+  }
+
+  public void setSequence(int sequence) {
+    this.sequence = sequence;
+  }
+
+  public long getTimestamp() {
+    return this.timestamp;
+  }
+
+  public void setTimestamp(long timestamp) {
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * @return the body of the packet. This is the packet's own array, so
+   *         don't scribble on it
+   */
+  public byte[] getBody() {
+    return this.body;
+  }
+
+  /**
+   * Packs an IPv4 address into an int, most significant octet first
+   * @param address the address to pack
+   * @return the packed address
+   */
+  public static int ipv4ToInt(Inet4Address address) {
+    byte[] b = address.getAddress();
+    return (b[0] & 0xFF) << 24 | (b[1] & 0xFF) << 16 | (b[2] & 0xFF) << 8 | (b[3] & 0xFF);
+  }
+
+  private static byte[] intToBytes(int ip) {
+    return new byte[] { (byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip };
+  }
+
+  @Override
+  public String toString() {
+    return this.type + " from " + this.senderId + "@" + getOriginAddress().getHostAddress()
+        + " seq=" + this.sequence + " ts=" + this.timestamp + " (" + this.body.length + " bytes)";
+  }
+
+  /**
+   * Thrown when a packet is built with a body its type can't carry
+   */
+  public static class PacketTypeDataMismatchException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public PacketTypeDataMismatchException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Thrown when received bytes don't decode to a valid packet
+   */
+  public static class MalformedPacketException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public MalformedPacketException(String message) {
+      super(message);
+    }
+  }
+}
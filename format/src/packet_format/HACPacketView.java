@@ -0,0 +1,116 @@
+/**
+ * @version October 17, 2026
+ * Reusable, read-only window onto a HACPacket that is sitting in a
+ * ByteBuffer. Wrapping a buffer copies nothing and allocates nothing, so one
+ * view can be pointed at every packet that comes through a receive loop.
+ */
+package packet_format;
+
+import java.nio.ByteBuffer;
+
+import static packet_format.HACPacket.*;
+
+public final class HACPacketView {
+  private ByteBuffer buffer;
+  private int start;
+  private int bodyLength;
+
+  /**
+   * Points this view at the packet starting at the given index. Unlike
+   * HACPacket.decode this never throws, since building an exception for
+   * every bit of junk that shows up on the port isn't free
+   * @param buffer buffer holding the packet
+   * @param start index of the first byte of the packet
+   * @return true if a valid packet was found there, otherwise the view is
+   *         left empty
+   */
+  public boolean wrap(ByteBuffer buffer, int start) {
+    this.buffer = null;
+    if (buffer.limit() - start < HEADER_SIZE
+        || buffer.getShort(start + OFF_MAGIC) != MAGIC
+        || buffer.get(start + OFF_VERSION) != VERSION
+        || PacketType.fromCode(buffer.get(start + OFF_TYPE)) == null)
+      return false;
+    int length = buffer.getShort(start + OFF_LENGTH) & 0xFFFF;
+    if (length > MAX_BODY_SIZE || buffer.limit() - start - HEADER_SIZE < length)
+      return false;
+    this.buffer = buffer;
+    this.start = start;
+    this.bodyLength = length;
+    return true;
+  }
+
+  /**
+   * @return whether the view currently points at a valid packet
+   */
+  public boolean isValid() {
+    return this.buffer != null;
+  }
+
+  /**
+   * @return index just past the end of the wrapped packet, where the next
+   *         packet of a batch would start
+   */
+  public int end() {
+    return this.start + HEADER_SIZE + this.bodyLength;
+  }
+
+  public PacketType getPacketType() {
+    return PacketType.fromCode(this.buffer.get(this.start + OFF_TYPE));
+  }
+
+  public int getSenderId() {
+    return this.buffer.getInt(this.start + OFF_SENDER);
+  }
+
+  public int getOrigin() {
+    return this.buffer.getInt(this.start + OFF_ORIGIN);
+  }
+
+  public int getSequence() {
+    return this.buffer.getInt(this.start + OFF_SEQUENCE);
+  }
+
+  public long getTimestamp() {
+    return this.buffer.getLong(this.start + OFF_TIMESTAMP);
+  }
+
+  public int getBodyLength() {
+    return this.bodyLength;
+  }
+
+  /**
+   * @return index of the first body byte in the underlying buffer
+   */
+  public int bodyOffset() {
+    return this.start + HEADER_SIZE;
+  }
+
+  /**
+   * @return the buffer this view is looking at
+   */
+  public ByteBuffer buffer() {
+    return this.buffer;
+  }
+
+  /**
+   * Copies the body out into a new array
+   * @return a copy of the body
+   */
+  public byte[] copyBody() {
+    byte[] body = new byte[this.bodyLength];
+    this.buffer.get(bodyOffset(), body);
+    return body;
+  }
+
+  /**
+   * Makes an owned copy of the packet, for when it has to outlive the buffer
+   * @return a standalone HACPacket with the same contents
+   * @throws MalformedPacketException never for a valid view
+   */
+  public HACPacket toPacket() throws MalformedPacketException {
+    ByteBuffer dup = this.buffer.duplicate();
+    dup.limit(end()).position(this.start);
+    return HACPacket.decode(dup);
+  }
+}
@@ -0,0 +1,184 @@
+/**
+ * Membership updates waiting to be piggybacked on outgoing packets, for the
+ * gossip (infection style) mode of P2P. Instead of everyone telling everyone
+ * about every change, each update rides along on the few PINGs and ACKs a
+ * node sends per round. Every node that learns something new passes it on
+ * the same way, so an update reaches the whole cluster in O(log N) rounds
+ * while each node only ever sends to a handful of peers.
+ * 
+ * Each update is sent retransmitMult * log2(N + 1) times and then dropped.
+ * Updates that have been sent the fewest times go first.
+ * 
+ * Wire format of a gossip body:
+ *    i32  incarnation of the sender
+ *    u8   number of updates
+ *    per update:
+ *       u8   NOOB, WTF or BACK packet type code
+ *       i32  IPv4 address of the node the update is about
+ *       u16  port of that node
+ *       i32  incarnation of that node the update is about
+ * 
+ * Not thread safe, it belongs to the P2P Monitor thread.
+ */
+
+package hac_p2p;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import hac_core.MembershipTable;
+import packet_format.HACPacket;
+import packet_format.HACPacket.PacketType;
+
+final class Gossip {
+	// Size of the sender incarnation and update count at the start of a body
+	static final int PREFIX_SIZE = 5;
+
+	// Size of one encoded update
+	static final int UPDATE_SIZE = 11;
+
+	// Most updates that fit in one packet
+	static final int MAX_PER_PACKET = (HACPacket.MAX_BODY_SIZE - PREFIX_SIZE) / UPDATE_SIZE;
+
+	/**
+	 * One piece of news about one node
+	 */
+	static final class Update {
+		final long key;
+		PacketType type;
+		int incarnation;
+		int transmissions;
+
+		private Update(long key, PacketType type, int incarnation) {
+			this.key = key;
+			this.type = type;
+			this.incarnation = incarnation;
+		}
+	}
+
+	/**
+	 * Receives decoded updates
+	 */
+	interface Sink {
+		void update(PacketType type, long key, int incarnation);
+	}
+
+	private final ArrayList<Update> pending = new ArrayList<Update>();
+	private final ArrayList<Update> picked = new ArrayList<Update>();
+	private final int maxPerPacket;
+	private final int retransmitMult;
+
+	/**
+	 * @param maxPerPacket most updates to piggyback on one packet
+	 * @param retransmitMult how many times log2(N + 1) each update is sent
+	 */
+	Gossip(int maxPerPacket, int retransmitMult) {
+		this.maxPerPacket = Math.max(0, Math.min(maxPerPacket, MAX_PER_PACKET));
+		this.retransmitMult = Math.max(1, retransmitMult);
+	}
+
+	/**
+	 * Queues news about a node, replacing any older news about the same node
+	 * 
+	 * @param type NOOB, WTF or BACK
+	 * @param key packed address of the node
+	 * @param incarnation incarnation of the node the news is about
+	 */
+	void enqueue(PacketType type, long key, int incarnation) {
+		for (Update u : pending) {
+			if (u.key == key) {
+				u.type = type;
+				u.incarnation = incarnation;
+				u.transmissions = 0;
+				return;
+			}
+		}
+		pending.add(new Update(key, type, incarnation));
+	}
+
+	/**
+	 * @return how many updates are still being spread
+	 */
+	int size() {
+		return pending.size();
+	}
+
+	/**
+	 * Writes a gossip body at the buffer's position. Updates about the
+	 * destination itself go first, since it's the one that most needs to
+	 * hear them (e.g. so it can refute being called dead), then the least
+	 * sent ones
+	 * 
+	 * @param dst where to write the body
+	 * @param incarnation this node's own incarnation
+	 * @param destKey packed address of the node the packet is going to
+	 * @param clusterSize current number of known nodes
+	 */
+	void encode(ByteBuffer dst, int incarnation, long destKey, int clusterSize) {
+		int limit = retransmitMult * (32 - Integer.numberOfLeadingZeros(clusterSize + 1));
+		int room = Math.min(maxPerPacket, (dst.remaining() - PREFIX_SIZE) / UPDATE_SIZE);
+
+		picked.clear();
+		for (Update u : pending) {
+			if (u.key == destKey && picked.size() < room) {
+				picked.add(u);
+			}
+		}
+		if (picked.size() < room) {
+			pending.sort((a, b) -> Integer.compare(a.transmissions, b.transmissions));
+			for (int i = 0; i < pending.size() && picked.size() < room; i++) {
+				if (pending.get(i).key != destKey) {
+					picked.add(pending.get(i));
+				}
+			}
+		}
+
+		dst.putInt(incarnation);
+		dst.put((byte) picked.size());
+		for (Update u : picked) {
+			dst.put(u.type.code());
+			dst.putInt(MembershipTable.addressOf(u.key));
+			dst.putShort((short) MembershipTable.portOf(u.key));
+			dst.putInt(u.incarnation);
+			u.transmissions++;
+		}
+		pending.removeIf(u -> u.transmissions >= limit);
+	}
+
+	/**
+	 * Reads the sender's incarnation from a gossip body
+	 * 
+	 * @param src buffer holding the body
+	 * @param offset index of the first body byte
+	 * @param length length of the body
+	 * @return the incarnation, or -1 if the body is too short to be gossip
+	 */
+	static int senderIncarnation(ByteBuffer src, int offset, int length) {
+		return length < PREFIX_SIZE ? -1 : src.getInt(offset);
+	}
+
+	/**
+	 * Decodes the updates in a gossip body. Anything that doesn't look like
+	 * an update is skipped
+	 * 
+	 * @param src buffer holding the body
+	 * @param offset index of the first body byte
+	 * @param length length of the body
+	 * @param sink gets each update
+	 */
+	static void decode(ByteBuffer src, int offset, int length, Sink sink) {
+		if (length < PREFIX_SIZE) {
+			return;
+		}
+		int count = src.get(offset + 4) & 0xFF;
+		int pos = offset + PREFIX_SIZE;
+		for (int i = 0; i < count && pos + UPDATE_SIZE <= offset + length; i++, pos += UPDATE_SIZE) {
+			PacketType type = PacketType.fromCode(src.get(pos));
+			if (type != PacketType.NOOB && type != PacketType.WTF && type != PacketType.BACK) {
+				continue;
+			}
+			long key = MembershipTable.pack(src.getInt(pos + 1), src.getShort(pos + 5) & 0xFFFF);
+			sink.update(type, key, src.getInt(pos + 7));
+		}
+	}
+}
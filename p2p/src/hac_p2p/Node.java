@@ -11,24 +11,58 @@
 package hac_p2p;
 
 import java.net.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import hac_core.ArrivalWindow;
+import hac_core.Checkpoint;
+import hac_core.HeartbeatScheduler;
+import hac_core.MembershipTable;
+import hac_core.TimingWheel;
  
 final class Node {
 	private InetAddress address;
 	private int port;
-	private boolean online;
-	private long tolc;
-
-	public Node(String ip, int port) {
-		try {
-			// This call will attempt to contact the host at ip
-			this.address = Inet4Address.getByName(ip);
-		} catch (UnknownHostException e) {
-			System.err.println("Error: Unknown host: " + ip);
-		} finally {
-			this.port = port;
-			this.online = false;
-			this.tolc = -1;
-		}
+	private volatile boolean online;
+	private volatile long tolc;
+	// Gossip mode only: the node's incarnation as far as we know, and whether
+	// we've been told it's dead (as opposed to just not having heard from it)
+	private volatile int incarnation = 0;
+	private volatile boolean dead = false;
+	// Its timeout went off and it's being probed through other nodes
+	private volatile boolean suspect = false;
+	private final AtomicBoolean queued = new AtomicBoolean(false);
+	private final TimingWheel.Timeout<Node> expiry = new TimingWheel.Timeout<Node>(this);
+	private final ArrivalWindow arrivals;
+	// What the HeartbeatScheduler knows about our link to it, when it's
+	// next due a ping, the sequence number that ping gets, and when we last
+	// sent it anything but a ping. Monitor only
+	private final HeartbeatScheduler.Link link;
+	private final TimingWheel.Timeout<Node> nextPing = new TimingWheel.Timeout<Node>(this);
+	private int sentSequence = 0;
+	private long lastSent = -1;
+	// PINGs from it that arrived and that went missing, going by the gaps in
+	// their sequence numbers. Counted by the Receiver, taken by the Monitor
+	private int lastSequence = -1;
+	private final AtomicInteger arrived = new AtomicInteger();
+	private final AtomicInteger missed = new AtomicInteger();
+	// Where it's saved in the Checkpoint, -1 if it isn't
+	private volatile int record = -1;
+
+	/**
+	 * @param address the node's address, already looked up (see HostResolver
+	 *                for the ones from the config file)
+	 * @param port the node's port
+	 * @param arrivals its heartbeat history
+	 * @param link what's known about our link to it
+	 */
+	public Node(InetAddress address, int port, ArrivalWindow arrivals, HeartbeatScheduler.Link link) {
+		this.arrivals = arrivals;
+		this.link = link;
+		this.address = address;
+		this.port = port;
+		this.online = false;
+		this.tolc = -1;
 	}
 	
 	/**
@@ -81,17 +115,184 @@ final class Node {
 		this.tolc = tolc;
 	}	
 
+	/**
+	 * @return the node's incarnation, bumped by the node itself whenever it
+	 *         has to refute a rumour that it's dead
+	 */
+	public int getIncarnation() {
+		return incarnation;
+	}
+
+	/**
+	 * @param incarnation the node's incarnation
+	 */
+	public void setIncarnation(int incarnation) {
+		this.incarnation = incarnation;
+	}
+
+	/**
+	 * @return true if the node was declared dead, by us or by gossip
+	 */
+	public boolean isDead() {
+		return dead;
+	}
+
+	/**
+	 * @param dead true if the node has been declared dead
+	 */
+	public void setDead(boolean dead) {
+		this.dead = dead;
+	}
+
+	/**
+	 * @return true if the node is on its last chance, see ProbeRelay
+	 */
+	public boolean isSuspect() {
+		return suspect;
+	}
+
+	/**
+	 * @param suspect true if the node is being probed indirectly
+	 */
+	public void setSuspect(boolean suspect) {
+		this.suspect = suspect;
+	}
+
+	/**
+	 * @return the node's address and port packed into one key
+	 */
+	public long getKey() {
+		return MembershipTable.pack(address, port);
+	}
+
+	/**
+	 * Flags this node as waiting in the heartbeat queue
+	 * 
+	 * @return true if it wasn't already waiting, in which case the caller
+	 *         should queue it
+	 */
+	public boolean markQueued() {
+		return queued.compareAndSet(false, true);
+	}
+
+	/**
+	 * Clears the flag set by markQueued(), once the node is off the queue
+	 */
+	public void clearQueued() {
+		queued.set(false);
+	}
+
+	/**
+	 * @return the timeout that marks this node offline if it goes quiet
+	 */
+	public TimingWheel.Timeout<Node> getExpiry() {
+		return expiry;
+	}
+
+	/**
+	 * @return the heartbeat history the failure detector judges this node by
+	 */
+	public ArrivalWindow getArrivals() {
+		return arrivals;
+	}
+
+	/**
+	 * @return what the HeartbeatScheduler knows about our link to this node
+	 */
+	public HeartbeatScheduler.Link getLink() {
+		return link;
+	}
+
+	/**
+	 * @return the timeout that goes off when this node is next due a ping
+	 */
+	public TimingWheel.Timeout<Node> getNextPing() {
+		return nextPing;
+	}
+
+	/**
+	 * @return when we last sent this node anything but a ping, -1 if never
+	 */
+	public long getLastSent() {
+		return lastSent;
+	}
+
+	/**
+	 * @param lastSent when we last sent this node anything but a ping
+	 */
+	public void setLastSent(long lastSent) {
+		this.lastSent = lastSent;
+	}
+
+	/**
+	 * @return the sequence number for the next ping to this node. Each node
+	 *         gets its own run of them, so it can tell when one went missing
+	 */
+	public int nextSequence() {
+		return sentSequence++;
+	}
+
+	/**
+	 * Counts a PING from this node, and any that went missing before it.
+	 * A sequence number that goes backwards means the node restarted
+	 * 
+	 * @param sequence the PING's sequence number
+	 */
+	public void countPing(int sequence) {
+		if (lastSequence >= 0 && sequence > lastSequence + 1) {
+			missed.addAndGet(sequence - lastSequence - 1);
+		}
+		lastSequence = sequence;
+		arrived.incrementAndGet();
+	}
+
+	/**
+	 * @return how many PINGs from this node arrived since the last call
+	 */
+	public int takeArrived() {
+		return arrived.getAndSet(0);
+	}
+
+	/**
+	 * @return how many PINGs from this node went missing since the last call
+	 */
+	public int takeMissed() {
+		return missed.getAndSet(0);
+	}
+
 	/**
 	 * Calculates and returns the time elapsed since contact was last received from
 	 * this node
 	 * 
+	 * @param now the current time
 	 * @return the time in milliseconds which has elapsed since last contact with
 	 *         this node
 	 */
-	public long getTSLC() {
+	public long getTSLC(long now) {
 		if (this.tolc > -1) {
-			return System.currentTimeMillis() - this.tolc;
+			return now - this.tolc;
 		}
 		return -1;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * @return where this node is saved in the Checkpoint, -1 if it isn't
+	 */
+	public int getRecord() {
+		return record;
+	}
+
+	/**
+	 * @param record where this node is saved in the Checkpoint
+	 */
+	public void setRecord(int record) {
+		this.record = record;
+	}
+
+	/**
+	 * @return this node's state as Checkpoint flags
+	 */
+	public int getCheckpointFlags() {
+		return (online ? Checkpoint.ONLINE : 0) | (dead ? Checkpoint.DEAD : 0);
+	}
+}
@@ -3,38 +3,129 @@
  * 
  * P2P implementation of the notify and update functionality of a basic HAC
  * protocol
+ * 
+ * The runtime owns one socket for its whole life and splits the work over
+ * three threads:
+ *    Receiver  blocks on the socket and hands heartbeats to the Monitor
+ *    Monitor   owns all node state: runs the failure detector, sends pings
+ *              and prints the node table
+ *    Console   blocks on System.in and hands commands to the Monitor
+ * They only talk through queues, so a slow console never holds up packets
+ * and a burst of packets never holds up the timeout checks.
+ * 
+ * By default every node pings every other node (hac.p2p.mode=all), each
+ * as often as the HeartbeatScheduler works out from the loss on its link,
+ * which shows in the gaps between the sequence numbers of its PINGs. Any
+ * packet from a node counts as a heartbeat from it, and a node we sent
+ * something else lately (hac.heartbeat.idle) isn't pinged. With
+ * hac.p2p.mode=gossip each node instead probes a few random peers per round
+ * and piggybacks membership changes on the probes and their ACKs, see
+ * Gossip. Knobs for that mode:
+ *    hac.gossip.fanout          peers probed per round (3)
+ *    hac.gossip.interval        millis between rounds (1000)
+ *    hac.gossip.probeTimeout    millis to wait for an ACK (500)
+ *    hac.gossip.retransmitMult  each update is sent this * log2(N + 1) times (3)
+ *    hac.gossip.maxUpdates      most updates piggybacked per packet (16)
+ * 
+ * In both modes a node whose timeout goes off isn't written off straight
+ * away. It gets a PROBE from us and a few other nodes are asked to PROBE it
+ * too (see ProbeRelay), and it's only marked down if none of that gets an
+ * answer within hac.probe.timeout.
+ * 
+ * Hostnames in the config file are looked up in parallel, with answers
+ * cached for a while, see HostResolver. The constructor waits at most
+ * hac.dns.startupWait millis (2000) for them; any that aren't resolved by
+ * then are left to the Monitor, which keeps trying every
+ * hac.dns.retryInterval millis (1000) and adds each node once its name
+ * resolves.
+ * 
+ * With -Dhac.checkpoint.dir set, every node's state is saved as it changes
+ * (see Checkpoint), and a node restarted on the same port starts from what
+ * was saved instead of with everyone down.
  */
 
 package hac_p2p;
 
-import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.BufferedReader;
+import java.io.FileReader;
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Scanner;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import hac_core.Checkpoint;
+import hac_core.Clock;
+import hac_core.EventLog;
+import hac_core.FailureDetector;
+import hac_core.HeartbeatScheduler;
+import hac_core.HostResolver;
+import hac_core.MembershipListener;
+import hac_core.MembershipTable;
+import hac_core.Metrics;
+import hac_core.ProbeRelay;
+import hac_core.TimingWheel;
+import packet_format.HACPacket;
+import packet_format.HACPacketView;
+import packet_format.HACPacket.PacketType;
+import packet_format.HACPacket.PacketTypeDataMismatchException;
 
 public class P2P {
 
 	// Default config file location
 	private static String cfgPath = "./res/config";
 
-	// The network port used for communication
-	private static int port = 9876;
+	// The network port used for communication, hac.port to run more than
+	// one node on a host
+	private static int port = Integer.getInteger("hac.port", 9876);
 
 	// Max packet size
-	private static final int PACKET_SIZE = 1024;
-
-	// Socket receive timeout
-	private static final int RECV_TIMEOUT = 1000;
+	private static final int PACKET_SIZE = HACPacket.MAX_PACKET_SIZE;
 
 	// Node lifespan - nodes are assumed to be dead after this long without
-	// contact
+	// contact. This is only the default for the fixed timeout detector, see
+	// FailureDetector.fromSystemProperties for the other knobs
 	private static final long NODE_TIMEOUT = 30000;
 
-	// Node index
-	private static ArrayList<Node> nodeIndex = new ArrayList<Node>();
+	// Resolution of the node timeout wheel, also the longest the Monitor
+	// sleeps when there is nothing to do
+	private static final long TIMEOUT_TICK = 100;
+
+	// Resolution of the ping wheel. Finer than the timeouts, since a ping a
+	// whole tick late eats into the node's time before it's suspected
+	private static final long PING_TICK = 10;
+
+	// How often the node table is printed, in milliseconds. 0 to only print
+	// it when asked
+	private static final long DISPLAY_INTERVAL = Long.getLong("hac.p2p.displayInterval", 5000);
+
+	// Whether to gossip instead of having everyone ping everyone
+	private static final boolean GOSSIP = "gossip".equalsIgnoreCase(System.getProperty("hac.p2p.mode", "all"));
+
+	// Gossip mode timing, see the class comment
+	private static final int GOSSIP_FANOUT = Integer.getInteger("hac.gossip.fanout", 3);
+	private static final long GOSSIP_INTERVAL = Long.getLong("hac.gossip.interval", 1000);
+	private static final long PROBE_TIMEOUT = Long.getLong("hac.gossip.probeTimeout", 500);
+
+	// Most gossip packets waiting for the Monitor before new ones get dropped
+	private static final int MESSAGE_QUEUE_SIZE = 1024;
+
+	// Longest the constructor waits on DNS, and how often the Monitor checks
+	// on config entries whose names didn't resolve in time
+	private static final long DNS_STARTUP_WAIT = Long.getLong("hac.dns.startupWait", 2000);
+	private static final long DNS_RETRY_INTERVAL = Long.getLong("hac.dns.retryInterval", 1000);
 
 	// Formal command values
 	private static enum Commands {
@@ -44,11 +135,183 @@ public class P2P {
 	// Universal input scanner
 	static Scanner input = null;
 
+	// Node index
+	private final ArrayList<Node> nodeIndex = new ArrayList<Node>();
+
+	// The same nodes, keyed by packed address and port for O(1) lookup of
+	// whoever sent a packet
+	private final MembershipTable<Node> nodeTable = new MembershipTable<Node>();
+
+	// Decides when a quiet node is dead
+	private final FailureDetector detector = FailureDetector.fromSystemProperties(NODE_TIMEOUT);
+
+	// Decides how often each node gets pinged, from the loss on its link and
+	// how far behind the Monitor is
+	private final HeartbeatScheduler scheduler = HeartbeatScheduler.fromSystemProperties(NODE_TIMEOUT);
+
+	// Pending node timeouts. A node's timeout is pushed back every time it
+	// pings, so only nodes that actually go quiet ever fire. Monitor only
+	private final TimingWheel<Node> timeouts;
+
+	// When each node is next due a ping, so a round only touches the nodes
+	// that are due rather than every node. Monitor only, once it's running
+	private final TimingWheel<Node> pings;
+
+	// Where every timestamp and deadline comes from
+	private final Clock clock;
+
+	// Looks up the hostnames in the config file
+	private final HostResolver resolver;
+
+	// Where node state is saved for the next run, null if it isn't. Set in
+	// start(), before any other thread is
+	private Checkpoint checkpoint = null;
+
+	// Config entries whose names haven't resolved yet. Monitor only, once
+	// the constructor is done
+	private final ArrayList<PendingHost> unresolved = new ArrayList<PendingHost>();
+
+	// The one socket, open from start() until the process exits
+	private DatagramSocket socket = null;
+
+	// Receiver -> Monitor: nodes with a heartbeat waiting to be processed.
+	// A node is only ever queued once at a time, see Node.markQueued()
+	private BlockingQueue<Node> heartbeats = null;
+
+	// Console -> Monitor: commands typed by the user
+	private final BlockingQueue<Commands> commands = new LinkedBlockingQueue<Commands>();
+
+	private volatile boolean running = true;
+
+	// Told whenever a node goes up or down
+	private volatile MembershipListener listener = MembershipListener.NONE;
+
+	// Packet counts, timings and membership changes, shown over JMX
+	private final Metrics metrics = new Metrics();
+
+	// What goes in the event log, see EventLog
+	private static final EventLog.Event UP = EventLog.event("p2p.up", EventLog.Level.INFO, "node", null, null);
+	private static final EventLog.Event DOWN = EventLog.event("p2p.down", EventLog.Level.INFO, "node", null,
+			"quietMillis");
+	private static final EventLog.Event RESTORED = EventLog.event("p2p.restored", EventLog.Level.INFO, null, null,
+			"nodes");
+	private static final EventLog.Event SEND_FAILED = EventLog.event("p2p.sendFailed", EventLog.Level.WARN, "to",
+			"error", null);
+
+	// Receiver -> Monitor: gossip and probe packets, which need their bodies
+	// and may come from nodes we don't know yet
+	private final BlockingQueue<Inbound> messages = new ArrayBlockingQueue<Inbound>(MESSAGE_QUEUE_SIZE);
+
+	// Updates waiting to be piggybacked. Everything from here down is only
+	// touched by the Monitor
+	private final Gossip gossip = new Gossip(Integer.getInteger("hac.gossip.maxUpdates", 16),
+			Integer.getInteger("hac.gossip.retransmitMult", 3));
+
+	// Our own incarnation. Starting from the clock means a restarted node
+	// always outranks whatever was said about its previous life
+	private int incarnation;
+
+	// This node's entry in the config file, if it has one
+	private Node self = null;
+
+	// Reused for every gossip packet we send
+	private final byte[] gossipData = new byte[PACKET_SIZE];
+	private final ByteBuffer gossipBuffer = ByteBuffer.wrap(gossipData);
+	private final DatagramPacket gossipPacket = new DatagramPacket(gossipData, gossipData.length);
+	private final int origin = localAddress() == null ? 0 : HACPacket.ipv4ToInt(localAddress());
+	private int gossipSequence = 0;
+
+	// The all-to-all PING, encoded for the first ping and stamped with the
+	// node's own sequence number before every send. Monitor only
+	private byte[] pingData = null;
+	private ByteBuffer pingBuffer = null;
+	private DatagramPacket pingPacket = null;
+
+	// Applies each update decoded from a gossip body
+	private final Gossip.Sink applyUpdate = this::applyUpdate;
+
+	// PROBEs we're sending on behalf of other nodes, and the scratch frame
+	// for every probe packet we send. Monitor only
+	private final ProbeRelay relay = new ProbeRelay(256, ProbeRelay.TIMEOUT);
+	private final byte[] probeData = new byte[HACPacket.HEADER_SIZE + ProbeRelay.BODY_SIZE];
+	private final ByteBuffer probeBuffer = ByteBuffer.wrap(probeData);
+	private final DatagramPacket probePacket = new DatagramPacket(probeData, probeData.length);
+	private int probeSequence = 0;
+
+	// RNG for timing pings and picking peers, Monitor only
+	private final Random random = new Random();
+
+	// Scratch list for picking peers
+	private final ArrayList<Node> candidates = new ArrayList<Node>();
+
+	/**
+	 * A gossip or probe packet on its way from the Receiver to the Monitor
+	 */
+	private static final class Inbound {
+		final InetAddress address;
+		final int port;
+		final PacketType type;
+		final int sequence;
+		final byte[] body;
+
+		Inbound(InetAddress address, int port, PacketType type, int sequence, byte[] body) {
+			this.address = address;
+			this.port = port;
+			this.type = type;
+			this.sequence = sequence;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * A config file entry waiting on DNS
+	 */
+	private static final class PendingHost {
+		final String host;
+		final int port;
+		final int line;
+		CompletableFuture<Inet4Address> address;
+
+		PendingHost(String host, int port, int line, CompletableFuture<Inet4Address> address) {
+			this.host = host;
+			this.port = port;
+			this.line = line;
+			this.address = address;
+		}
+	}
+
+	/**
+	 * Builds a runtime for the nodes in a config file. Nothing is opened or
+	 * started until start() is called
+	 * 
+	 * @param path the path of the configuration file
+	 */
+	public P2P(String path) {
+		this(path, Clock.SYSTEM);
+	}
+
+	/**
+	 * Same as P2P(path), with timestamps and deadlines taken from the given
+	 * clock instead of the wall clock
+	 * 
+	 * @param path the path of the configuration file
+	 * @param clock where the time comes from
+	 */
+	public P2P(String path, Clock clock) {
+		this.clock = clock;
+		this.timeouts = new TimingWheel<Node>(TIMEOUT_TICK, clock.millis());
+		this.pings = new TimingWheel<Node>(PING_TICK, clock.millis());
+		this.incarnation = (int) (clock.millis() / 1000);
+		this.resolver = HostResolver.fromSystemProperties(clock);
+		loadConfig(path);
+		heartbeats = new ArrayBlockingQueue<Node>(nodeIndex.size() + unresolved.size());
+	}
+
 	/**
 	 * It really do just be the main method tho
 	 * 
 	 * @param args args[0] can optionally contain an alternate config file path
-	 * @throws IOException for call to System.in.available(). Not sure when.
+	 * @throws IOException if the socket can't be opened
 	 */
 	public static void main(String[] args) throws IOException {
 		// Load from specified path, if provided
@@ -56,123 +319,441 @@ public class P2P {
 			cfgPath = args[0];
 		}
 		
-		loadConfig(cfgPath);
 		input = new Scanner(System.in);
+		P2P p2p = new P2P(cfgPath);
+		Runtime.getRuntime().addShutdownHook(new Thread(p2p::stop));
+		p2p.start();
+	}
 
-		// Loop control, for use later
-		// In current implementation, will never be true
-		boolean quit = false;
-
-		// RNG for timing pings
-		Random random = new Random();
+	/**
+	 * Opens the socket and starts the Receiver, Monitor and Console threads
+	 * 
+	 * @throws IOException if the socket can't be opened
+	 */
+	public void start() throws IOException {
+		socket = new DatagramSocket(port);
+		metrics.register("P2P", port);
+		Checkpoint c = Checkpoint.fromSystemProperties("p2p", port);
+		if (c != null) {
+			restore(c);
+			checkpoint = c;
+			for (Node n : nodeIndex) {
+				track(n);
+			}
+		}
+		if (GOSSIP && self != null) {
+			// Tell everyone we're here
+			self.setOnline(true);
+			self.setIncarnation(incarnation);
+			gossip.enqueue(PacketType.NOOB, self.getKey(), incarnation);
+		}
+		new Receiver().start();
+		new Monitor().start();
+		// No console when embedded in something else, e.g. the load generator
+		if (input != null) {
+			new Console().start();
+		}
+	}
 
-		// Store last time the nodeIndex was displayed
-		long lastDisplay = System.currentTimeMillis();
+	/**
+	 * @param listener what to tell about nodes going up and down. Called on
+	 *                 the Monitor thread
+	 */
+	public void setListener(MembershipListener listener) {
+		this.listener = listener != null ? listener : MembershipListener.NONE;
+	}
 
-		// MAIN LOOP
-		while (!quit) {
-			// Ping all known hosts to let them know you've arrived
-			System.out.println("Pinging all nodes");
-			System.out.println();
-			pingAll();
+	/**
+	 * Stops the threads and closes the socket. The Console thread is stuck
+	 * in a read, so it goes when the process does
+	 */
+	public void stop() {
+		running = false;
+		metrics.unregister();
+		resolver.shutdown();
+		if (checkpoint != null) {
+			checkpoint.close();
+		}
+		if (socket != null) {
+			socket.close();
+		}
+	}
 
-			// The amount of time spent receiving/accepting commands
-			// This ensures a random interval between pings between 0 and 30
-			// seconds
-			long timeToReceive = random.nextInt(30000);
+	/**
+	 * @return this node's counters and histograms
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
 
-			// socket for later
-			DatagramSocket socket = null;
+	/**
+	 * Receives packets for as long as the socket is open. All it does with
+	 * them is stamp the sender's time of last contact and queue the sender
+	 * for the Monitor, along with the packet itself if the Monitor has to
+	 * answer it
+	 */
+	private class Receiver extends Thread {
+		Receiver() {
+			super("p2p-receiver");
+		}
 
-			// Sender IP address
-			InetAddress senderIP = null;
+		@Override
+		public void run() {
+			// Reused for every packet
+			byte[] incomingData = new byte[PACKET_SIZE];
+			ByteBuffer wrapped = ByteBuffer.wrap(incomingData);
+			DatagramPacket incomingPacket = new DatagramPacket(incomingData, incomingData.length);
+			HACPacketView packet = new HACPacketView();
 
-			// Set time of last ping
-			long lastPingTime = System.currentTimeMillis();
+			while (running) {
+				try {
+					incomingPacket.setLength(incomingData.length);
+					socket.receive(incomingPacket);
+				} catch (IOException e) {
+					if (running) {
+						e.printStackTrace();
+					}
+					continue;
+				}
 
-			// Wait for incoming packets
-			while (!(System.currentTimeMillis() - lastPingTime > timeToReceive)) {
-				// Show current list of nodes if more than 5 seconds have
-				// passed
-				if (System.currentTimeMillis() - lastDisplay > 5000) {
-					displayNodes();
-					System.out.println(); // Blank line
-					lastDisplay = System.currentTimeMillis();
+				wrapped.clear().limit(incomingPacket.getLength());
+				if (!packet.wrap(wrapped, 0) || !(incomingPacket.getAddress() instanceof Inet4Address)) {
+					continue;
 				}
+				long start = System.nanoTime();
+				handle(packet, incomingPacket);
+				metrics.receiveTime(System.nanoTime() - start);
+			}
+		}
+
+		/**
+		 * Queues one received packet for the Monitor, or drops it
+		 * 
+		 * @param packet view of the packet
+		 * @param incomingPacket the datagram it came in
+		 */
+		private void handle(HACPacketView packet, DatagramPacket incomingPacket) {
+			PacketType type = packet.getPacketType();
+			metrics.received(type);
+			if (type == PacketType.ACK || type == PacketType.PING_REQ || type == PacketType.PROBE
+					|| type == PacketType.PROBE_ACK || (GOSSIP && type == PacketType.PING)) {
+				// Dropped if the Monitor is this far behind
+				messages.offer(new Inbound(incomingPacket.getAddress(), incomingPacket.getPort(), type,
+						packet.getSequence(), packet.copyBody()));
+			}
+			// Gossip keeps its own track of who it heard from, see
+			// receiveGossip()
+			if (GOSSIP) {
+				return;
+			}
+
+			// Anything from a known node counts, not just its PINGs
+			Node n = nodeTable.get(MembershipTable.pack(incomingPacket.getAddress(), incomingPacket.getPort()));
+			if (n == null) {
+				return;
+			}
+
+			long now = clock.millis();
+			n.setTolc(now);
+			if (type == PacketType.PING) {
+				n.countPing(packet.getSequence());
+			}
+			if (checkpoint != null) {
+				checkpoint.heard(n.getRecord(), now);
+			}
+			// If it's already queued the Monitor will see the new tolc
+			// when it gets to it
+			if (n.markQueued()) {
+				heartbeats.offer(n);
+			}
+		}
+	}
 
-				// Incoming data packet (want this to be reset each time)
-				byte[] incomingData = new byte[PACKET_SIZE];
-				DatagramPacket incomingPacket = new DatagramPacket(incomingData, incomingData.length);
+	/**
+	 * Owns the node state. Feeds heartbeats to the failure detector, fires
+	 * node timeouts, pings each node when the HeartbeatScheduler says it's
+	 * due and prints the node table. In gossip mode it runs the gossip rounds instead
+	 */
+	private class Monitor extends Thread {
+		Monitor() {
+			super("p2p-monitor");
+		}
 
-				// Try to receive data with timeout
+		@Override
+		public void run() {
+			long now = clock.millis();
+			long nextGossip = now;
+			long lastDisplay = now;
+			long nextResolve = now + DNS_RETRY_INTERVAL;
+
+			while (running) {
+				// Wait for a heartbeat, but never longer than one wheel tick
 				try {
-					// Instantiate socket and set the timeout
-					socket = new DatagramSocket(port);
-					socket.setSoTimeout(RECV_TIMEOUT);
-
-					// Attempt to receive
-					boolean timedOut = false;
-					while (!timedOut) {
-						try {
-							socket.receive(incomingPacket);
-							senderIP = incomingPacket.getAddress();
-						} catch (SocketTimeoutException e) {
-							// Set flag if timeout reached
-							timedOut = true;
+					if (GOSSIP) {
+						Inbound m = messages.poll(TIMEOUT_TICK, TimeUnit.MILLISECONDS);
+						for (; m != null; m = messages.poll()) {
+							receive(m);
+						}
+					} else {
+						Node n = heartbeats.poll(TIMEOUT_TICK, TimeUnit.MILLISECONDS);
+						for (; n != null; n = heartbeats.poll()) {
+							heartbeat(n);
+						}
+						Inbound m;
+						while ((m = messages.poll()) != null) {
+							receive(m);
 						}
 					}
-					socket.close();
-				} catch (UnknownHostException e) {
-					e.printStackTrace();
-				} catch (SocketException e) {
-					e.printStackTrace();
-				} catch (IOException e) {
-					e.printStackTrace();
+				} catch (InterruptedException e) {
+					break;
 				}
 
-				// If PING packet received, update corresponding record in
-				// nodeIndex
-				String packetDataString = new String(incomingPacket.getData()).strip().toLowerCase();
-				if (packetDataString.contains("ping")) {
-					for (Node n : nodeIndex) {
-						if (n.getAddress().equals(senderIP)) {
-							n.setOnline(true);
-							n.setTolc(System.currentTimeMillis());
-							// System.out.println("Ping received"); // DEBUG
-							break;
-						}
+				// Handle commands from the user
+				Commands command;
+				while ((command = commands.poll()) != null) {
+					if (command == Commands.DISPLAY) {
+						lastDisplay = clock.millis();
+						System.out.println();
+						displayNodes();
 					}
 				}
 
-				// If a node has not been heard from in more than NODE_TIMEOUT
-				// milliseconds, it is considered dead
-				for (Node n : nodeIndex) {
-					if (n.getTSLC() > NODE_TIMEOUT) {
-						n.setOnline(false);
-					}
+				// If a node has not been heard from in time, it is
+				// considered dead
+				now = clock.millis();
+				timeouts.advance(now, P2P.this::expire);
+
+				// Add any config entries whose names have come through
+				if (!unresolved.isEmpty() && now >= nextResolve) {
+					addResolved();
+					nextResolve = now + DNS_RETRY_INTERVAL;
 				}
 
-				// Check for user input and if available, parse for command
-				String usrIn = null;
-				Commands command = Commands.NONE;
-				if (System.in.available() > 0) {
-					usrIn = input.nextLine();
-					// Skip if user entered whitespace
-					if (!usrIn.isBlank()) {
-						command = parseCommand(usrIn);
+				// Ping each node when it's due, or a few of them every round
+				// when gossiping
+				if (GOSSIP) {
+					if (now >= nextGossip) {
+						gossipRound(now);
+						nextGossip = now + GOSSIP_INTERVAL;
 					}
+				} else {
+					pingDue(now);
 				}
 
-				// Handle a command from the user
-				switch (command) {
+				// Show current list of nodes every so often
+				if (DISPLAY_INTERVAL > 0 && now - lastDisplay > DISPLAY_INTERVAL) {
+					displayNodes();
+					System.out.println(); // Blank line
+					lastDisplay = now;
+				}
+			}
+		}
+
+		/**
+		 * Feeds one heartbeat to the failure detector
+		 * 
+		 * @param n the node that was heard from
+		 */
+		private void heartbeat(Node n) {
+			// Clear the flag before reading tolc, so a heartbeat that lands
+			// in between queues the node again rather than getting lost
+			n.clearQueued();
+			long tolc = n.getTolc();
+			// Intervals from before an outage say nothing about the node now
+			if (!n.isOnline()) {
+				n.getArrivals().reset();
+			} else if (n.getArrivals().lastArrival() >= 0) {
+				metrics.heartbeatInterval(tolc - n.getArrivals().lastArrival());
+			}
+			n.setSuspect(false);
+			markUp(n);
+			scheduler.observed(n.getLink(), n.takeArrived(), n.takeMissed());
+			detector.heartbeat(n.getArrivals(), tolc);
+			timeouts.schedule(n.getExpiry(), detector.suspectAt(n.getArrivals()));
+		}
+
+		// load and time for the nodes pingDue() is going through
+		private double load;
+		private long pingTime;
+		private final Consumer<Node> pingOne = this::pingOne;
+
+		/**
+		 * Pings every node that's due, going by the ping wheel, so only those
+		 * nodes are touched however many there are
+		 * 
+		 * @param now the current time
+		 */
+		private void pingDue(long now) {
+			int queued = heartbeats.size();
+			load = (double) queued / Math.max(1, queued + heartbeats.remainingCapacity());
+			pingTime = now;
+			pings.advance(now, pingOne);
+		}
+
+		/**
+		 * Pings a node that's due, and works out when it's due next from
+		 * what's known about its link. The fuller the heartbeat queue, the
+		 * further out that is, so a Monitor that's falling behind isn't
+		 * handed even more to do. A node we've sent something else lately
+		 * doesn't need the ping, that already counted as one
+		 * 
+		 * @param n the node
+		 */
+		private void pingOne(Node n) {
+			if (scheduler.isIdle(n.getLastSent(), pingTime)) {
+				sendPing(n, pingTime);
+			}
+			pings.schedule(n.getNextPing(), pingTime + scheduler.nextDelay(n.getLink(), load));
+		}
+
+		/**
+		 * Probes a few random peers that aren't known to be dead. Dead nodes
+		 * aren't probed, they come back by probing us
+		 * 
+		 * @param now the current time
+		 */
+		private void gossipRound(long now) {
+			candidates.clear();
+			for (Node n : nodeIndex) {
+				if (n != self && !n.isDead()) {
+					candidates.add(n);
+				}
+			}
+			for (int i = 0; i < GOSSIP_FANOUT && i < candidates.size(); i++) {
+				// Partial shuffle, so nobody gets picked twice
+				Collections.swap(candidates, i, i + random.nextInt(candidates.size() - i));
+				Node n = candidates.get(i);
+				sendGossip(PacketType.PING, n);
+				if (!n.getExpiry().isPending()) {
+					timeouts.schedule(n.getExpiry(), now + PROBE_TIMEOUT);
+				}
+			}
+		}
+
+		/**
+		 * Handles a packet from the messages queue. Probe traffic is dealt
+		 * with here, anything else is gossip
+		 * 
+		 * @param m the packet
+		 */
+		private void receive(Inbound m) {
+			ByteBuffer body = ByteBuffer.wrap(m.body);
+			long from = MembershipTable.pack(m.address, m.port);
+			long now = clock.millis();
+			switch (m.type) {
+			case PROBE: // someone checking on us
+				sendProbe(PacketType.ACK, m.sequence, 0, from);
+				return;
+
+			case PING_REQ: // someone asking us to check on someone else
+				long target = ProbeRelay.readTarget(body, 0, m.body.length);
+				if (target != 0) {
+					sendProbe(PacketType.PROBE, relay.begin(from, m.sequence, target, now), 0, target);
+				}
+				return;
+
+			case PROBE_ACK: // someone we asked got through
+				Node vouched = nodeTable.get(ProbeRelay.readTarget(body, 0, m.body.length));
+				if (vouched != null && vouched.isSuspect()) {
+					confirmAlive(vouched, now);
+				}
+				return;
+
+			case ACK:
+				int slot = relay.complete(m.sequence, from, now);
+				if (slot >= 0) { // answer to a PROBE we sent for someone else
+					sendProbe(PacketType.PROBE_ACK, relay.requestSequence(slot), relay.target(slot),
+							relay.requester(slot));
+					return;
+				}
+				Node n = nodeTable.get(from);
+				if (n != null && n.isSuspect()) { // answer to our own PROBE
+					confirmAlive(n, now);
+				}
+				break;
+
+			default:
+				break;
+			}
+			if (GOSSIP) {
+				receiveGossip(m, body);
+			}
+		}
+
+		/**
+		 * Handles a gossip PING or ACK. Hearing from a node directly is proof
+		 * that it's alive, unless we've already heard it died at the
+		 * incarnation it's claiming, in which case it has to refute that first
+		 * 
+		 * @param m the packet
+		 * @param body the packet's body
+		 */
+		private void receiveGossip(Inbound m, ByteBuffer body) {
+			int senderIncarnation = Gossip.senderIncarnation(body, 0, m.body.length);
+			if (senderIncarnation < 0) {
+				return; // not gossip
+			}
+
+			Node n = nodeTable.get(MembershipTable.pack(m.address, m.port));
+			boolean isNew = n == null;
+			if (isNew) {
+				n = addNode(m.address, m.port);
+			}
+			if (n == self) {
+				return;
+			}
+			if (n.isDead() && senderIncarnation <= n.getIncarnation()) {
+				// Our reply will carry this, since news about the destination
+				// goes first
+				gossip.enqueue(PacketType.WTF, n.getKey(), n.getIncarnation());
+			} else {
+				if (!n.isOnline()) {
+					gossip.enqueue(isNew ? PacketType.NOOB : PacketType.BACK, n.getKey(), senderIncarnation);
+				} else if (n.getTolc() >= 0) {
+					metrics.heartbeatInterval(clock.millis() - n.getTolc());
+				}
+				n.setIncarnation(Math.max(n.getIncarnation(), senderIncarnation));
+				markUp(n);
+				n.setDead(false);
+			}
+			n.setTolc(clock.millis());
+			n.setSuspect(false);
+			timeouts.cancel(n.getExpiry());
+			save(n);
+
+			Gossip.decode(body, 0, m.body.length, applyUpdate);
+			if (m.type == PacketType.PING) {
+				sendGossip(PacketType.ACK, n);
+			}
+		}
+	}
+
+	/**
+	 * Reads commands from the user. Blocks on System.in, which is fine since
+	 * nothing else happens on this thread
+	 */
+	private class Console extends Thread {
+		Console() {
+			super("p2p-console");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (running && input.hasNextLine()) {
+				String usrIn = input.nextLine();
+				// Skip if user entered whitespace
+				if (usrIn.isBlank()) {
+					continue;
+				}
+
+				switch (parseCommand(usrIn)) {
 				case QUIT:
 					stdTerm(true, 0);
 					break;
 
 				case DISPLAY:
-					lastDisplay = System.currentTimeMillis();
-					System.out.println();
-					displayNodes();
+					commands.offer(Commands.DISPLAY);
 					break;
 
 				case INVALID:
@@ -187,82 +768,418 @@ public class P2P {
 	}
 
 	/**
-	 * Loads configuration data from a configuration file
+	 * Called when a node's timeout goes off. The wheel rounds deadlines to a
+	 * tick, so the detector gets the final say
 	 * 
-	 * @param path the path of the configuration file
+	 * @param n the node whose timeout fired
 	 */
-	private static void loadConfig(String path) {
-		// Open config file
-		File cfgFile = new File(path);
-		Scanner cfgScanner = null;
+	private void expire(Node n) {
+		long now = clock.millis();
+		if (n.isSuspect()) { // nobody got through to it either
+			n.setSuspect(false);
+			if (GOSSIP) {
+				declareDead(n);
+			} else {
+				markDown(n);
+			}
+			return;
+		}
+		if (GOSSIP) { // the probe went unanswered
+			if (!n.isDead()) {
+				probeIndirectly(n, now);
+			}
+			return;
+		}
+		long suspectAt = detector.suspectAt(n.getArrivals());
+		if (suspectAt > now) {
+			timeouts.schedule(n.getExpiry(), suspectAt);
+		} else {
+			probeIndirectly(n, now);
+		}
+	}
+
+	/**
+	 * Gives a node that went quiet one last chance. We PROBE it ourselves and
+	 * ask up to ProbeRelay.HELPERS other live nodes to PROBE it too, then wait
+	 * at most ProbeRelay.TIMEOUT for any of that to get through
+	 * 
+	 * @param n the node that went quiet
+	 * @param now the current time
+	 */
+	private void probeIndirectly(Node n, long now) {
+		n.setSuspect(true);
+		timeouts.schedule(n.getExpiry(), now + ProbeRelay.TIMEOUT);
+		sendProbe(PacketType.PROBE, probeSequence++, 0, n.getKey());
+
+		candidates.clear();
+		for (Node c : nodeIndex) {
+			if (c != self && c != n && c.isOnline() && !c.isSuspect()) {
+				candidates.add(c);
+			}
+		}
+		for (int i = 0; i < ProbeRelay.HELPERS && i < candidates.size(); i++) {
+			Collections.swap(candidates, i, i + random.nextInt(candidates.size() - i));
+			sendProbe(PacketType.PING_REQ, probeSequence++, n.getKey(), candidates.get(i).getKey());
+		}
+	}
+
+	/**
+	 * Called when a suspect turns out to be alive after all
+	 * 
+	 * @param n the suspect
+	 * @param now the current time
+	 */
+	private void confirmAlive(Node n, long now) {
+		n.setSuspect(false);
+		if (GOSSIP) {
+			timeouts.cancel(n.getExpiry());
+		} else {
+			// Only heard about, not from, but it's as good as a heartbeat
+			detector.heartbeat(n.getArrivals(), now);
+			timeouts.schedule(n.getExpiry(), detector.suspectAt(n.getArrivals()));
+		}
+	}
+
+	/**
+	 * Sends a probe packet out of the scratch frame
+	 * 
+	 * @param type ACK, PROBE, PING_REQ or PROBE_ACK
+	 * @param sequence sequence number to put on it
+	 * @param target packed address of the node a PING_REQ or PROBE_ACK is
+	 *               about
+	 * @param to packed address to send it to
+	 */
+	private void sendProbe(PacketType type, int sequence, long target, long to) {
+		boolean named = type == PacketType.PING_REQ || type == PacketType.PROBE_ACK;
+		int length = named ? ProbeRelay.BODY_SIZE : 0;
+		HACPacket.encodeHeader(probeBuffer, 0, type, 0, origin, sequence, clock.millis(), length);
+		if (named) {
+			ProbeRelay.writeTarget(probeBuffer, HACPacket.HEADER_SIZE, target);
+		}
 		try {
-			cfgScanner = new Scanner(cfgFile);
-		} catch (FileNotFoundException e) {
-			System.err.println("Error: " + path + " does not exist or you do not have permission to access it.");
-			stdTerm(false, 1); // Exit with error code 1
+			probePacket.setData(probeData, 0, HACPacket.HEADER_SIZE + length);
+			probePacket.setAddress(MembershipTable.inetAddressOf(to));
+			probePacket.setPort(MembershipTable.portOf(to));
+			socket.send(probePacket);
+			metrics.sent(type);
+			Node n = nodeTable.get(to);
+			if (n != null) {
+				n.setLastSent(clock.millis());
+			}
+		} catch (IOException e) {
+			if (running) {
+				EventLog.log(SEND_FAILED, to, e, 0);
+			}
 		}
+	}
 
-		// Load each address into a new node in nodeIndex
-		int lineNumber = 0;
-		while (cfgScanner.hasNextLine()) {
-			lineNumber++;
-			String line = cfgScanner.nextLine();
-			
-			// Skip comments and blank lines
-			if (line.startsWith("#") || line.isBlank() || line.isEmpty()) {
-				continue;
+	/**
+	 * Applies one update from a gossip body. Newer incarnations win, and at
+	 * the same incarnation dead beats alive. Anything that changed our view
+	 * gets passed on
+	 * 
+	 * @param type NOOB, WTF or BACK
+	 * @param key packed address of the node the update is about
+	 * @param inc incarnation of that node
+	 */
+	private void applyUpdate(PacketType type, long key, int inc) {
+		if (self != null && key == self.getKey()) {
+			if (type == PacketType.WTF && inc >= incarnation) {
+				// Someone thinks we're dead, outrank them
+				incarnation = inc + 1;
+				self.setIncarnation(incarnation);
+				gossip.enqueue(PacketType.BACK, key, incarnation);
 			}
-			
-			// Separate line on comma (basically CSV)
-			String tokens[] = line.split(",");
-			
-			// If there are not two tokens, alert user
-			if (tokens.length < 2) {
-				System.err.println("Error: Incorrect configuration file format at line " + lineNumber + ".");
-				continue;	// Don't add invalid node
+			return;
+		}
+
+		Node n = nodeTable.get(key);
+		if (type == PacketType.WTF) {
+			if (n != null && !n.isDead() && inc >= n.getIncarnation()) {
+				n.setIncarnation(inc);
+				declareDead(n);
 			}
-			
-			// Try to make an InetAddress object to see if IP token is valid
-			try {
-				// Must actually assign the value to make this throw an
-				//  exception. Suppress unused variable warning.
-				@SuppressWarnings("unused")
-				InetAddress tmp = Inet4Address.getByName(tokens[0]);
-			} catch (UnknownHostException e) {
-				System.err.println("Error: Incorrect configuration file format at line " + lineNumber + ".");
-				System.err.println(tokens[0] + ": not a valid IP address or hostname.");
-				continue;	// Don't add invalid node
+			return;
+		}
+
+		if (n == null) {
+			if (MembershipTable.addressOf(key) == 0 || MembershipTable.portOf(key) == 0) {
+				return;
 			}
-			
-			// If port number is not valid
-			try {
-				int port = Integer.parseInt(tokens[1].strip());
-				if (port > 65536 || port < 0) {
-					throw new NumberFormatException();
+			n = addNode(MembershipTable.inetAddressOf(key), MembershipTable.portOf(key));
+		} else if (inc < n.getIncarnation() || (inc == n.getIncarnation() && (n.isOnline() || n.isDead()))) {
+			return; // nothing new
+		}
+		n.setIncarnation(inc);
+		markUp(n);
+		n.setDead(false);
+		save(n);
+		gossip.enqueue(type, key, inc);
+	}
+
+	/**
+	 * Marks a node online, telling the listener if it wasn't already
+	 * 
+	 * @param n the node
+	 */
+	private void markUp(Node n) {
+		if (!n.isOnline()) {
+			n.setOnline(true);
+			metrics.nodeUp();
+			EventLog.log(UP, n.getKey(), null, 0);
+			listener.nodeUp(n.getKey(), clock.millis());
+			save(n);
+		}
+	}
+
+	/**
+	 * Marks a node offline, telling the listener if it wasn't already
+	 * 
+	 * @param n the node
+	 */
+	private void markDown(Node n) {
+		if (n.isOnline()) {
+			n.setOnline(false);
+			long now = clock.millis();
+			long quiet = n.getTolc() >= 0 ? now - n.getTolc() : -1;
+			metrics.nodeDown(quiet);
+			EventLog.log(DOWN, n.getKey(), null, quiet);
+			listener.nodeDown(n.getKey(), now);
+			save(n);
+		}
+	}
+
+	/**
+	 * Marks a node dead and spreads the word
+	 * 
+	 * @param n the node
+	 */
+	private void declareDead(Node n) {
+		markDown(n);
+		n.setDead(true);
+		timeouts.cancel(n.getExpiry());
+		save(n);
+		gossip.enqueue(PacketType.WTF, n.getKey(), n.getIncarnation());
+	}
+
+	/**
+	 * Brings back what the last run on this port saved: when each node was
+	 * last heard from, whether it was up or dead, and its incarnation. A
+	 * node that was up gets a heartbeat at the time it was last heard from,
+	 * so one that's been quiet too long is probed on the first tick. Nodes
+	 * no longer in the config are forgotten, unless we're gossiping and
+	 * could have learned about them from other nodes
+	 * 
+	 * @param c the checkpoint
+	 */
+	private void restore(Checkpoint c) {
+		int restored = c.restore(clock.millis(), (key, lastHeard, flags, inc, record) -> {
+			Node n = nodeTable.get(key);
+			if (n == null && GOSSIP) {
+				n = addNode(MembershipTable.inetAddressOf(key), MembershipTable.portOf(key));
+			}
+			if (n == null || n == self || n.getRecord() >= 0) {
+				return false;
+			}
+			n.setRecord(record);
+			n.setTolc(lastHeard);
+			n.setIncarnation(inc);
+			n.setDead((flags & Checkpoint.DEAD) != 0);
+			if ((flags & Checkpoint.ONLINE) != 0) {
+				markUp(n);
+				detector.heartbeat(n.getArrivals(), lastHeard);
+				if (!GOSSIP) {
+					timeouts.schedule(n.getExpiry(), detector.suspectAt(n.getArrivals()));
 				}
-			} catch (NumberFormatException e) {
-				System.err.println("Error: Incorrect configuration file format at line " + lineNumber + ".");
-				System.err.println(tokens[1] + ": not a valid port number.");
-				continue;	// Don't add invalid node
 			}
-			
-			// Add the node to the index
-			nodeIndex.add(new Node(tokens[0].strip(), port));
+			return true;
+		});
+		EventLog.log(RESTORED, 0, null, restored);
+	}
+
+	/**
+	 * Gives a node a record in the checkpoint, if there is one and the node
+	 * doesn't have a record yet
+	 * 
+	 * @param n the node
+	 */
+	private void track(Node n) {
+		if (checkpoint != null && n.getRecord() < 0) {
+			n.setRecord(checkpoint.claim(n.getKey()));
+			save(n);
+		}
+	}
+
+	/**
+	 * Saves a node's state to the checkpoint, if there is one
+	 * 
+	 * @param n the node
+	 */
+	private void save(Node n) {
+		if (checkpoint != null) {
+			checkpoint.save(n.getRecord(), n.getTolc(), n.getCheckpointFlags(), n.getIncarnation());
+		}
+	}
+
+	/**
+	 * Adds a node we learned about from the network rather than the config
+	 * 
+	 * @return the new node, or the existing one if it was already known
+	 */
+	private Node addNode(InetAddress address, int port) {
+		Node n = new Node(address, port, detector.newHistory(), scheduler.newLink());
+		Node existing = nodeTable.putIfAbsent(n.getKey(), n);
+		if (existing != null) {
+			return existing;
+		}
+		nodeIndex.add(n);
+		track(n);
+		pings.schedule(n.getNextPing(), clock.millis());
+		return n;
+	}
+
+	/**
+	 * Sends a PING or ACK with as much gossip as fits to one node
+	 * 
+	 * @param type PING or ACK
+	 * @param n where to send it
+	 */
+	private void sendGossip(PacketType type, Node n) {
+		gossipBuffer.clear().position(HACPacket.HEADER_SIZE);
+		gossip.encode(gossipBuffer, incarnation, n.getKey(), nodeIndex.size());
+		int length = gossipBuffer.position() - HACPacket.HEADER_SIZE;
+		HACPacket.encodeHeader(gossipBuffer, 0, type, 0, origin, gossipSequence++, clock.millis(), length);
+		try {
+			gossipPacket.setData(gossipData, 0, HACPacket.HEADER_SIZE + length);
+			gossipPacket.setAddress(n.getAddress());
+			gossipPacket.setPort(n.getPort());
+			socket.send(gossipPacket);
+			metrics.sent(type);
+		} catch (IOException e) {
+			if (running) {
+				EventLog.log(SEND_FAILED, n.getKey(), e, 0);
+			}
+		}
+	}
+
+	/**
+	 * Loads configuration data from a configuration file. The file is read
+	 * in one pass, every hostname being sent off to the resolver as soon as
+	 * its line is read, then we wait up to DNS_STARTUP_WAIT for the answers.
+	 * Whatever isn't back by then goes in unresolved for the Monitor
+	 * 
+	 * @param path the path of the configuration file
+	 */
+	private void loadConfig(String path) {
+		ArrayList<PendingHost> pending = new ArrayList<PendingHost>();
+		try (BufferedReader cfg = new BufferedReader(new FileReader(path))) {
+			int lineNumber = 0;
+			String line;
+			while ((line = cfg.readLine()) != null) {
+				lineNumber++;
+
+				// Skip comments and blank lines
+				if (line.startsWith("#") || line.isBlank()) {
+					continue;
+				}
+
+				// Separate line on comma (basically CSV)
+				String tokens[] = line.split(",");
+
+				// If there are not two tokens, alert user
+				if (tokens.length < 2 || tokens[0].isBlank()) {
+					System.err.println("Error: Incorrect configuration file format at line " + lineNumber + ".");
+					continue;	// Don't add invalid node
+				}
+
+				// If port number is not valid
+				int nodePort;
+				try {
+					nodePort = Integer.parseInt(tokens[1].strip());
+					if (nodePort > 65535 || nodePort < 0) {
+						throw new NumberFormatException();
+					}
+				} catch (NumberFormatException e) {
+					System.err.println("Error: Incorrect configuration file format at line " + lineNumber + ".");
+					System.err.println(tokens[1] + ": not a valid port number.");
+					continue;	// Don't add invalid node
+				}
+
+				String host = tokens[0].strip();
+				pending.add(new PendingHost(host, nodePort, lineNumber, resolver.resolve(host)));
+			}
+		} catch (IOException e) {
+			System.err.println("Error: " + path + " does not exist or you do not have permission to access it.");
+			stdTerm(false, 1); // Exit with error code 1
+		}
+
+		// Wait for the lookups, but only so long
+		try {
+			CompletableFuture.allOf(pending.stream().map(p -> p.address).toArray(CompletableFuture[]::new))
+					.get(DNS_STARTUP_WAIT, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException | ExecutionException | InterruptedException e) {
+			// Whatever isn't done yet is the Monitor's problem
+		}
+		unresolved.addAll(pending);
+		addResolved();
+		if (!unresolved.isEmpty()) {
+			System.err.println("Warning: " + unresolved.size()
+					+ " hosts could not be resolved yet, e.g. " + unresolved.get(0).host + " at line "
+					+ unresolved.get(0).line + ". Will keep trying.");
 		}
 		
 		// Warn and exit if no node records were provided in the configuration 
 		//  file
-		if (nodeIndex.size() == 0) {
+		if (nodeIndex.isEmpty() && unresolved.isEmpty()) {
 			System.err.println("Error: No nodes provided in configuration file.");
 			System.out.println("Terminating...");
 			stdTerm(false, 2);	// Exit with error code 2
 		}
 	}
 
+	/**
+	 * Adds a node for every config entry in unresolved whose name has
+	 * resolved, in file order. Entries whose lookup failed get looked up
+	 * again, once the resolver is willing to
+	 */
+	private void addResolved() {
+		HashSet<InetAddress> local = null;
+		for (Iterator<PendingHost> it = unresolved.iterator(); it.hasNext();) {
+			PendingHost p = it.next();
+			Inet4Address address = p.address.getNow(null);
+			if (address == null) {
+				if (p.address.isDone()) {
+					p.address = resolver.resolve(p.host);
+				}
+				continue;
+			}
+			it.remove();
+
+			Node node = new Node(address, p.port, detector.newHistory(), scheduler.newLink());
+			if (nodeTable.putIfAbsent(node.getKey(), node) != null) {
+				System.err.println("Warning: Duplicate node at line " + p.line + ", skipping.");
+				continue;
+			}
+			nodeIndex.add(node);
+			track(node);
+			pings.schedule(node.getNextPing(), clock.millis()); // its first ping is due now
+
+			// The first entry that points at this host and port is us
+			if (self == null && p.port == port) {
+				if (local == null) {
+					local = localAddresses();
+				}
+				if (address.isLoopbackAddress() || address.isAnyLocalAddress() || local.contains(address)) {
+					self = node;
+				}
+			}
+		}
+	}
+
 	/**
 	 * Prints information about all nodes in nodeIndex
 	 */
-	private static void displayNodes() {
+	private void displayNodes() {
 		System.out.println("------------ Node Index ------------");
 		System.out.println(String.format("%-15s  %-6s  %s", "IP", "Status", "TSLC (ms)"));
 
@@ -279,42 +1196,106 @@ public class P2P {
 			}
 			
 			// Print that b!
-			System.out.println(String.format("%-15s  %-6s  %d", addr, status, n.getTSLC()));
+			System.out.println(String.format("%-15s  %-6s  %d", addr, status, n.getTSLC(clock.millis())));
 		}
 	}
 
 	/**
-	 * Sends the PING signal to all nodes in nodeIndex
+	 * Sends the PING signal to all nodes in nodeIndex over the runtime's
+	 * socket
 	 */
-	public static void pingAll() {
-		// Set up socket
-		DatagramSocket socket = null;
-
+	public void pingAll() {
+		long now = clock.millis();
 		for (Node n : nodeIndex) {
-			byte[] outgoingData = "PING".getBytes();
-			DatagramPacket outgoingPacket = new DatagramPacket(outgoingData, outgoingData.length);
+			sendPing(n, now);
+		}
+	}
 
+	/**
+	 * Encodes the PING the first time one is needed. Every node gets the same
+	 * bytes bar the sequence number and timestamp, so only encode them once
+	 * 
+	 * @return whether there's a PING to send
+	 */
+	private boolean buildPing() {
+		if (pingPacket == null) {
 			try {
-				socket = new DatagramSocket(port);
-				socket.connect(n.getAddress(), port);
-				socket.send(outgoingPacket);
-				socket.close();
-			} catch (UnknownHostException e) {
-				e.printStackTrace();
-			} catch (SocketException e) {
-				e.printStackTrace();
-			} catch (IOException e) {
+				HACPacket ping = new HACPacket(0, localAddress(), HACPacket.PacketType.PING);
+				pingData = new byte[ping.encodedLength()];
+				pingBuffer = ByteBuffer.wrap(pingData);
+				ping.encode(pingBuffer);
+				pingPacket = new DatagramPacket(pingData, pingData.length);
+			} catch (PacketTypeDataMismatchException e) {
 				e.printStackTrace();
+				return false;
 			}
 		}
+		return true;
+	}
+
+	/**
+	 * Sends one node a PING, with the next of its own sequence numbers
+	 * 
+	 * @param n the node
+	 * @param now the current time
+	 */
+	private void sendPing(Node n, long now) {
+		if (!buildPing()) {
+			return;
+		}
+		try {
+			HACPacket.stamp(pingBuffer, 0, n.nextSequence(), now);
+			pingPacket.setAddress(n.getAddress());
+			pingPacket.setPort(n.getPort());
+			socket.send(pingPacket);
+			metrics.sent(PacketType.PING);
+		} catch (IOException e) {
+			if (running) {
+				EventLog.log(SEND_FAILED, n.getKey(), e, 0);
+			}
+		}
+	}
+
+	/**
+	 * Lists the addresses of this host's interfaces once, rather than asking
+	 * the OS about every address in the config file
+	 * 
+	 * @return every address that belongs to this host
+	 */
+	private static HashSet<InetAddress> localAddresses() {
+		HashSet<InetAddress> local = new HashSet<InetAddress>();
+		try {
+			for (NetworkInterface i : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+				local.addAll(Collections.list(i.getInetAddresses()));
+			}
+		} catch (SocketException e) {
+			// Only loopback counts then
+		}
+		return local;
+	}
+
+	/**
+	 * Finds this host's IPv4 address for the origin field of outgoing packets
+	 * 
+	 * @return the local IPv4 address, or null if there isn't one
+	 */
+	private static Inet4Address localAddress() {
+		try {
+			InetAddress local = InetAddress.getLocalHost();
+			if (local instanceof Inet4Address) {
+				return (Inet4Address) local;
+			}
+		} catch (UnknownHostException e) {
+			System.err.println("Error: Unable to determine local address.");
+		}
+		return null;
 	}
-	
 	
 	/**
 	 * Provides a standard way to terminate. This helps prevent resource leaks
 	 * If confirmation is requested, the user has 5 seconds to respond before
-	 * the program ignores the quit command and continues normally. This is a
-	 * cheap way to prevent "blocking" without using threads
+	 * the program ignores the quit command and continues normally. Only the
+	 * console thread reads from System.in, so only call this from there
 	 * 
 	 * @param conf true if user confirmation is desired, else false
 	 * @param val the error code value to pass to System.exit()